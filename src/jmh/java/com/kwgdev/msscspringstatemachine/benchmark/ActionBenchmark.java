@@ -0,0 +1,71 @@
+package com.kwgdev.msscspringstatemachine.benchmark;
+
+import com.kwgdev.msscspringstatemachine.config.StateMachineConfig;
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.services.PaymentMessages;
+import com.kwgdev.msscspringstatemachine.services.PaymentServiceImpl;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.statemachine.StateContext;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.action.Action;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * The preAuthAction/authAction lambdas from StateMachineConfig without the machine around them.
+ * The context and the machine they send their follow-up event to are stub-only mocks (no invocation recording),
+ * so what gets measured is the action itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ActionBenchmark {
+
+    private Action<PaymentState, PaymentEvent> preAuthAction;
+    private Action<PaymentState, PaymentEvent> authAction;
+    private StateContext<PaymentState, PaymentEvent> context;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp(PaymentContext paymentContext) {
+        StateMachineConfig config = paymentContext.bean(StateMachineConfig.class);
+        preAuthAction = config.preAuthAction();
+        authAction = config.authAction();
+
+        StateMachine<PaymentState, PaymentEvent> stateMachine = mock(StateMachine.class, Mockito.withSettings().stubOnly());
+        when(stateMachine.sendEvent(any(org.springframework.messaging.Message.class))).thenReturn(true);
+
+        context = mock(StateContext.class, Mockito.withSettings().stubOnly());
+        when(context.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER)).thenReturn(1L);
+        when(context.getMessageHeaders()).thenReturn(PaymentMessages.event(1L, PaymentEvent.PRE_AUTHORIZE).getHeaders());
+        when(context.getStateMachine()).thenReturn(stateMachine);
+    }
+
+    @Benchmark
+    public void preAuthAction() {
+        preAuthAction.execute(context);
+    }
+
+    @Benchmark
+    public void authAction() {
+        authAction.execute(context);
+    }
+}
@@ -0,0 +1,102 @@
+package com.kwgdev.msscspringstatemachine.benchmark;
+
+import com.kwgdev.msscspringstatemachine.authorization.AuthorizationGateway;
+import com.kwgdev.msscspringstatemachine.authorization.AuthorizationProperties;
+import com.kwgdev.msscspringstatemachine.authorization.AuthorizationType;
+import com.kwgdev.msscspringstatemachine.authorization.CoalescingAuthorizationGateway;
+import com.kwgdev.msscspringstatemachine.authorization.LocalAuthorizationGateway;
+import com.kwgdev.msscspringstatemachine.authorization.LocalBatchAuthorizationProcessor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Authorizations per second against a stub processor with a fixed round trip and a fixed number of connections,
+ * one request per round trip (LocalAuthorizationGateway) vs. requests coalesced into batches
+ * (CoalescingAuthorizationGateway in front of LocalBatchAuthorizationProcessor).
+ *
+ * waitEach is one blocking caller per thread (payment.authorization.async=false), burst is BURST requests in flight
+ * per thread before waiting for all of them (what the async actions look like from the processor's side).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthorizationBatchingBenchmark {
+
+    private static final int BURST = 64;
+
+    @Param({"1"})
+    public long latencyMillis;
+
+    @Param({"4"})
+    public int connections;
+
+    @Param({"false", "true"})
+    public boolean batched;
+
+    private AuthorizationGateway gateway;
+    private LocalBatchAuthorizationProcessor batchProcessor;
+    private LocalAuthorizationGateway singleGateway;
+
+    @Setup
+    public void setUp() {
+        AuthorizationProperties properties = new AuthorizationProperties();
+        properties.getStub().setLatency(Duration.ofMillis(latencyMillis));
+        properties.getStub().setConnections(connections);
+        properties.getStub().setApprovalRate(0.8);
+        properties.getBatch().setMaxSize(BURST);
+        properties.getBatch().setMaxWait(Duration.ofNanos(200_000));
+
+        if (batched) {
+            batchProcessor = new LocalBatchAuthorizationProcessor(properties);
+            gateway = new CoalescingAuthorizationGateway(batchProcessor, properties.getBatch(), new SimpleMeterRegistry());
+        } else {
+            singleGateway = new LocalAuthorizationGateway(properties);
+            gateway = singleGateway;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (gateway instanceof CoalescingAuthorizationGateway) {
+            ((CoalescingAuthorizationGateway) gateway).shutdown();
+            batchProcessor.shutdown();
+        } else {
+            singleGateway.shutdown();
+        }
+    }
+
+    @Benchmark
+    public Boolean waitEach() {
+        return gateway.authorize(AuthorizationType.AUTHORIZATION, 1L).join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void burst() {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Boolean>[] answers = new CompletableFuture[BURST];
+        for (int i = 0; i < BURST; i++) {
+            answers[i] = gateway.authorize(AuthorizationType.AUTHORIZATION, (long) i);
+        }
+        CompletableFuture.allOf(answers).join();
+    }
+}
@@ -0,0 +1,46 @@
+package com.kwgdev.msscspringstatemachine.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Runs the benchmarks once per thread count with the GC profiler on and writes one JSON result file per run,
+ * e.g. target/jmh/jmh-threads-4.json - keep those around to compare a commit against the previous one.
+ *
+ * Driven by system properties (the benchmark profile in the pom sets them):
+ * jmh.threads (comma separated, 0 = one per available processor), jmh.include (regex), jmh.resultDir
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        String include = System.getProperty("jmh.include", ".*");
+        Path resultDir = Paths.get(System.getProperty("jmh.resultDir", "target/jmh"));
+        Files.createDirectories(resultDir);
+
+        for (String value : System.getProperty("jmh.threads", "1,4,0").split(",")) {
+            int threads = Integer.parseInt(value.trim());
+            if (threads <= 0) {
+                threads = Runtime.getRuntime().availableProcessors();
+            }
+
+            Options options = new OptionsBuilder()
+                    .include(BenchmarkRunner.class.getPackageName() + "\\..*" + include)
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(resultDir.resolve("jmh-threads-" + threads + ".json").toString())
+                    .build();
+
+            new Runner(options).run();
+        }
+    }
+}
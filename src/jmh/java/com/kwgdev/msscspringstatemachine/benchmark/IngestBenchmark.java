@@ -0,0 +1,111 @@
+package com.kwgdev.msscspringstatemachine.benchmark;
+
+import com.kwgdev.msscspringstatemachine.MsscSpringStateMachineApplication;
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load generator for POST /api/v1/payments/ingest over real HTTP, reported in records per second.
+ *
+ * Every invocation streams one body of RECORDS lines, either new payments or PRE_AUTH events for payments
+ * created up front (after the first pass those come back NOT_ACCEPTED, which still reads and evaluates each one).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IngestBenchmark {
+
+    private static final int RECORDS = 1_000;
+
+    private ConfigurableApplicationContext context;
+    private HttpClient client;
+    private URI ingest;
+    private byte[] newPayments;
+    private byte[] preAuths;
+
+    @Setup(Level.Trial)
+    public void start() {
+        context = new SpringApplicationBuilder(MsscSpringStateMachineApplication.class)
+                .properties(
+                        "server.port=0",
+                        "spring.jpa.show-sql=false",
+                        "logging.level.root=WARN",
+                        "spring.devtools.restart.enabled=false",
+                        "spring.datasource.url=jdbc:h2:mem:ingest-benchmark;DB_CLOSE_ON_EXIT=FALSE",
+                        "payment.ingest.max-concurrent-requests=256")
+                .run();
+
+        int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+        ingest = URI.create("http://localhost:" + port + "/api/v1/payments/ingest");
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+        StringBuilder created = new StringBuilder();
+        StringBuilder events = new StringBuilder();
+        PaymentService paymentService = context.getBean(PaymentService.class);
+        for (int i = 0; i < RECORDS; i++) {
+            created.append("{\"op\":\"NEW\",\"amount\":12.99}\n");
+            Long id = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+            events.append("{\"op\":\"PRE_AUTH\",\"paymentId\":").append(id).append("}\n");
+        }
+        newPayments = created.toString().getBytes();
+        preAuths = events.toString().getBytes();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        context.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int ingestNewPayments() throws IOException, InterruptedException {
+        return post(newPayments);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int ingestPreAuths() throws IOException, InterruptedException {
+        return post(preAuths);
+    }
+
+    private int post(byte[] body) throws IOException, InterruptedException {
+        HttpResponse<Void> response = client.send(HttpRequest.newBuilder(ingest)
+                        .header("Content-Type", "application/x-ndjson")
+                        .header("Accept", "application/x-ndjson")
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                        .build(),
+                HttpResponse.BodyHandlers.discarding());
+
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("ingest answered " + response.statusCode());
+        }
+        return response.statusCode();
+    }
+}
@@ -0,0 +1,74 @@
+package com.kwgdev.msscspringstatemachine.benchmark;
+
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
+import com.kwgdev.msscspringstatemachine.services.PaymentServiceImpl;
+import com.kwgdev.msscspringstatemachine.services.PaymentStateChangeInterceptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.statemachine.transition.Transition;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PaymentStateChangeInterceptor.preStateChange on its own, in a transaction like on the real path.
+ * Uses the NEW -> NEW transition of PRE_AUTHORIZE so the row can take the same state change over and over,
+ * every benchmark thread works on its own payment.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InterceptorBenchmark {
+
+    private PaymentStateChangeInterceptor interceptor;
+    private TransactionTemplate transactionTemplate;
+    private StateMachine<PaymentState, PaymentEvent> stateMachine;
+    private Transition<PaymentState, PaymentEvent> transition;
+    private Message<PaymentEvent> message;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp(PaymentContext context) {
+        interceptor = context.bean(PaymentStateChangeInterceptor.class);
+        transactionTemplate = new TransactionTemplate(context.bean(PlatformTransactionManager.class));
+
+        Payment payment = context.bean(PaymentRepository.class)
+                .save(Payment.builder().state(PaymentState.NEW).amount(new BigDecimal("12.99")).build());
+
+        stateMachine = context.bean(StateMachineFactory.class).getStateMachine();
+        transition = stateMachine.getTransitions().stream()
+                .filter(t -> t.getSource().getId() == PaymentState.NEW && t.getTarget().getId() == PaymentState.NEW)
+                .findFirst()
+                .orElseThrow();
+
+        message = MessageBuilder.withPayload(PaymentEvent.PRE_AUTHORIZE)
+                .setHeader(PaymentServiceImpl.PAYMENT_ID_HEADER, payment.getId())
+                .build();
+    }
+
+    @Benchmark
+    public void preStateChange() {
+        transactionTemplate.executeWithoutResult(status ->
+                interceptor.preStateChange(transition.getTarget(), message, transition, stateMachine));
+    }
+}
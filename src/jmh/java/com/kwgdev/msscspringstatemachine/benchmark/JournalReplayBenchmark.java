@@ -0,0 +1,87 @@
+package com.kwgdev.msscspringstatemachine.benchmark;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.journal.JournalSnapshot;
+import com.kwgdev.msscspringstatemachine.journal.PaymentStateIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rebuild speed of the id -> state index, reported in events (or snapshot entries) per second:
+ * folding 1M journal rows of 250k payments into an empty index, and mapping a snapshot of 1M payments
+ * (SnapshotLoadBenchmark has the 10M case).
+ * The journal rows are pregenerated so this is the cost of the index itself, not of reading them from JDBC.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JournalReplayBenchmark {
+
+    private static final int EVENTS = 1_000_000;
+    private static final int PAYMENTS = 250_000;
+    private static final int SNAPSHOT_ENTRIES = 1_000_000;
+
+    private final long[] paymentIds = new long[EVENTS];
+    private final PaymentState[] targets = new PaymentState[EVENTS];
+    private Path snapshot;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        PaymentState[] states = PaymentState.values();
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < EVENTS; i++) {
+            paymentIds[i] = 1 + random.nextInt(PAYMENTS);
+            targets[i] = states[random.nextInt(states.length)];
+        }
+
+        PaymentStateIndex index = new PaymentStateIndex(SNAPSHOT_ENTRIES);
+        for (long id = 1; id <= SNAPSHOT_ENTRIES; id++) {
+            index.put(id, states[(int) (id % states.length)]);
+        }
+        snapshot = Files.createTempDirectory("journal-bench").resolve(JournalSnapshot.FILE_NAME);
+        JournalSnapshot.write(snapshot, UUID.randomUUID(), index, 0L, SNAPSHOT_ENTRIES);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(snapshot);
+        Files.deleteIfExists(snapshot.getParent());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public PaymentStateIndex replayJournal() {
+        PaymentStateIndex index = new PaymentStateIndex();
+        for (int i = 0; i < EVENTS; i++) {
+            index.put(paymentIds[i], targets[i]);
+        }
+        return index;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SNAPSHOT_ENTRIES)
+    public JournalSnapshot loadSnapshot() {
+        return JournalSnapshot.read(snapshot);
+    }
+}
@@ -0,0 +1,72 @@
+package com.kwgdev.msscspringstatemachine.benchmark;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.engine.TransitionGuard;
+import com.kwgdev.msscspringstatemachine.metrics.PaymentMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What PaymentMetrics adds to a transition: recording into a SimpleMeterRegistry
+ * against the same calls on a registry that denies every meter (no-op meters).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsOverheadBenchmark {
+
+    private PaymentMetrics recording;
+    private PaymentMetrics noop;
+    private TransitionGuard recordingGuard;
+    private TransitionGuard noopGuard;
+
+    @Setup
+    public void setUp() {
+        recording = new PaymentMetrics(new SimpleMeterRegistry());
+
+        MeterRegistry denied = new SimpleMeterRegistry();
+        denied.config().meterFilter(MeterFilter.deny());
+        noop = new PaymentMetrics(denied);
+
+        recordingGuard = recording.countedTableGuard("paymentIdGuard", Objects::nonNull);
+        noopGuard = noop.countedTableGuard("paymentIdGuard", Objects::nonNull);
+    }
+
+    @Benchmark
+    public void recordTransition() {
+        recording.recordTransition(PaymentState.NEW, PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED, 1_000L);
+    }
+
+    @Benchmark
+    public void recordTransitionNoop() {
+        noop.recordTransition(PaymentState.NEW, PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED, 1_000L);
+    }
+
+    @Benchmark
+    public boolean rejectedGuard() {
+        return recordingGuard.evaluate(null);
+    }
+
+    @Benchmark
+    public boolean rejectedGuardNoop() {
+        return noopGuard.evaluate(null);
+    }
+}
@@ -0,0 +1,112 @@
+package com.kwgdev.msscspringstatemachine.benchmark;
+
+import com.kwgdev.msscspringstatemachine.MsscSpringStateMachineApplication;
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading every AUTH payment out of 1M (200k of them): findAll filtered in memory, keyset pages of 1000 through
+ * findByState, and one streamByState cursor. One scan per op, the GC profiler's alloc.rate.norm is the
+ * allocation per scan - findAll also holds all 1M entities (and their dirty check snapshots) at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class PaymentScanBenchmark {
+
+    private static final int PAYMENTS = 1_000_000;
+    private static final int PAGE_SIZE = 1_000;
+    private static final PaymentState STATE = PaymentState.AUTH;
+
+    private ConfigurableApplicationContext context;
+    private PaymentService paymentService;
+    private PaymentRepository paymentRepository;
+
+    @Setup(Level.Trial)
+    public void start() {
+        context = new SpringApplicationBuilder(MsscSpringStateMachineApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties(
+                        "spring.jpa.show-sql=false",
+                        "logging.level.root=WARN",
+                        "spring.devtools.restart.enabled=false",
+                        "spring.datasource.url=jdbc:h2:mem:scan-benchmark;DB_CLOSE_ON_EXIT=FALSE")
+                .run();
+        paymentService = context.getBean(PaymentService.class);
+        paymentRepository = context.getBean(PaymentRepository.class);
+
+        // straight JDBC, the rows only have to be there
+        JdbcTemplate jdbcTemplate = context.getBean(JdbcTemplate.class);
+        PaymentState[] states = PaymentState.values();
+        List<Object[]> batch = new ArrayList<>(10_000);
+        for (long id = 1; id <= PAYMENTS; id++) {
+            batch.add(new Object[]{id, new BigDecimal("12.99"), states[(int) (id % states.length)].name()});
+            if (batch.size() == 10_000) {
+                jdbcTemplate.batchUpdate("insert into payment (id, amount, state, version) values (?, ?, ?, 0)", batch);
+                batch.clear();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        context.close();
+    }
+
+    @Benchmark
+    public long findAll() {
+        long found = 0;
+        for (Payment payment : paymentRepository.findAll()) {
+            if (payment.getState() == STATE) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public long keysetPages() {
+        long found = 0;
+        Long after = null;
+        List<Payment> page;
+        do {
+            page = paymentService.findByState(STATE, after, null, PAGE_SIZE);
+            found += page.size();
+            if (!page.isEmpty()) {
+                after = page.get(page.size() - 1).getId();
+            }
+        } while (page.size() == PAGE_SIZE);
+        return found;
+    }
+
+    @Benchmark
+    public long stream() {
+        return paymentService.streamByState(STATE, null, null, payments -> payments.count());
+    }
+}
@@ -0,0 +1,94 @@
+package com.kwgdev.msscspringstatemachine.benchmark;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.journal.JournalSnapshot;
+import com.kwgdev.msscspringstatemachine.journal.MappedPaymentStates;
+import com.kwgdev.msscspringstatemachine.journal.PaymentStateIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warm start cost of a snapshot of 10M payments: mapping it (what PaymentStateIndexer does on startup), mapping it
+ * and answering 10k random lookups, and copying every entry into a PaymentStateIndex (the heap index it replaced).
+ * The file sits in the page cache after the first iteration, a cold disk adds its read time to the lookups only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SnapshotLoadBenchmark {
+
+    private static final int PAYMENTS = 10_000_000;
+    private static final int LOOKUPS = 10_000;
+
+    private final long[] lookups = new long[LOOKUPS];
+    private Path snapshot;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        PaymentState[] states = PaymentState.values();
+        PaymentStateIndex index = new PaymentStateIndex(PAYMENTS);
+        for (long id = 1; id <= PAYMENTS; id++) {
+            index.put(id, states[(int) (id % states.length)]);
+        }
+        snapshot = Files.createTempDirectory("snapshot-bench").resolve(JournalSnapshot.FILE_NAME);
+        JournalSnapshot.write(snapshot, UUID.randomUUID(), index, 0L, PAYMENTS);
+
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < LOOKUPS; i++) {
+            lookups[i] = 1 + random.nextInt(PAYMENTS);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(snapshot);
+        Files.deleteIfExists(snapshot.getParent());
+    }
+
+    @Benchmark
+    public MappedPaymentStates map() {
+        return JournalSnapshot.read(snapshot).getStates();
+    }
+
+    @Benchmark
+    public int mapAndLookUp() {
+        MappedPaymentStates states = JournalSnapshot.read(snapshot).getStates();
+        int found = 0;
+        for (long paymentId : lookups) {
+            if (states.get(paymentId) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public PaymentStateIndex copyToHeap() {
+        MappedPaymentStates states = JournalSnapshot.read(snapshot).getStates();
+        PaymentStateIndex index = new PaymentStateIndex(states.size());
+        for (int i = 0; i < states.size(); i++) {
+            index.put(states.idAt(i), states.stateAt(i));
+        }
+        return index;
+    }
+}
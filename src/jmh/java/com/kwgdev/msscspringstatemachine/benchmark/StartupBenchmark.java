@@ -0,0 +1,142 @@
+package com.kwgdev.msscspringstatemachine.benchmark;
+
+import com.kwgdev.msscspringstatemachine.MsscSpringStateMachineApplication;
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import com.sun.management.HotSpotDiagnosticMXBean;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold start, one measurement per fresh JVM: the full JPA and web context up to the first payment pre-authorized.
+ * contextStart is the refresh alone, firstPreAuth the first newPayment + preAuth on a context that just started
+ * (everything still cold), both with and without spring.main.lazy-initialization. minIdle is the number of state
+ * machines StateMachinePool builds during the refresh: 0 leaves the first preAuth to build its own, the default 4
+ * moves that into contextStart.
+ *
+ * contextStartWithCds maps the JDK's classes from a class data sharing archive, create it once with the same java
+ * the benchmarks run on (JDK 11 ships no default archive):
+ *   java -Xshare:dump -XX:SharedArchiveFile=target/jmh/jdk-classes.jsa
+ * The other benchmarks run with -Xshare:off so the comparison also holds on JDKs that share by default.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 5, jvmArgsAppend = "-Xshare:off")
+public class StartupBenchmark {
+
+    static final String CDS_ARCHIVE = "target/jmh/jdk-classes.jsa";
+
+    @Param({"false", "true"})
+    public boolean lazy;
+
+    @Param({"0", "4"})
+    public int minIdle;
+
+    private ConfigurableApplicationContext context;
+
+    // one application per JVM, run with -Djmh.threads=1
+    @Setup(Level.Trial)
+    public void singleThreaded(BenchmarkParams params) {
+        if (params.getThreads() != 1) {
+            throw new IllegalStateException("StartupBenchmark starts one application per fork, run it with one thread");
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void stop() {
+        if (context != null) {
+            context.close();
+            context = null;
+        }
+    }
+
+    @Benchmark
+    public ConfigurableApplicationContext contextStart() throws IOException {
+        return context = start(lazy, minIdle);
+    }
+
+    @Benchmark
+    @Fork(value = 5, jvmArgsAppend = {"-Xshare:auto", "-XX:SharedArchiveFile=" + CDS_ARCHIVE})
+    public ConfigurableApplicationContext contextStartWithCds(Sharing sharing) throws IOException {
+        return context = start(lazy, minIdle);
+    }
+
+    @Benchmark
+    public PaymentState firstPreAuth(Started started) {
+        PaymentService paymentService = started.context.getBean(PaymentService.class);
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+        return paymentService.preAuth(payment.getId());
+    }
+
+    // started outside the measurement, firstPreAuth times only what comes after
+    @State(Scope.Benchmark)
+    public static class Started {
+
+        ConfigurableApplicationContext context;
+
+        @Setup(Level.Iteration)
+        public void start(StartupBenchmark benchmark) throws IOException {
+            context = StartupBenchmark.start(benchmark.lazy, benchmark.minIdle);
+        }
+
+        @TearDown(Level.Iteration)
+        public void stop() {
+            context.close();
+        }
+    }
+
+    // -Xshare:auto quietly runs without sharing when the archive is missing or unusable, which would just repeat
+    // contextStart under another name
+    @State(Scope.Benchmark)
+    public static class Sharing {
+
+        @Setup(Level.Trial)
+        public void check() {
+            String useSharedSpaces = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class)
+                    .getVMOption("UseSharedSpaces").getValue();
+            if (!Boolean.parseBoolean(useSharedSpaces)) {
+                throw new IllegalStateException("Class data sharing is off, create the archive with: java -Xshare:dump "
+                        + "-XX:SharedArchiveFile=" + CDS_ARCHIVE);
+            }
+        }
+    }
+
+    static ConfigurableApplicationContext start(boolean lazy, int minIdle) throws IOException {
+        return new SpringApplicationBuilder(MsscSpringStateMachineApplication.class)
+                .properties(
+                        "spring.main.lazy-initialization=" + lazy,
+                        "payment.state-machine.pool.min-idle=" + minIdle,
+                        "server.port=0",
+                        "spring.jpa.show-sql=false",
+                        "logging.level.root=WARN",
+                        "spring.devtools.restart.enabled=false",
+                        "spring.datasource.url=jdbc:h2:mem:startup;DB_CLOSE_ON_EXIT=FALSE",
+                        // an empty database, a snapshot left behind by an earlier run must not be warm-started from
+                        "payment.journal.snapshot-dir=" + Files.createTempDirectory("startup-journal"))
+                .run();
+    }
+}
@@ -0,0 +1,71 @@
+package com.kwgdev.msscspringstatemachine.benchmark;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.services.PaymentStateChangeInterceptor;
+import com.kwgdev.msscspringstatemachine.services.StateMachinePool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Getting a machine rehydrated to a persisted state: building one from the factory per call (what build() used to do)
+ * against checking one out of StateMachinePool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StateMachineBuildBenchmark {
+
+    private StateMachineFactory<PaymentState, PaymentEvent> factory;
+    private PaymentStateChangeInterceptor interceptor;
+    private StateMachinePool pool;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp(PaymentContext context) {
+        factory = context.bean(StateMachineFactory.class);
+        interceptor = context.bean(PaymentStateChangeInterceptor.class);
+        pool = context.bean(StateMachinePool.class);
+    }
+
+    @Benchmark
+    public StateMachine<PaymentState, PaymentEvent> factoryBuild() {
+        StateMachine<PaymentState, PaymentEvent> sm = factory.getStateMachine();
+
+        sm.stop();
+        sm.getStateMachineAccessor()
+                .doWithAllRegions(sma -> {
+                    sma.addStateMachineInterceptor(interceptor);
+                    sma.resetStateMachine(new DefaultStateMachineContext<>(PaymentState.PRE_AUTH, null, null, null));
+                });
+        sm.start();
+
+        return sm;
+    }
+
+    @Benchmark
+    public PaymentState poolCheckout() {
+        StateMachine<PaymentState, PaymentEvent> sm = pool.checkout(PaymentState.PRE_AUTH);
+        try {
+            return sm.getState().getId();
+        } finally {
+            pool.release(sm);
+        }
+    }
+}
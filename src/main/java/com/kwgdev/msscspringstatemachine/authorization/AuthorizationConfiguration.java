@@ -0,0 +1,29 @@
+package com.kwgdev.msscspringstatemachine.authorization;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+@Configuration
+public class AuthorizationConfiguration {
+
+    // real deployments declare their own BatchAuthorizationProcessor bean
+    @Bean
+    @ConditionalOnMissingBean(BatchAuthorizationProcessor.class)
+    public LocalBatchAuthorizationProcessor localBatchAuthorizationProcessor(AuthorizationProperties properties) {
+        return new LocalBatchAuthorizationProcessor(properties);
+    }
+
+    // with batching on, the actions' single-payment requests are collected into batches in front of the processor
+    @Bean
+    @Primary
+    @ConditionalOnProperty(name = "payment.authorization.batch.enabled", havingValue = "true")
+    public CoalescingAuthorizationGateway coalescingAuthorizationGateway(BatchAuthorizationProcessor processor,
+                                                                         AuthorizationProperties properties,
+                                                                         MeterRegistry meterRegistry) {
+        return new CoalescingAuthorizationGateway(processor, properties.getBatch(), meterRegistry);
+    }
+}
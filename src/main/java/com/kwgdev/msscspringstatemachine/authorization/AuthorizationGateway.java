@@ -0,0 +1,14 @@
+package com.kwgdev.msscspringstatemachine.authorization;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Card processor we ask to approve or decline a payment.
+ *
+ * Implementations must not block the calling thread for the round trip - the future completes with
+ * true for approved and false for declined once the processor answered.
+ */
+public interface AuthorizationGateway {
+
+    CompletableFuture<Boolean> authorize(AuthorizationType type, Long paymentId);
+}
@@ -0,0 +1,53 @@
+package com.kwgdev.msscspringstatemachine.authorization;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * Settings for calling the AuthorizationGateway from the preAuth/auth actions
+ */
+@Data
+@ConfigurationProperties(prefix = "payment.authorization")
+public class AuthorizationProperties {
+
+    // true - actions only send the request, the answer is applied later in its own transaction
+    // false - actions wait for the answer and send the resulting event inline, like they always did
+    private boolean async = true;
+
+    // threads applying answers (the approved/declined events) once they come back
+    private int resultThreads = 4;
+
+    private Stub stub = new Stub();
+
+    private Batch batch = new Batch();
+
+    // LocalAuthorizationGateway, the in-process stand in for a real processor
+    @Data
+    public static class Stub {
+
+        // simulated processor round trip
+        private Duration latency = Duration.ZERO;
+
+        // share of requests that get approved, 0.0 - 1.0
+        private double approvalRate = 0.8;
+
+        // calls the processor works on at the same time, the rest wait their turn (0 = no limit)
+        private int connections = 0;
+    }
+
+    // CoalescingAuthorizationGateway, concurrent requests sent to the BatchAuthorizationProcessor together
+    @Data
+    public static class Batch {
+
+        // false sends every request on its own through the AuthorizationGateway
+        private boolean enabled = false;
+
+        // a batch goes out as soon as it has this many requests
+        private int maxSize = 64;
+
+        // ... or once its first request waited this long
+        private Duration maxWait = Duration.ofNanos(200_000);
+    }
+}
@@ -0,0 +1,24 @@
+package com.kwgdev.msscspringstatemachine.authorization;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+
+/**
+ * The two calls we make to the card processor, and the events their answers turn into
+ */
+public enum AuthorizationType {
+
+    PRE_AUTHORIZATION(PaymentEvent.PRE_AUTH_APPROVED, PaymentEvent.PRE_AUTH_DECLINED),
+    AUTHORIZATION(PaymentEvent.AUTH_APPROVED, PaymentEvent.AUTH_DECLINED);
+
+    private final PaymentEvent approved;
+    private final PaymentEvent declined;
+
+    AuthorizationType(PaymentEvent approved, PaymentEvent declined) {
+        this.approved = approved;
+        this.declined = declined;
+    }
+
+    public PaymentEvent result(boolean approved) {
+        return approved ? this.approved : declined;
+    }
+}
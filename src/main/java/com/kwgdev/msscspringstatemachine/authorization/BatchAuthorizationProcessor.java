@@ -0,0 +1,15 @@
+package com.kwgdev.msscspringstatemachine.authorization;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Card processor endpoint that approves or declines many payments in one round trip.
+ *
+ * Like AuthorizationGateway, implementations must not block the calling thread - the future completes with one
+ * answer per payment, in the order of the ids passed in (true for approved, false for declined).
+ */
+public interface BatchAuthorizationProcessor {
+
+    CompletableFuture<List<Boolean>> authorize(AuthorizationType type, List<Long> paymentIds);
+}
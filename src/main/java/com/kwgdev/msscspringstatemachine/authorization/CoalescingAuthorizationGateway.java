@@ -0,0 +1,179 @@
+package com.kwgdev.msscspringstatemachine.authorization;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AuthorizationGateway that collects concurrent single-payment requests into batches for a BatchAuthorizationProcessor.
+ *
+ * Requests of the same AuthorizationType queue up until maxSize of them are waiting or the first one has waited
+ * maxWait, then they go out as one call and the processor's answers are handed back to each request's future -
+ * so the actions (and the approved/declined events they turn into) do not know batching happened.
+ *
+ * Meters, tagged type: payment.authorization.batch.size (requests per batch), payment.authorization.batch.wait
+ * (time a request queued before its batch went out), payment.authorization.batch.roundtrip and
+ * payment.authorization.batch.requests (rate = requests authorized per second).
+ */
+@Slf4j
+public class CoalescingAuthorizationGateway implements AuthorizationGateway {
+
+    private final BatchAuthorizationProcessor processor;
+    private final int maxSize;
+    private final long maxWaitNanos;
+    private final Map<AuthorizationType, Batcher> batchers = new EnumMap<>(AuthorizationType.class);
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "authorization-batch-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public CoalescingAuthorizationGateway(BatchAuthorizationProcessor processor, AuthorizationProperties.Batch properties,
+                                          MeterRegistry meterRegistry) {
+        this.processor = processor;
+        this.maxSize = Math.max(1, properties.getMaxSize());
+        this.maxWaitNanos = properties.getMaxWait().toNanos();
+
+        for (AuthorizationType type : AuthorizationType.values()) {
+            batchers.put(type, new Batcher(type, meterRegistry));
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> authorize(AuthorizationType type, Long paymentId) {
+        CompletableFuture<Boolean> answer = new CompletableFuture<>();
+        batchers.get(type).add(new Request(paymentId, System.nanoTime(), answer));
+        return answer;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdown();
+        // whatever is still queued goes out now rather than never
+        batchers.values().forEach(Batcher::flush);
+    }
+
+    @RequiredArgsConstructor
+    private static final class Request {
+        private final Long paymentId;
+        private final long queuedAt;
+        private final CompletableFuture<Boolean> answer;
+    }
+
+    private final class Batcher {
+        private final AuthorizationType type;
+        private final DistributionSummary batchSize;
+        private final Timer waitTime;
+        private final Timer roundTrip;
+        private final Counter requests;
+
+        // guarded by this
+        private List<Request> pending;
+        private ScheduledFuture<?> flushTimer;
+
+        private Batcher(AuthorizationType type, MeterRegistry registry) {
+            this.type = type;
+            this.pending = new ArrayList<>(maxSize);
+            this.batchSize = DistributionSummary.builder("payment.authorization.batch.size")
+                    .tag("type", type.name()).register(registry);
+            this.waitTime = Timer.builder("payment.authorization.batch.wait")
+                    .tag("type", type.name()).register(registry);
+            this.roundTrip = Timer.builder("payment.authorization.batch.roundtrip")
+                    .tag("type", type.name()).register(registry);
+            this.requests = Counter.builder("payment.authorization.batch.requests")
+                    .tag("type", type.name()).register(registry);
+        }
+
+        private void add(Request request) {
+            List<Request> full = null;
+            synchronized (this) {
+                pending.add(request);
+                if (pending.size() >= maxSize) {
+                    full = take();
+                } else if (pending.size() == 1 && maxWaitNanos > 0) {
+                    flushTimer = timer.schedule(this::flush, maxWaitNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+
+            if (full != null) {
+                send(full);
+            } else if (maxWaitNanos <= 0) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            List<Request> due;
+            synchronized (this) {
+                due = take();
+            }
+            if (!due.isEmpty()) {
+                send(due);
+            }
+        }
+
+        // the caller sends what it took outside the lock, the next requests already queue up behind it
+        private List<Request> take() {
+            if (flushTimer != null) {
+                flushTimer.cancel(false);
+                flushTimer = null;
+            }
+            List<Request> taken = pending;
+            pending = new ArrayList<>(maxSize);
+            return taken;
+        }
+
+        private void send(List<Request> batch) {
+            long sentAt = System.nanoTime();
+            List<Long> paymentIds = new ArrayList<>(batch.size());
+            for (Request request : batch) {
+                paymentIds.add(request.paymentId);
+                waitTime.record(sentAt - request.queuedAt, TimeUnit.NANOSECONDS);
+            }
+            batchSize.record(batch.size());
+            requests.increment(batch.size());
+
+            CompletableFuture<List<Boolean>> answers;
+            try {
+                answers = processor.authorize(type, paymentIds);
+            } catch (RuntimeException e) {
+                answers = CompletableFuture.failedFuture(e);
+            }
+
+            answers.whenComplete((approved, failure) -> {
+                roundTrip.record(System.nanoTime() - sentAt, TimeUnit.NANOSECONDS);
+
+                if (failure == null && (approved == null || approved.size() != batch.size())) {
+                    failure = new IllegalStateException("Processor answered " + (approved == null ? 0 : approved.size())
+                            + " of " + batch.size() + " " + type + " requests");
+                }
+                if (failure != null) {
+                    log.warn("{} batch of {} payments failed", type, batch.size(), failure);
+                    for (Request request : batch) {
+                        request.answer.completeExceptionally(failure);
+                    }
+                    return;
+                }
+
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).answer.complete(approved.get(i));
+                }
+            });
+        }
+    }
+}
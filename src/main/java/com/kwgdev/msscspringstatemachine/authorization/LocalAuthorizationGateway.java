@@ -0,0 +1,56 @@
+package com.kwgdev.msscspringstatemachine.authorization;
+
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local processor stub - approves the configured share of requests after the configured latency.
+ *
+ * The latency is simulated with a timer, not a sleeping thread, so like a real non-blocking client
+ * it costs no thread while a request is in flight.
+ */
+@Component
+public class LocalAuthorizationGateway implements AuthorizationGateway {
+
+    // answers without latency are already complete, every request shares one of these two
+    private static final CompletableFuture<Boolean> APPROVED = CompletableFuture.completedFuture(true);
+    private static final CompletableFuture<Boolean> DECLINED = CompletableFuture.completedFuture(false);
+
+    private final AuthorizationProperties.Stub properties;
+    private final StubConnections connections;
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "authorization-stub");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LocalAuthorizationGateway(AuthorizationProperties properties) {
+        this.properties = properties.getStub();
+        this.connections = new StubConnections(this.properties.getConnections(), this.properties.getLatency().toNanos());
+    }
+
+    @Override
+    public CompletableFuture<Boolean> authorize(AuthorizationType type, Long paymentId) {
+        boolean approved = ThreadLocalRandom.current().nextDouble() < properties.getApprovalRate();
+
+        if (properties.getLatency().toNanos() <= 0) {
+            return approved ? APPROVED : DECLINED;
+        }
+
+        CompletableFuture<Boolean> answer = new CompletableFuture<>();
+        timer.schedule(() -> answer.complete(approved), connections.delay(), TimeUnit.NANOSECONDS);
+        return answer;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,53 @@
+package com.kwgdev.msscspringstatemachine.authorization;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local batch processor stub - same approval rate and latency as LocalAuthorizationGateway,
+ * but the latency is paid once per batch instead of once per payment.
+ */
+public class LocalBatchAuthorizationProcessor implements BatchAuthorizationProcessor {
+
+    private final AuthorizationProperties.Stub properties;
+    private final StubConnections connections;
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "authorization-batch-stub");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LocalBatchAuthorizationProcessor(AuthorizationProperties properties) {
+        this.properties = properties.getStub();
+        this.connections = new StubConnections(this.properties.getConnections(), this.properties.getLatency().toNanos());
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> authorize(AuthorizationType type, List<Long> paymentIds) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<Boolean> approved = new ArrayList<>(paymentIds.size());
+        for (int i = 0; i < paymentIds.size(); i++) {
+            approved.add(random.nextDouble() < properties.getApprovalRate());
+        }
+
+        if (properties.getLatency().toNanos() <= 0) {
+            return CompletableFuture.completedFuture(approved);
+        }
+
+        CompletableFuture<List<Boolean>> answer = new CompletableFuture<>();
+        timer.schedule(() -> answer.complete(approved), connections.delay(), TimeUnit.NANOSECONDS);
+        return answer;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+}
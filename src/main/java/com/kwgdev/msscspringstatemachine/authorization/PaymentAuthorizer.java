@@ -0,0 +1,101 @@
+package com.kwgdev.msscspringstatemachine.authorization;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.services.AfterCommit;
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What the preAuth and auth actions of both engines call to get a payment approved or declined.
+ *
+ * In async mode (payment.authorization.async, the default) the action only queues the request and returns, so
+ * neither the request thread nor the transaction waits for the processor. The request goes to the
+ * AuthorizationGateway once the action's transaction has committed - a transaction that rolls back (a lost
+ * compare-and-set, a rejected partition, a failed idempotency insert) never asks the processor anything.
+ * When the answer is in, the resulting approved/declined event is applied through PaymentService on one of our
+ * result threads, in its own short transaction.
+ *
+ * In sync mode the answer decides the next state of the transition being made, so the processor is asked right away
+ * inside the transaction.
+ */
+@Slf4j
+@Component
+public class PaymentAuthorizer {
+
+    private final AuthorizationGateway authorizationGateway;
+    private final AuthorizationProperties properties;
+
+    // PaymentService sits on top of the state machine these actions belong to, so it is looked up lazily
+    private final ObjectProvider<PaymentService> paymentService;
+
+    private final ExecutorService resultExecutor;
+
+    public PaymentAuthorizer(AuthorizationGateway authorizationGateway, AuthorizationProperties properties,
+                             ObjectProvider<PaymentService> paymentService) {
+        this.authorizationGateway = authorizationGateway;
+        this.properties = properties;
+        this.paymentService = paymentService;
+
+        AtomicInteger threads = new AtomicInteger();
+        this.resultExecutor = Executors.newFixedThreadPool(properties.getResultThreads(), r -> {
+            Thread thread = new Thread(r, "authorization-result-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Asks the processor about the payment.
+     *
+     * @return the approved/declined event to send right away, or null when the answer will be applied later (async mode)
+     */
+    public PaymentEvent authorize(AuthorizationType type, Long paymentId) {
+        if (!properties.isAsync()) {
+            return type.result(authorizationGateway.authorize(type, paymentId).join());
+        }
+
+        // nothing leaves the process for a state change that did not happen, and the payment's current state is not
+        // visible to other transactions (the answer's follow-up event) until this one commits
+        AfterCommit.run(() -> send(type, paymentId));
+
+        return null;
+    }
+
+    private void send(AuthorizationType type, Long paymentId) {
+        CompletableFuture<Boolean> answer;
+        try {
+            answer = authorizationGateway.authorize(type, paymentId);
+        } catch (RuntimeException e) {
+            // the transaction has committed already, the payment stays where it is until someone retries it
+            log.error("Authorization {} of payment {} could not be sent", type, paymentId, e);
+            return;
+        }
+
+        answer.whenCompleteAsync((approved, failure) -> {
+            if (failure != null) {
+                // nothing to apply, the payment stays where it is until someone retries it
+                log.error("Authorization {} of payment {} failed", type, paymentId, failure);
+                return;
+            }
+
+            try {
+                paymentService.getObject().sendFollowUpEvent(paymentId, type.result(approved));
+            } catch (RuntimeException e) {
+                log.warn("Could not apply {} answer to payment {}", type, paymentId, e);
+            }
+        }, resultExecutor);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        resultExecutor.shutdown();
+    }
+}
@@ -0,0 +1,41 @@
+package com.kwgdev.msscspringstatemachine.authorization;
+
+/**
+ * Round trips of the local processor stubs over a fixed number of connections, one call per connection at a time.
+ *
+ * Nothing blocks - a call is told how long it will take, including the wait for the first connection to free up,
+ * and completes its future on a timer after that.
+ */
+final class StubConnections {
+
+    private final long latencyNanos;
+
+    // when each connection is done with the calls already on it, guarded by this
+    private final long[] freeAt;
+
+    // connections <= 0 means unlimited, every call takes just the latency
+    StubConnections(int connections, long latencyNanos) {
+        this.latencyNanos = latencyNanos;
+        this.freeAt = connections > 0 ? new long[connections] : null;
+    }
+
+    // nanos from now until a call started now has its answer
+    long delay() {
+        if (freeAt == null) {
+            return latencyNanos;
+        }
+
+        long now = System.nanoTime();
+        synchronized (this) {
+            int earliest = 0;
+            for (int i = 1; i < freeAt.length; i++) {
+                if (freeAt[i] - freeAt[earliest] < 0) {
+                    earliest = i;
+                }
+            }
+            long start = freeAt[earliest] - now > 0 ? freeAt[earliest] : now;
+            freeAt[earliest] = start + latencyNanos;
+            return freeAt[earliest] - now;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.kwgdev.msscspringstatemachine.cluster;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * Settings for sharing the payments out between several instances, see PaymentPartitionOwnership
+ */
+@Data
+@ConfigurationProperties(prefix = "payment.cluster")
+public class ClusterProperties {
+
+    // false means this instance owns every payment, like before
+    private boolean enabled = false;
+
+    // unique per instance, blank picks a random one on startup
+    private String nodeId = "";
+
+    // where other instances (or a router in front of them) reach this one, handed out with rejected events
+    private String address = "";
+
+    // payment ids hash into this many partitions - has to be the same on every node sharing the database
+    private int partitions = 256;
+
+    // a partition whose lease was not renewed for this long can be claimed by another node
+    private Duration leaseTime = Duration.ofSeconds(15);
+
+    // leases are renewed and the partitions rebalanced this often, has to be well below leaseTime
+    private Duration heartbeatInterval = Duration.ofSeconds(5);
+
+    // the node stops treating a partition as its own this much before its lease runs out, so another node whose clock
+    // is ahead by less than this never claims a partition we still think we own
+    private Duration clockSkewAllowance = Duration.ofSeconds(2);
+}
@@ -0,0 +1,26 @@
+package com.kwgdev.msscspringstatemachine.cluster;
+
+import lombok.Getter;
+
+/**
+ * An event for a payment whose partition another node owns (or nobody, while it moves) - send it to the owner
+ */
+@Getter
+public class PartitionNotOwnedException extends RuntimeException {
+
+    private final Long paymentId;
+    private final int partition;
+
+    // as of our last heartbeat, null when the partition was free or the owner did not advertise an address
+    private final String ownerId;
+    private final String ownerAddress;
+
+    public PartitionNotOwnedException(Long paymentId, int partition, String ownerId, String ownerAddress) {
+        super("Payment " + paymentId + " is in partition " + partition + ", which "
+                + (ownerId != null ? "belongs to node " + ownerId + (ownerAddress != null ? " at " + ownerAddress : "") : "has no owner right now"));
+        this.paymentId = paymentId;
+        this.partition = partition;
+        this.ownerId = ownerId;
+        this.ownerAddress = ownerAddress;
+    }
+}
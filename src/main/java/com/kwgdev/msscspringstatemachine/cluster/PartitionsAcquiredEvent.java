@@ -0,0 +1,20 @@
+package com.kwgdev.msscspringstatemachine.cluster;
+
+import lombok.Value;
+
+import java.util.BitSet;
+
+/**
+ * Published after a heartbeat gave this node partitions it did not own before. Whatever the node remembers about
+ * payments in them may be out of date, another node has been moving them on.
+ */
+@Value
+public class PartitionsAcquiredEvent {
+
+    int partitionCount;
+    BitSet partitions;
+
+    public boolean containsPayment(long paymentId) {
+        return partitions.get(PaymentPartitionOwnership.partitionOf(paymentId, partitionCount));
+    }
+}
@@ -0,0 +1,315 @@
+package com.kwgdev.msscspringstatemachine.cluster;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Splits the payments between the instances sharing the database: payment ids hash into a fixed number of
+ * partitions and every partition is leased to one node at a time through payment_partition_lease.
+ *
+ * Every heartbeat a node marks itself alive in payment_cluster_node, renews its leases and works out its fair share,
+ * partitions / live nodes rounded up. Above it the surplus is released, below it free or expired partitions are
+ * claimed with a conditional UPDATE (only one node can win a partition). A node joining makes the others shed
+ * partitions on their next heartbeat and picks them up on its own, a node shutting down releases everything,
+ * a node that died loses its partitions once their leases run out.
+ *
+ * PaymentService rejects events for payments in partitions we do not own with PartitionNotOwnedException, which
+ * names the owner so the caller can go there instead. The compare-and-set on the payment row stays the backstop:
+ * a node that paused past its lease (or a clock off by more than clockSkewAllowance) loses the write, not the data.
+ *
+ * Disabled (the default) every payment is ours and nothing touches the tables.
+ *
+ * Meters: payment.cluster.partitions.owned and payment.cluster.rejected (events turned away).
+ */
+@Slf4j
+@Component
+public class PaymentPartitionOwnership {
+
+    private static final String TOUCH_NODE = "update payment_cluster_node set alive_until = ?, address = ? where node_id = ?";
+    private static final String INSERT_NODE = "insert into payment_cluster_node (node_id, address, alive_until) values (?, ?, ?)";
+    private static final String PURGE_NODES = "delete from payment_cluster_node where alive_until < ?";
+    private static final String LEAVE = "delete from payment_cluster_node where node_id = ?";
+    private static final String LIVE_NODES = "select node_id, address from payment_cluster_node where alive_until >= ?";
+
+    private static final String PARTITION_IDS = "select partition_id from payment_partition_lease";
+    private static final String INSERT_PARTITION = "insert into payment_partition_lease (partition_id) values (?)";
+    private static final String RENEW = "update payment_partition_lease set lease_until = ? where owner_id = ?";
+    private static final String OWNED = "select partition_id from payment_partition_lease where owner_id = ? order by partition_id";
+    private static final String RELEASE = "update payment_partition_lease set owner_id = null, lease_until = null " +
+            "where partition_id = ? and owner_id = ?";
+    private static final String RELEASE_ALL = "update payment_partition_lease set owner_id = null, lease_until = null where owner_id = ?";
+    private static final String FREE = "select partition_id from payment_partition_lease " +
+            "where owner_id is null or lease_until < ? order by partition_id";
+    // checked again on the row, of two nodes going for the same free partition only one updates it
+    private static final String CLAIM = "update payment_partition_lease set owner_id = ?, lease_until = ? " +
+            "where partition_id = ? and (owner_id is null or lease_until < ?)";
+    private static final String OWNERS = "select partition_id, owner_id from payment_partition_lease where lease_until >= ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ClusterProperties properties;
+    private final ApplicationEventPublisher eventPublisher;
+    private final String nodeId;
+    private final int partitions;
+
+    // what we own and until when, replaced whole on every heartbeat
+    private volatile Leases leases;
+    // who owned what (and where they are) as of the last heartbeat, only used to point rejected callers elsewhere
+    private volatile String[] owners;
+    private volatile Map<String, String> addresses = Map.of();
+    private boolean partitionsCreated;
+
+    private final Counter rejected;
+
+    public PaymentPartitionOwnership(JdbcTemplate jdbcTemplate, ClusterProperties properties,
+                                     ApplicationEventPublisher eventPublisher, MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.properties = properties;
+        this.eventPublisher = eventPublisher;
+        this.nodeId = properties.getNodeId().isBlank() ? UUID.randomUUID().toString() : properties.getNodeId();
+        this.partitions = properties.getPartitions();
+        this.leases = new Leases(new boolean[partitions], System.nanoTime());
+        this.owners = new String[partitions];
+
+        if (properties.isEnabled() && properties.getHeartbeatInterval().compareTo(
+                properties.getLeaseTime().minus(properties.getClockSkewAllowance())) >= 0) {
+            throw new IllegalArgumentException("payment.cluster.heartbeat-interval has to be shorter than lease-time "
+                    + "minus clock-skew-allowance, or partitions lapse between heartbeats");
+        }
+
+        Gauge.builder("payment.cluster.partitions.owned", this, PaymentPartitionOwnership::ownedPartitions).register(meterRegistry);
+        this.rejected = Counter.builder("payment.cluster.rejected").register(meterRegistry);
+    }
+
+    // spread the ids with a different mix than PartitionedEventExecutor.laneOf, a node owning a set of partitions
+    // should still use all of its lanes
+    public static int partitionOf(long paymentId, int partitions) {
+        long h = paymentId;
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) Math.floorMod(h, (long) partitions);
+    }
+
+    public int partitionOf(Long paymentId) {
+        return partitionOf(paymentId, partitions);
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    public boolean isOwned(Long paymentId) {
+        return !properties.isEnabled() || leases.owns(partitionOf(paymentId), System.nanoTime());
+    }
+
+    // isOwned, counting the payments turned away
+    public boolean admit(Long paymentId) {
+        if (isOwned(paymentId)) {
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    public void checkOwned(Long paymentId) {
+        if (!admit(paymentId)) {
+            int partition = partitionOf(paymentId);
+            String owner = owners[partition];
+            throw new PartitionNotOwnedException(paymentId, partition, owner, owner != null ? addresses.get(owner) : null);
+        }
+    }
+
+    public int ownedPartitions() {
+        if (!properties.isEnabled()) {
+            return partitions;
+        }
+
+        Leases current = leases;
+        long now = System.nanoTime();
+        int owned = 0;
+        for (int partition = 0; partition < partitions; partition++) {
+            if (current.owns(partition, now)) {
+                owned++;
+            }
+        }
+        return owned;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Scheduled(fixedDelayString = "${payment.cluster.heartbeat-interval:PT5S}")
+    public synchronized void heartbeat() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+
+        try {
+            rebalance();
+        } catch (RuntimeException e) {
+            // the leases we hold stay ours until they run out, the next heartbeat tries again
+            log.warn("Partition heartbeat of node {} failed", nodeId, e);
+        }
+    }
+
+    private void rebalance() {
+        long started = System.nanoTime();
+        long now = System.currentTimeMillis();
+        Timestamp leaseUntil = new Timestamp(now + properties.getLeaseTime().toMillis());
+        Timestamp expired = new Timestamp(now);
+
+        createPartitions();
+
+        if (jdbcTemplate.update(TOUCH_NODE, leaseUntil, properties.getAddress(), nodeId) == 0) {
+            jdbcTemplate.update(INSERT_NODE, nodeId, properties.getAddress(), leaseUntil);
+        }
+        jdbcTemplate.update(PURGE_NODES, new Timestamp(now - properties.getLeaseTime().toMillis()));
+
+        Map<String, String> live = new HashMap<>();
+        jdbcTemplate.query(LIVE_NODES, rs -> {
+            live.put(rs.getString(1), rs.getString(2) != null && !rs.getString(2).isBlank() ? rs.getString(2) : null);
+        }, expired);
+        int share = (partitions + live.size() - 1) / Math.max(1, live.size());
+
+        jdbcTemplate.update(RENEW, leaseUntil, nodeId);
+        List<Integer> owned = new ArrayList<>(jdbcTemplate.queryForList(OWNED, Integer.class, nodeId));
+        Leases before = leases;
+
+        if (owned.size() > share) {
+            // stop taking events for them before anyone else can claim them
+            List<Integer> surplus = new ArrayList<>(owned.subList(share, owned.size()));
+            boolean[] remaining = before.owned.clone();
+            for (int partition : surplus) {
+                remaining[partition] = false;
+            }
+            leases = new Leases(remaining, before.until);
+
+            jdbcTemplate.batchUpdate(RELEASE, surplus, surplus.size(), (ps, partition) -> {
+                ps.setInt(1, partition);
+                ps.setString(2, nodeId);
+            });
+            owned.removeAll(surplus);
+            log.info("Node {} released {} partitions, {} live nodes", nodeId, surplus.size(), live.size());
+        } else if (owned.size() < share) {
+            claim(owned, share, leaseUntil, expired, live.size());
+        }
+
+        boolean[] ours = new boolean[partitions];
+        BitSet acquired = new BitSet(partitions);
+        for (int partition : owned) {
+            ours[partition] = true;
+            if (!before.owns(partition, started)) {
+                acquired.set(partition);
+            }
+        }
+
+        String[] current = new String[partitions];
+        jdbcTemplate.query(OWNERS, rs -> {
+            current[rs.getInt(1)] = rs.getString(2);
+        }, expired);
+
+        // listeners run on the heartbeat thread before we take events for the new partitions, so keep them short
+        if (!acquired.isEmpty()) {
+            eventPublisher.publishEvent(new PartitionsAcquiredEvent(partitions, acquired));
+        }
+
+        leases = new Leases(ours, started + properties.getLeaseTime().minus(properties.getClockSkewAllowance()).toNanos());
+        owners = current;
+        addresses = live;
+    }
+
+    private void claim(List<Integer> owned, int share, Timestamp leaseUntil, Timestamp expired, int liveNodes) {
+        List<Integer> free = jdbcTemplate.queryForList(FREE, Integer.class, expired);
+        List<Integer> wanted = free.subList(0, Math.min(free.size(), share - owned.size()));
+        if (wanted.isEmpty()) {
+            return;
+        }
+
+        int[][] claimed = jdbcTemplate.batchUpdate(CLAIM, wanted, wanted.size(), (ps, partition) -> {
+            ps.setString(1, nodeId);
+            ps.setTimestamp(2, leaseUntil);
+            ps.setInt(3, partition);
+            ps.setTimestamp(4, expired);
+        });
+        int won = 0;
+        for (int i = 0; i < wanted.size(); i++) {
+            if (claimed[0][i] > 0) {
+                owned.add(wanted.get(i));
+                won++;
+            }
+        }
+        if (won > 0) {
+            log.info("Node {} claimed {} partitions, {} live nodes", nodeId, won, liveNodes);
+        }
+    }
+
+    // one row per partition, whichever node comes first inserts them
+    private void createPartitions() {
+        if (partitionsCreated) {
+            return;
+        }
+
+        Set<Integer> existing = new HashSet<>(jdbcTemplate.queryForList(PARTITION_IDS, Integer.class));
+        for (int partition = 0; partition < partitions; partition++) {
+            if (!existing.contains(partition)) {
+                try {
+                    jdbcTemplate.update(INSERT_PARTITION, partition);
+                } catch (DuplicateKeyException e) {
+                    // another node starting at the same time
+                }
+            }
+        }
+        partitionsCreated = true;
+    }
+
+    // hands the partitions back right away instead of making the others wait for the leases to run out
+    @PreDestroy
+    public synchronized void leave() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+
+        leases = new Leases(new boolean[partitions], System.nanoTime());
+        owners = new String[partitions];
+        try {
+            jdbcTemplate.update(RELEASE_ALL, nodeId);
+            jdbcTemplate.update(LEAVE, nodeId);
+        } catch (RuntimeException e) {
+            log.warn("Node {} could not release its partitions, they free up when the leases run out", nodeId, e);
+        }
+    }
+
+    private static final class Leases {
+        private final boolean[] owned;
+        // System.nanoTime() the leases were renewed until, less the clock skew allowance
+        private final long until;
+
+        private Leases(boolean[] owned, long until) {
+            this.owned = owned;
+            this.until = until;
+        }
+
+        private boolean owns(int partition, long now) {
+            return owned[partition] && until - now > 0;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.kwgdev.msscspringstatemachine.config;
+
+import com.kwgdev.msscspringstatemachine.cluster.PaymentPartitionOwnership;
+import com.kwgdev.msscspringstatemachine.idempotency.PaymentEventDeduplicator;
+import com.kwgdev.msscspringstatemachine.journal.PaymentStateIndexer;
+import com.kwgdev.msscspringstatemachine.outbox.OutboxRelay;
+import com.kwgdev.msscspringstatemachine.services.StateMachinePool;
+import com.kwgdev.msscspringstatemachine.summary.PaymentStateCounters;
+import com.kwgdev.msscspringstatemachine.timeout.PaymentTimeouts;
+import org.springframework.boot.LazyInitializationExcludeFilter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class LazyInitializationConfig {
+
+    // with spring.main.lazy-initialization=true nothing would create these until a request needs them, so the
+    // journal would not be replayed, the outbox not relayed and this node would not take its partitions until then
+    @Bean
+    public static LazyInitializationExcludeFilter backgroundWorkStartsWithTheContext() {
+        return LazyInitializationExcludeFilter.forBeanTypes(PaymentStateIndexer.class, StateMachinePool.class,
+                PaymentStateCounters.class, OutboxRelay.class, PaymentEventDeduplicator.class,
+                PaymentPartitionOwnership.class, PaymentTimeouts.class);
+    }
+}
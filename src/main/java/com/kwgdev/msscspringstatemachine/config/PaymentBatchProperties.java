@@ -0,0 +1,16 @@
+package com.kwgdev.msscspringstatemachine.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Settings for the bulk PaymentService methods, see services/PaymentBatchProcessor
+ */
+@Data
+@ConfigurationProperties(prefix = "payment.batch")
+public class PaymentBatchProperties {
+
+    // payments loaded, transitioned and flushed per transaction
+    // keep it a multiple of spring.jpa.properties.hibernate.jdbc.batch_size
+    private int chunkSize = 500;
+}
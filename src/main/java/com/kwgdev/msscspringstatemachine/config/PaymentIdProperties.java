@@ -0,0 +1,16 @@
+package com.kwgdev.msscspringstatemachine.config;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentIdGenerator;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Settings for Payment id generation, see domain/PaymentIdGenerator
+ */
+@Data
+@ConfigurationProperties(prefix = "payment.id")
+public class PaymentIdProperties {
+
+    // ids handed out per sequence call, keep it at least hibernate.jdbc.batch_size so a batch needs one call at most
+    private int allocationSize = PaymentIdGenerator.DEFAULT_ALLOCATION_SIZE;
+}
@@ -0,0 +1,23 @@
+package com.kwgdev.msscspringstatemachine.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * Settings for the paymentId -> state cache, see services/PaymentStateCache
+ */
+@Data
+@ConfigurationProperties(prefix = "payment.state-cache")
+public class PaymentStateCacheProperties {
+
+    // false reads the state from the database on every event, like before
+    private boolean enabled = true;
+
+    // payments kept, least recently used ones are evicted first
+    private long maximumSize = 100_000;
+
+    // upper bound on how long an entry is trusted, covers rows changed behind the application's back
+    private Duration expireAfterWrite = Duration.ofMinutes(10);
+}
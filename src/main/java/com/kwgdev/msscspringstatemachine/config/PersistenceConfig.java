@@ -0,0 +1,17 @@
+package com.kwgdev.msscspringstatemachine.config;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentIdGenerator;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class PersistenceConfig {
+
+    // hands payment.id.allocation-size to PaymentIdGenerator, which only sees Hibernate settings
+    @Bean
+    public HibernatePropertiesCustomizer paymentIdAllocationSize(PaymentIdProperties properties) {
+        return hibernateProperties -> hibernateProperties.put(PaymentIdGenerator.ALLOCATION_SIZE_SETTING,
+                properties.getAllocationSize());
+    }
+}
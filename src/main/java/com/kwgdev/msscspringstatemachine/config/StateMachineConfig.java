@@ -1,23 +1,32 @@
 package com.kwgdev.msscspringstatemachine.config;
 
+import com.kwgdev.msscspringstatemachine.authorization.AuthorizationType;
+import com.kwgdev.msscspringstatemachine.authorization.PaymentAuthorizer;
 import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
 import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.engine.PaymentStateModel;
+import com.kwgdev.msscspringstatemachine.engine.PaymentTransitionTable;
+import com.kwgdev.msscspringstatemachine.engine.TransitionAction;
+import com.kwgdev.msscspringstatemachine.engine.TransitionGuard;
+import com.kwgdev.msscspringstatemachine.jfr.PaymentFlightRecorder;
+import com.kwgdev.msscspringstatemachine.metrics.PaymentMetrics;
+import com.kwgdev.msscspringstatemachine.services.PaymentMessages;
 import com.kwgdev.msscspringstatemachine.services.PaymentServiceImpl;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.statemachine.action.Action;
 import org.springframework.statemachine.config.EnableStateMachineFactory;
 import org.springframework.statemachine.config.StateMachineConfigurerAdapter;
 import org.springframework.statemachine.config.builders.StateMachineConfigurationConfigurer;
 import org.springframework.statemachine.config.builders.StateMachineStateConfigurer;
 import org.springframework.statemachine.config.builders.StateMachineTransitionConfigurer;
+import org.springframework.statemachine.config.configurers.ExternalTransitionConfigurer;
+import org.springframework.statemachine.config.configurers.StateConfigurer;
 import org.springframework.statemachine.guard.Guard;
-import org.springframework.statemachine.listener.StateMachineListenerAdapter;
-import org.springframework.statemachine.state.State;
 
-import java.util.EnumSet;
-import java.util.Random;
+import java.util.Objects;
 
 
 /**
@@ -26,56 +35,109 @@ import java.util.Random;
 @Slf4j
 @EnableStateMachineFactory // enables creation of a state machine
 @Configuration
+@RequiredArgsConstructor
 public class StateMachineConfig extends StateMachineConfigurerAdapter<PaymentState, PaymentEvent> {
 
+    private final PaymentMetrics paymentMetrics;
+    private final PaymentAuthorizer paymentAuthorizer;
+    private final PaymentFlightRecorder paymentFlightRecorder;
+
+    // states and transitions come out of PaymentStateModel, which both engines are built from
+    private static final PaymentStateModel MODEL = PaymentStateModel.PAYMENT;
+
     @Override
     public void configure(StateMachineStateConfigurer<PaymentState, PaymentEvent> states) throws Exception {
 
-        states.withStates()
-                .initial(PaymentState.NEW)
-                .states(EnumSet.allOf(PaymentState.class))
-                .end(PaymentState.AUTH)
-                .end(PaymentState.PRE_AUTH_ERROR)
-                .end(PaymentState.AUTH_ERROR);
+        StateConfigurer<PaymentState, PaymentEvent> configurer = states.withStates()
+                .initial(MODEL.getInitial())
+                .states(MODEL.getStates());
+        for (PaymentState end : MODEL.getEnds()) {
+            configurer.end(end);
+        }
     }
 
     @Override
     public void configure(StateMachineTransitionConfigurer<PaymentState, PaymentEvent> transitions) throws Exception {
 
-        // what's going on here
-        // I start off in a NEW state, it's going to stay the same and then I'm going to call PRE_AUTHORIZE event, which does not cause a state change
-        // then call preAuthAction method below to send an event to the state machine
-        transitions.withExternal().source(PaymentState.NEW).target(PaymentState.NEW).event(PaymentEvent.PRE_AUTHORIZE)
-                .action(preAuthAction()).guard(paymentIdGuard())
-
-                .and()
-                // then if I call the PRE_AUTH_APPROVED event it changes state to PRE_AUTH
-                .withExternal().source(PaymentState.NEW).target(PaymentState.PRE_AUTH).event(PaymentEvent.PRE_AUTH_APPROVED)
-                .and()
-                // or if I call PRE_AUTH_DECLINED event it changes state to PRE_AUTH_ERROR
-                .withExternal().source(PaymentState.NEW).target(PaymentState.PRE_AUTH_ERROR).event(PaymentEvent.PRE_AUTH_DECLINED)
-        //preauth to auth
-                .and()
-                .withExternal().source(PaymentState.PRE_AUTH).target(PaymentState.PRE_AUTH).event(PaymentEvent.AUTHORIZE)
-                .action(authAction())
-                .and()
-                .withExternal().source(PaymentState.PRE_AUTH).target(PaymentState.AUTH).event(PaymentEvent.AUTH_APPROVED)
-                .and()
-                .withExternal().source(PaymentState.PRE_AUTH).target(PaymentState.AUTH_ERROR).event(PaymentEvent.AUTH_DECLINED);
+        for (PaymentStateModel.Transition transition : MODEL.getTransitions()) {
+            ExternalTransitionConfigurer<PaymentState, PaymentEvent> external = transitions.withExternal()
+                    .source(transition.getSource()).target(transition.getTarget()).event(transition.getEvent());
+            if (transition.getAction() != null) {
+                external.action(paymentMetrics.timed(transition.getAction(),
+                        paymentFlightRecorder.action(transition.getAction(), action(transition.getAction()))));
+            }
+            if (transition.getGuard() != null) {
+                external.guard(paymentMetrics.counted(transition.getGuard(),
+                        paymentFlightRecorder.guard(transition.getGuard(), guard(transition.getGuard()))));
+            }
+        }
     }
 
     @Override
     public void configure(StateMachineConfigurationConfigurer<PaymentState, PaymentEvent> config) throws Exception {
 
-        // tells Spring State Machine to print out log statements when state is changed, from and to
-        StateMachineListenerAdapter<PaymentState, PaymentEvent> adapter = new StateMachineListenerAdapter<>(){
-            @Override
-            public void stateChanged(State<PaymentState, PaymentEvent> from, State<PaymentState, PaymentEvent> to) {
-                log.info(String.format("stateChanged(from: %s, to: %s)", from, to));
-            }
-        };
+        // tells Spring State Machine to count errors and print out debug log statements when state is changed, from and to
+        // the transitions themselves get timed by PaymentMetrics.transitionInterceptor() on the pooled machines
+        config.withConfiguration().listener(paymentMetrics.listener());
+    }
+
+    // the same transitions compiled into PaymentTransitionTable for the table engine (payment.engine=table)
+    @Bean
+    public PaymentTransitionTable paymentTransitionTable() {
+        PaymentTransitionTable.Builder table = PaymentTransitionTable.builder();
+        for (PaymentStateModel.Transition transition : MODEL.getTransitions()) {
+            PaymentState source = transition.getSource();
+            PaymentEvent event = transition.getEvent();
+            PaymentState target = transition.getTarget();
+
+            TransitionGuard guard = transition.getGuard() == null ? null : paymentMetrics.countedTableGuard(transition.getGuard(),
+                    paymentFlightRecorder.tableGuard(transition.getGuard(), source, event, tableGuard(transition.getGuard())));
+            TransitionAction action = transition.getAction() == null ? null : paymentMetrics.timedTableAction(transition.getAction(),
+                    paymentFlightRecorder.tableAction(transition.getAction(), source, event, target, tableAction(transition.getAction())));
+            table.transition(source, event, target, guard, action);
+        }
+        return table.build();
+    }
+
+    // the guards and actions the model refers to by name, a name nobody binds fails the context refresh
+    private Guard<PaymentState, PaymentEvent> guard(String name) {
+        switch (name) {
+            case "paymentIdGuard":
+                return paymentIdGuard();
+            default:
+                throw new IllegalStateException("No guard named " + name + " in the payment state model");
+        }
+    }
+
+    private Action<PaymentState, PaymentEvent> action(String name) {
+        switch (name) {
+            case "preAuthAction":
+                return preAuthAction();
+            case "authAction":
+                return authAction();
+            default:
+                throw new IllegalStateException("No action named " + name + " in the payment state model");
+        }
+    }
+
+    private TransitionGuard tableGuard(String name) {
+        switch (name) {
+            case "paymentIdGuard":
+                return Objects::nonNull;
+            default:
+                throw new IllegalStateException("No guard named " + name + " in the payment state model");
+        }
+    }
 
-        config.withConfiguration().listener(adapter);
+    private TransitionAction tableAction(String name) {
+        switch (name) {
+            case "preAuthAction":
+                return paymentId -> paymentAuthorizer.authorize(AuthorizationType.PRE_AUTHORIZATION, paymentId);
+            case "authAction":
+                return paymentId -> paymentAuthorizer.authorize(AuthorizationType.AUTHORIZATION, paymentId);
+            default:
+                throw new IllegalStateException("No action named " + name + " in the payment state model");
+        }
     }
 
     // if our payment header is missing paymentId - no action will proceed
@@ -86,43 +148,30 @@ public class StateMachineConfig extends StateMachineConfigurerAdapter<PaymentSta
     }
 
     // PRE-AUTH ACTION
+    // the approve/decline decision comes from the card processor through PaymentAuthorizer
+    // in async mode the answer is not in yet when the action returns, it gets applied later in its own transaction
     public Action<PaymentState, PaymentEvent> preAuthAction() {
-        return context -> {
-            System.out.println("PreAuth was called!!");
+        return authorizationAction(AuthorizationType.PRE_AUTHORIZATION);
+    }
 
-            // making ambiguous approved and declined actions
-            if (new Random().nextInt(10) < 8) {
-                System.out.println("Approved!! Go Big Money!!"); // approve 80% of authorizations
-                context.getStateMachine().sendEvent(MessageBuilder.withPayload(PaymentEvent.PRE_AUTH_APPROVED)
-                        .setHeader(PaymentServiceImpl.PAYMENT_ID_HEADER, context.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER))
-                        .build());
-            } else {
+    // AUTH ACTION
+    public Action<PaymentState, PaymentEvent> authAction() {
+        return authorizationAction(AuthorizationType.AUTHORIZATION);
+    }
 
-                System.out.println("Declined!! NO CREDIT!!!!"); // decline 20% of authorizations
-                context.getStateMachine().sendEvent(MessageBuilder.withPayload(PaymentEvent.PRE_AUTH_DECLINED)
-                        .setHeader(PaymentServiceImpl.PAYMENT_ID_HEADER, context.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER))
-                        .build());
+    // the answer goes back to the machine with the headers of the message that triggered the action, no copy made
+    // runs on every preAuth/auth, so nothing gets logged (or built for logging) unless debug is on
+    private Action<PaymentState, PaymentEvent> authorizationAction(AuthorizationType type) {
+        return context -> {
+            Long paymentId = (Long) context.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER);
+            PaymentEvent result = paymentAuthorizer.authorize(type, paymentId);
 
+            if (log.isDebugEnabled()) {
+                log.debug("{} of payment {} answered with {}", type, paymentId, result != null ? result : "nothing yet");
             }
-        };
-    }
 
-    // AUTH ACTION
-    public Action<PaymentState, PaymentEvent> authAction(){
-        return context -> {
-            System.out.println("Auth was called!!!");
-
-            if (new Random().nextInt(10) < 8) {
-                System.out.println("Auth Approved");
-                context.getStateMachine().sendEvent(MessageBuilder.withPayload(PaymentEvent.AUTH_APPROVED)
-                        .setHeader(PaymentServiceImpl.PAYMENT_ID_HEADER, context.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER))
-                        .build());
-
-            } else {
-                System.out.println("Auth Declined! No Credit!!!!!!");
-                context.getStateMachine().sendEvent(MessageBuilder.withPayload(PaymentEvent.AUTH_DECLINED)
-                        .setHeader(PaymentServiceImpl.PAYMENT_ID_HEADER, context.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER))
-                        .build());
+            if (result != null) {
+                context.getStateMachine().sendEvent(PaymentMessages.followUp(result, context.getMessageHeaders()));
             }
         };
     }
@@ -0,0 +1,27 @@
+package com.kwgdev.msscspringstatemachine.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * Settings for the pool of prebuilt payment state machines, see services/StateMachinePool
+ */
+@Data
+@ConfigurationProperties(prefix = "payment.state-machine.pool")
+public class StateMachinePoolProperties {
+
+    // maximum number of machines checked out at the same time
+    private int maxSize = 32;
+
+    // how long a caller waits for a free machine before the checkout fails
+    private Duration maxWait = Duration.ofSeconds(5);
+
+    // idle machines beyond minIdle are dropped once they sit unused this long
+    private int minIdle = 4;
+    private Duration idleTimeout = Duration.ofMinutes(5);
+
+    // a machine checked out for longer than this is reported as leaked
+    private Duration leakDetectionThreshold = Duration.ofSeconds(30);
+}
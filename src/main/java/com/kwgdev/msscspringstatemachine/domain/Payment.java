@@ -5,6 +5,7 @@ import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.GenericGenerator;
 
 import javax.persistence.*;
 import java.math.BigDecimal;
@@ -17,14 +18,22 @@ import java.math.BigDecimal;
 @NoArgsConstructor
 @AllArgsConstructor
 @Entity
+// (state, id) serves the keyset scans by state in PaymentRepository - equality on state, range and order on id
+@Table(indexes = @Index(name = "ix_payment_state_id", columnList = "state, id"))
 public class Payment {
 
+    // pooled ids, see PaymentIdGenerator
     @Id
-    @GeneratedValue
+    @GeneratedValue(generator = "payment_id")
+    @GenericGenerator(name = "payment_id", strategy = "com.kwgdev.msscspringstatemachine.domain.PaymentIdGenerator")
     private Long id;
 
     @Enumerated(EnumType.STRING)
     private PaymentState state;
 
     private BigDecimal amount;
+
+    // bumped by every state change, so entity based updates of a stale Payment fail instead of overwriting
+    @Version
+    private Long version;
 }
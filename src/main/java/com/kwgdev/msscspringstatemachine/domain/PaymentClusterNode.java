@@ -0,0 +1,28 @@
+package com.kwgdev.msscspringstatemachine.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.sql.Timestamp;
+
+/**
+ * An instance taking part in the payment partitioning, alive as long as it keeps heartbeating
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+public class PaymentClusterNode {
+
+    @Id
+    private String nodeId;
+
+    private String address;
+
+    @Column(nullable = false)
+    private Timestamp aliveUntil;
+}
@@ -0,0 +1,29 @@
+package com.kwgdev.msscspringstatemachine.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * Single row naming the database the payment journal lives in, so a snapshot can tell which database it was taken of
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+public class PaymentJournalIdentity {
+
+    // always 1, a second node creating the row at the same time fails on the key instead of adding another one
+    @Id
+    private Integer id;
+
+    // random UUID, created on the first start against the database
+    @Column(nullable = false, updatable = false)
+    private String databaseId;
+}
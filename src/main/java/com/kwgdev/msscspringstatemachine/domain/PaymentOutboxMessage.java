@@ -0,0 +1,44 @@
+package com.kwgdev.msscspringstatemachine.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.sql.Timestamp;
+
+/**
+ * A state change downstream services have to hear about, waiting to be relayed and then deleted
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(indexes = @Index(name = "ix_payment_outbox_claimed_by", columnList = "claimedBy"))
+public class PaymentOutboxMessage {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "payment_outbox_seq")
+    @SequenceGenerator(name = "payment_outbox_seq", sequenceName = "payment_outbox_seq", allocationSize = 50)
+    private Long id;
+
+    @Column(nullable = false)
+    private Long paymentId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private PaymentState state;
+
+    @Enumerated(EnumType.STRING)
+    private PaymentEvent event;
+
+    @Column(nullable = false)
+    private Timestamp createdAt;
+
+    // set by the relay while it publishes the row, a claim whose lease ran out can be taken over
+    private String claimedBy;
+
+    private Timestamp claimedUntil;
+}
@@ -0,0 +1,29 @@
+package com.kwgdev.msscspringstatemachine.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.sql.Timestamp;
+
+/**
+ * Which node owns a partition of the payment ids and until when, see cluster/PaymentPartitionOwnership
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(indexes = @Index(name = "ix_payment_partition_lease_owner", columnList = "ownerId"))
+public class PaymentPartitionLease {
+
+    @Id
+    private Integer partitionId;
+
+    // null while the partition is free
+    private String ownerId;
+
+    private Timestamp leaseUntil;
+}
@@ -0,0 +1,31 @@
+package com.kwgdev.msscspringstatemachine.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.sql.Timestamp;
+
+/**
+ * Last checkpoint of how many payments are in a state and what they add up to
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+public class PaymentStateSummary {
+
+    @Id
+    @Enumerated(EnumType.STRING)
+    private PaymentState state;
+
+    private long paymentCount;
+
+    // sum of Payment.amount in cents
+    private long amountCents;
+
+    private Timestamp checkpointedAt;
+}
@@ -0,0 +1,49 @@
+package com.kwgdev.msscspringstatemachine.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.sql.Timestamp;
+
+/**
+ * One applied state change of a Payment, rows are only ever inserted
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(indexes = {
+        @Index(name = "ix_payment_transition_payment", columnList = "paymentId"),
+        // the order PaymentStateIndexer replays the journal in
+        @Index(name = "ix_payment_transition_occurred", columnList = "occurredAt, id")
+})
+public class PaymentTransition {
+
+    // pooled sequence, one round trip hands out allocationSize ids and the inserts go out as JDBC batches
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "payment_transition_seq")
+    @SequenceGenerator(name = "payment_transition_seq", sequenceName = "payment_transition_seq", allocationSize = 50)
+    private Long id;
+
+    @Column(nullable = false, updatable = false)
+    private Long paymentId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(updatable = false)
+    private PaymentState source;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, updatable = false)
+    private PaymentState target;
+
+    @Enumerated(EnumType.STRING)
+    @Column(updatable = false)
+    private PaymentEvent event;
+
+    @Column(nullable = false, updatable = false)
+    private Timestamp occurredAt;
+}
@@ -0,0 +1,45 @@
+package com.kwgdev.msscspringstatemachine.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.sql.Timestamp;
+
+/**
+ * Outcome of an event that was sent with an idempotency key, a retry with the same key gets this state back
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "ux_processed_payment_event_key", columnNames = "idempotencyKey"),
+        indexes = @Index(name = "ix_processed_payment_event_at", columnList = "processedAt"))
+public class ProcessedPaymentEvent {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "processed_payment_event_seq")
+    @SequenceGenerator(name = "processed_payment_event_seq", sequenceName = "processed_payment_event_seq", allocationSize = 50)
+    private Long id;
+
+    @Column(nullable = false, updatable = false)
+    private String idempotencyKey;
+
+    @Column(nullable = false, updatable = false)
+    private Long paymentId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, updatable = false)
+    private PaymentEvent event;
+
+    // state the payment was left in by the event
+    @Enumerated(EnumType.STRING)
+    @Column(updatable = false)
+    private PaymentState state;
+
+    @Column(nullable = false, updatable = false)
+    private Timestamp processedAt;
+}
@@ -0,0 +1,191 @@
+package com.kwgdev.msscspringstatemachine.engine;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import lombok.Value;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The payment state machine written down once: states with their rank, initial and end states, and the transitions
+ * with the names of their guards and actions. StateMachineConfig configures Spring Statemachine from it and compiles the
+ * PaymentTransitionTable from it, so the two engines cannot drift apart.
+ *
+ * PAYMENT is built and validated when the class is loaded and is immutable from then on - a broken model fails
+ * the first context refresh (and PaymentStateModelTest), not the first payment that hits the broken transition.
+ *
+ * A payment only ever moves to a state of higher rank, PaymentStateIndexer relies on that to tell which of two states
+ * it has for a payment is the later one. States that never lead to each other may share a rank.
+ */
+public final class PaymentStateModel {
+
+    public static final PaymentStateModel PAYMENT = builder()
+            .initial(PaymentState.NEW)
+            .rank(PaymentState.NEW, 0)
+            .rank(PaymentState.PRE_AUTH, 1)
+            .rank(PaymentState.PRE_AUTH_ERROR, 1)
+            .rank(PaymentState.AUTH, 2)
+            .rank(PaymentState.AUTH_ERROR, 2)
+            .end(PaymentState.AUTH)
+            .end(PaymentState.PRE_AUTH_ERROR)
+            .end(PaymentState.AUTH_ERROR)
+            // what's going on here
+            // I start off in a NEW state, it's going to stay the same and then I'm going to call PRE_AUTHORIZE event,
+            // which does not cause a state change, then preAuthAction sends the processor's answer back as an event
+            .transition(PaymentState.NEW, PaymentEvent.PRE_AUTHORIZE, PaymentState.NEW, "paymentIdGuard", "preAuthAction")
+            // then if I call the PRE_AUTH_APPROVED event it changes state to PRE_AUTH
+            .transition(PaymentState.NEW, PaymentEvent.PRE_AUTH_APPROVED, PaymentState.PRE_AUTH)
+            // or if I call PRE_AUTH_DECLINED event it changes state to PRE_AUTH_ERROR
+            .transition(PaymentState.NEW, PaymentEvent.PRE_AUTH_DECLINED, PaymentState.PRE_AUTH_ERROR)
+            // preauth to auth
+            .transition(PaymentState.PRE_AUTH, PaymentEvent.AUTHORIZE, PaymentState.PRE_AUTH, null, "authAction")
+            .transition(PaymentState.PRE_AUTH, PaymentEvent.AUTH_APPROVED, PaymentState.AUTH)
+            .transition(PaymentState.PRE_AUTH, PaymentEvent.AUTH_DECLINED, PaymentState.AUTH_ERROR)
+            .build();
+
+    private final PaymentState initial;
+    private final Set<PaymentState> states;
+    private final Set<PaymentState> ends;
+    private final List<Transition> transitions;
+    // by ordinal
+    private final int[] ranks;
+
+    private PaymentStateModel(PaymentState initial, Set<PaymentState> states, Set<PaymentState> ends,
+                              List<Transition> transitions, int[] ranks) {
+        this.initial = initial;
+        this.states = states;
+        this.ends = ends;
+        this.transitions = transitions;
+        this.ranks = ranks;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public PaymentState getInitial() {
+        return initial;
+    }
+
+    public Set<PaymentState> getStates() {
+        return states;
+    }
+
+    public Set<PaymentState> getEnds() {
+        return ends;
+    }
+
+    // in the order they were declared
+    public List<Transition> getTransitions() {
+        return transitions;
+    }
+
+    // a payment in a state of lower rank can still get to one of higher rank, never the other way round
+    public int rank(PaymentState state) {
+        return ranks[state.ordinal()];
+    }
+
+    @Value
+    public static class Transition {
+        PaymentState source;
+        PaymentEvent event;
+        PaymentState target;
+        // bean-independent names, StateMachineConfig binds them to the actual guards and actions
+        String guard;
+        String action;
+    }
+
+    public static final class Builder {
+
+        private PaymentState initial;
+        private final Set<PaymentState> ends = EnumSet.noneOf(PaymentState.class);
+        private final Map<PaymentState, Integer> ranks = new EnumMap<>(PaymentState.class);
+        private final List<Transition> transitions = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        public Builder initial(PaymentState state) {
+            this.initial = state;
+            return this;
+        }
+
+        public Builder rank(PaymentState state, int rank) {
+            ranks.put(state, rank);
+            return this;
+        }
+
+        public Builder end(PaymentState state) {
+            ends.add(state);
+            return this;
+        }
+
+        public Builder transition(PaymentState source, PaymentEvent event, PaymentState target) {
+            return transition(source, event, target, null, null);
+        }
+
+        public Builder transition(PaymentState source, PaymentEvent event, PaymentState target, String guard, String action) {
+            transitions.add(new Transition(source, event, target, guard, action));
+            return this;
+        }
+
+        public PaymentStateModel build() {
+            if (initial == null) {
+                throw new IllegalStateException("Payment state model has no initial state");
+            }
+            Set<PaymentState> unranked = EnumSet.complementOf(ranks.isEmpty()
+                    ? EnumSet.noneOf(PaymentState.class) : EnumSet.copyOf(ranks.keySet()));
+            if (!unranked.isEmpty()) {
+                throw new IllegalStateException("Payment states " + unranked + " have no rank");
+            }
+
+            Transition[][] bySourceAndEvent = new Transition[PaymentState.values().length][PaymentEvent.values().length];
+            for (Transition transition : transitions) {
+                if (bySourceAndEvent[transition.source.ordinal()][transition.event.ordinal()] != null) {
+                    throw new IllegalStateException("Duplicate transition from " + transition.source + " on " + transition.event);
+                }
+                bySourceAndEvent[transition.source.ordinal()][transition.event.ordinal()] = transition;
+
+                if (ends.contains(transition.source)) {
+                    throw new IllegalStateException("End state " + transition.source + " has a transition on " + transition.event);
+                }
+                // staying put is fine, anything else has to move up
+                int source = ranks.get(transition.source);
+                int target = ranks.get(transition.target);
+                if (transition.target != transition.source && target <= source) {
+                    throw new IllegalStateException("Transition " + transition.source + " -> " + transition.target
+                            + " on " + transition.event + " does not go to a state of higher rank");
+                }
+            }
+
+            EnumSet<PaymentState> reached = EnumSet.of(initial);
+            Deque<PaymentState> open = new ArrayDeque<>(reached);
+            while (!open.isEmpty()) {
+                PaymentState state = open.pop();
+                for (Transition transition : bySourceAndEvent[state.ordinal()]) {
+                    if (transition != null && reached.add(transition.target)) {
+                        open.push(transition.target);
+                    }
+                }
+            }
+            Set<PaymentState> unreachable = EnumSet.complementOf(reached);
+            if (!unreachable.isEmpty()) {
+                throw new IllegalStateException("Payment states " + unreachable + " cannot be reached from " + initial);
+            }
+
+            int[] rankByOrdinal = new int[PaymentState.values().length];
+            ranks.forEach((state, rank) -> rankByOrdinal[state.ordinal()] = rank);
+
+            return new PaymentStateModel(initial, Collections.unmodifiableSet(EnumSet.allOf(PaymentState.class)),
+                    Collections.unmodifiableSet(EnumSet.copyOf(ends)), List.copyOf(transitions), rankByOrdinal);
+        }
+    }
+}
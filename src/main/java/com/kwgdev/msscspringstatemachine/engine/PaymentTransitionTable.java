@@ -0,0 +1,113 @@
+package com.kwgdev.msscspringstatemachine.engine;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+
+/**
+ * Payment state machine compiled into dense [state.ordinal()][event.ordinal()] arrays.
+ *
+ * Applying an event is a couple of array lookups, no machine, Message or listener objects get built per event.
+ * Instances are immutable once built and safe to share between threads.
+ */
+public final class PaymentTransitionTable {
+
+    private static final int STATES = PaymentState.values().length;
+    private static final int EVENTS = PaymentEvent.values().length;
+
+    private final PaymentState[][] targets;
+    private final TransitionGuard[][] guards;
+    private final TransitionAction[][] actions;
+
+    private PaymentTransitionTable(PaymentState[][] targets, TransitionGuard[][] guards, TransitionAction[][] actions) {
+        this.targets = targets;
+        this.guards = guards;
+        this.actions = actions;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    // the state an event leads to from the given state, or null when the event is not accepted there
+    public PaymentState target(PaymentState source, PaymentEvent event) {
+        return targets[source.ordinal()][event.ordinal()];
+    }
+
+    /**
+     * Applies the event and any follow-up events returned by actions, telling the listener about each transition.
+     *
+     * @return the state the payment ends up in, which is the given state when the event is not accepted
+     */
+    public PaymentState fire(Long paymentId, PaymentState state, PaymentEvent event, TransitionListener listener) {
+        PaymentState current = state;
+        PaymentEvent next = event;
+
+        while (next != null) {
+            int s = current.ordinal();
+            int e = next.ordinal();
+
+            PaymentState target = targets[s][e];
+            if (target == null) {
+                break;
+            }
+
+            TransitionGuard guard = guards[s][e];
+            if (guard != null && !guard.evaluate(paymentId)) {
+                break;
+            }
+
+            // same order as the state machine - the action runs first and its follow-up event
+            // is only applied once the state change of this transition went through
+            TransitionAction action = actions[s][e];
+            PaymentEvent followUp = action != null ? action.execute(paymentId) : null;
+
+            listener.stateChanged(paymentId, current, target, next);
+
+            current = target;
+            next = followUp;
+        }
+
+        return current;
+    }
+
+    public static final class Builder {
+
+        private final PaymentState[][] targets = new PaymentState[STATES][EVENTS];
+        private final TransitionGuard[][] guards = new TransitionGuard[STATES][EVENTS];
+        private final TransitionAction[][] actions = new TransitionAction[STATES][EVENTS];
+
+        private Builder() {
+        }
+
+        public Builder transition(PaymentState source, PaymentEvent event, PaymentState target) {
+            return transition(source, event, target, null, null);
+        }
+
+        public Builder transition(PaymentState source, PaymentEvent event, PaymentState target,
+                                  TransitionGuard guard, TransitionAction action) {
+            int s = source.ordinal();
+            int e = event.ordinal();
+
+            if (targets[s][e] != null) {
+                throw new IllegalStateException("Duplicate transition from " + source + " on " + event);
+            }
+
+            targets[s][e] = target;
+            guards[s][e] = guard;
+            actions[s][e] = action;
+            return this;
+        }
+
+        public PaymentTransitionTable build() {
+            return new PaymentTransitionTable(copy(targets), copy(guards), copy(actions));
+        }
+
+        private static <T> T[][] copy(T[][] source) {
+            T[][] copy = source.clone();
+            for (int i = 0; i < copy.length; i++) {
+                copy[i] = source[i].clone();
+            }
+            return copy;
+        }
+    }
+}
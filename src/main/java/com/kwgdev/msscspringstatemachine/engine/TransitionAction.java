@@ -0,0 +1,15 @@
+package com.kwgdev.msscspringstatemachine.engine;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+
+/**
+ * Action of a PaymentTransitionTable transition.
+ *
+ * Where a Spring Statemachine action would send a follow-up event to the machine,
+ * this one returns it instead (or null when there is nothing to follow up with).
+ */
+@FunctionalInterface
+public interface TransitionAction {
+
+    PaymentEvent execute(Long paymentId);
+}
@@ -0,0 +1,10 @@
+package com.kwgdev.msscspringstatemachine.engine;
+
+/**
+ * Guard of a PaymentTransitionTable transition, the table counterpart of a Spring Statemachine Guard
+ */
+@FunctionalInterface
+public interface TransitionGuard {
+
+    boolean evaluate(Long paymentId);
+}
@@ -0,0 +1,16 @@
+package com.kwgdev.msscspringstatemachine.engine;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+
+/**
+ * Told about every transition a PaymentTransitionTable takes, before the next event is applied.
+ * This is where the table engine persists state, like PaymentStateChangeInterceptor does for the state machine.
+ */
+@FunctionalInterface
+public interface TransitionListener {
+
+    TransitionListener NOOP = (paymentId, source, target, event) -> { };
+
+    void stateChanged(Long paymentId, PaymentState source, PaymentState target, PaymentEvent event);
+}
@@ -0,0 +1,262 @@
+package com.kwgdev.msscspringstatemachine.executor;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Runs payment events on N single threaded lanes picked by hashing the paymentId, like an actor mailbox.
+ *
+ * Every event of one payment lands on the same lane, so they run one after the other in the order they were
+ * submitted without any locking, while different payments spread over the lanes and run in parallel.
+ * Lanes are bounded - once a lane is full submitters wait up to offerTimeout and then get a RejectedExecutionException.
+ *
+ * A caller that is already inside a transaction has to run the event on its own thread, where that transaction's
+ * writes are visible. It still takes its turn on the payment's lane: it waits until the lane gets to it (at most
+ * holdTimeout), runs the event while the lane waits for it, then lets the lane go on - events of one payment stay
+ * one at a time whoever sends them. Work started from a lane thread, or from a caller holding a lane that way,
+ * runs inline right away, waiting on another lane from there could deadlock.
+ *
+ * On shutdown events still queued are not run, their callers get a RejectedExecutionException.
+ *
+ * Meters: payment.executor.lane.depth (gauge per lane) and payment.executor.wait (time from submit to start).
+ */
+@Slf4j
+@Component
+public class PartitionedEventExecutor {
+
+    private final PartitionedExecutorProperties properties;
+    private final Lane[] lanes;
+    private final Timer waitTimer;
+
+    // set while a caller runs an event on its own thread holding a lane, see runHoldingLane
+    private static final ThreadLocal<Boolean> holdingLane = new ThreadLocal<>();
+
+    private volatile boolean shutdown;
+
+    public PartitionedEventExecutor(PartitionedExecutorProperties properties, MeterRegistry registry) {
+        this.properties = properties;
+
+        int count = properties.getLanes() > 0 ? properties.getLanes() : Runtime.getRuntime().availableProcessors();
+        this.lanes = new Lane[count];
+        for (int i = 0; i < count; i++) {
+            lanes[i] = new Lane(i, properties.getQueueCapacity());
+            Gauge.builder("payment.executor.lane.depth", lanes[i].queue, BlockingQueue::size)
+                    .tag("lane", Integer.toString(i))
+                    .register(registry);
+        }
+
+        this.waitTimer = Timer.builder("payment.executor.wait").register(registry);
+
+        if (properties.isEnabled()) {
+            for (Lane lane : lanes) {
+                lane.thread.start();
+            }
+        }
+    }
+
+    // runs the task on the payment's lane and waits for it, exceptions thrown by the task come back out as they are
+    public <T> T execute(Long paymentId, Supplier<T> task) {
+        if (!properties.isEnabled() || paymentId == null || isLaneThread() || holdingLane.get() != null) {
+            return task.get();
+        }
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            return runHoldingLane(paymentId, task);
+        }
+
+        try {
+            return submit(paymentId, task).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public <T> CompletableFuture<T> submit(Long paymentId, Supplier<T> task) {
+        if (!properties.isEnabled()) {
+            throw new IllegalStateException("Partitioned executor is disabled (payment.executor.enabled=false)");
+        }
+
+        if (shutdown) {
+            throw new RejectedExecutionException("Partitioned executor is shut down, rejecting event for payment " + paymentId);
+        }
+
+        Lane lane = lanes[laneOf(paymentId)];
+        CompletableFuture<T> result = new CompletableFuture<>();
+        long submitted = System.nanoTime();
+
+        Work work = new Work(() -> {
+            waitTimer.record(System.nanoTime() - submitted, TimeUnit.NANOSECONDS);
+            try {
+                result.complete(task.get());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        }, result);
+
+        try {
+            if (!lane.queue.offer(work, properties.getOfferTimeout().toNanos(), TimeUnit.NANOSECONDS)) {
+                throw new RejectedExecutionException("Lane " + lane.index + " is full (" + properties.getQueueCapacity()
+                        + " events), rejecting event for payment " + paymentId);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for room in lane " + lane.index, e);
+        }
+
+        // shutdown may have drained the lane between the check above and the offer
+        if (shutdown && lane.queue.remove(work)) {
+            work.abandon();
+        }
+
+        return result;
+    }
+
+    // runs the task on the caller's thread once the payment's lane got to it, the lane waits until it is done
+    private <T> T runHoldingLane(Long paymentId, Supplier<T> task) {
+        CompletableFuture<Void> reached = new CompletableFuture<>();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+
+        submit(paymentId, () -> {
+            reached.complete(null);
+            return done.join();
+        }).whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                reached.completeExceptionally(failure);
+            }
+        });
+
+        try {
+            reached.get(properties.getHoldTimeout().toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // the lane walks past the hold once it gets there
+            done.complete(null);
+            throw new RejectedExecutionException("Lane " + laneOf(paymentId) + " did not get to payment " + paymentId
+                    + " within " + properties.getHoldTimeout() + ", rejecting event");
+        } catch (InterruptedException e) {
+            done.complete(null);
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for lane " + laneOf(paymentId), e);
+        } catch (ExecutionException e) {
+            throw new RejectedExecutionException("Lane " + laneOf(paymentId) + " gave up payment " + paymentId, e.getCause());
+        }
+
+        holdingLane.set(Boolean.TRUE);
+        try {
+            return task.get();
+        } finally {
+            holdingLane.remove();
+            done.complete(null);
+        }
+    }
+
+    public int laneOf(Long paymentId) {
+        // spread the ids first, sequence generated ids would otherwise walk the lanes in lock step
+        long h = paymentId * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 32) % lanes.length + lanes.length) % lanes.length;
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    public boolean isLaneThread() {
+        return Thread.currentThread() instanceof LaneThread;
+    }
+
+    // stops the lanes, whoever still waits on a queued event gets a RejectedExecutionException instead of hanging
+    @PreDestroy
+    public void shutdown() {
+        shutdown = true;
+        for (Lane lane : lanes) {
+            lane.thread.interrupt();
+        }
+
+        int abandoned = 0;
+        for (Lane lane : lanes) {
+            Work work;
+            while ((work = lane.queue.poll()) != null) {
+                work.abandon();
+                abandoned++;
+            }
+        }
+        if (abandoned > 0) {
+            log.warn("Partitioned executor shut down with {} events still queued, they were not run", abandoned);
+        }
+    }
+
+    private static final class LaneThread extends Thread {
+        private LaneThread(Runnable target, String name) {
+            super(target, name);
+            setDaemon(true);
+        }
+    }
+
+    private static final class Work implements Runnable {
+        private final Runnable body;
+        private final CompletableFuture<?> result;
+
+        private Work(Runnable body, CompletableFuture<?> result) {
+            this.body = body;
+            this.result = result;
+        }
+
+        @Override
+        public void run() {
+            body.run();
+        }
+
+        private void abandon() {
+            result.completeExceptionally(new RejectedExecutionException("Partitioned executor shut down before the event ran"));
+        }
+    }
+
+    private static final class Lane implements Runnable {
+        private final int index;
+        private final BlockingQueue<Work> queue;
+        private final Thread thread;
+
+        private Lane(int index, int capacity) {
+            this.index = index;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.thread = new LaneThread(this, "payment-lane-" + index);
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Work work;
+                try {
+                    work = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                try {
+                    work.run();
+                } catch (RuntimeException e) {
+                    log.error("Unexpected failure on payment lane {}", index, e);
+                }
+            }
+        }
+    }
+}
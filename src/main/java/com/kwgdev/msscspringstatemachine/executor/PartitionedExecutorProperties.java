@@ -0,0 +1,30 @@
+package com.kwgdev.msscspringstatemachine.executor;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * Settings for the per-payment lanes events run on, see PartitionedEventExecutor
+ */
+@Data
+@ConfigurationProperties(prefix = "payment.executor")
+public class PartitionedExecutorProperties {
+
+    // false runs every event on the caller's thread, like before
+    private boolean enabled = true;
+
+    // number of single threaded lanes, 0 means one per available processor
+    private int lanes = 0;
+
+    // events waiting per lane before submitters get held up
+    private int queueCapacity = 1024;
+
+    // how long a submitter waits for room in a full lane before the event is rejected
+    private Duration offerTimeout = Duration.ofSeconds(1);
+
+    // how long an event sent from inside a transaction waits for its payment's lane to get to it before the
+    // event is rejected - it runs on the caller's thread, but only while the lane holds still for it
+    private Duration holdTimeout = Duration.ofSeconds(5);
+}
@@ -0,0 +1,25 @@
+package com.kwgdev.msscspringstatemachine.idempotency;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * Settings for events sent with an idempotency key, see PaymentEventDeduplicator
+ */
+@Data
+@ConfigurationProperties(prefix = "payment.idempotency")
+public class IdempotencyProperties {
+
+    // false ignores idempotency keys, every event is applied
+    private boolean enabled = true;
+
+    // recently seen keys kept in memory, older ones are looked up in processed_payment_event
+    private long maximumSize = 100_000;
+
+    // how long a key is remembered at all, a retry after that is applied like a new event
+    private Duration retention = Duration.ofDays(1);
+
+    private Duration purgeInterval = Duration.ofMinutes(10);
+}
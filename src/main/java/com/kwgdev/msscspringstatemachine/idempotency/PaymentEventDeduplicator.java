@@ -0,0 +1,125 @@
+package com.kwgdev.msscspringstatemachine.idempotency;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.domain.ProcessedPaymentEvent;
+import com.kwgdev.msscspringstatemachine.repository.ProcessedPaymentEventRepository;
+import com.kwgdev.msscspringstatemachine.services.AfterCommit;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.util.Optional;
+
+/**
+ * Remembers what an event sent with an idempotency key did, so a client retrying the call gets the same answer
+ * instead of a second run of the event (and of the random preAuth outcome).
+ *
+ * Keys are looked up in a bounded in-memory LRU first and in processed_payment_event (unique on the key) after that.
+ * The row is written in the transaction of the event, the LRU entry once that commits.
+ *
+ * Meters: payment.idempotency.lookups{result=memory|table|miss}.
+ */
+@Slf4j
+@Component
+public class PaymentEventDeduplicator {
+
+    private final ProcessedPaymentEventRepository processedPaymentEventRepository;
+    private final IdempotencyProperties properties;
+    private final TransactionTemplate transactionTemplate;
+    private final Cache<String, Outcome> recent;
+
+    private final Counter memoryHits;
+    private final Counter tableHits;
+    private final Counter misses;
+
+    public PaymentEventDeduplicator(ProcessedPaymentEventRepository processedPaymentEventRepository,
+                                    IdempotencyProperties properties, PlatformTransactionManager transactionManager,
+                                    MeterRegistry meterRegistry) {
+        this.processedPaymentEventRepository = processedPaymentEventRepository;
+        this.properties = properties;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.recent = Caffeine.newBuilder()
+                .maximumSize(properties.getMaximumSize())
+                .expireAfterWrite(properties.getRetention())
+                .build();
+
+        this.memoryHits = Counter.builder("payment.idempotency.lookups").tag("result", "memory").register(meterRegistry);
+        this.tableHits = Counter.builder("payment.idempotency.lookups").tag("result", "table").register(meterRegistry);
+        this.misses = Counter.builder("payment.idempotency.lookups").tag("result", "miss").register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    // state a previous event with this key left the payment in, empty when the key is new
+    // a key that was used for another payment or event is a client bug and fails the call
+    public Optional<PaymentState> recorded(String idempotencyKey, Long paymentId, PaymentEvent event) {
+        Outcome outcome = recent.getIfPresent(idempotencyKey);
+        if (outcome != null) {
+            memoryHits.increment();
+        } else {
+            outcome = processedPaymentEventRepository.findByIdempotencyKey(idempotencyKey)
+                    .map(row -> new Outcome(row.getPaymentId(), row.getEvent(), row.getState()))
+                    .orElse(null);
+            if (outcome == null) {
+                misses.increment();
+                return Optional.empty();
+            }
+            tableHits.increment();
+            recent.put(idempotencyKey, outcome);
+        }
+
+        if (!outcome.getPaymentId().equals(paymentId) || outcome.getEvent() != event) {
+            throw new IllegalArgumentException("Idempotency key " + idempotencyKey + " was already used for "
+                    + outcome.getEvent() + " on payment " + outcome.getPaymentId());
+        }
+        return Optional.of(outcome.getState());
+    }
+
+    // joins the transaction that applied the event, a rollback forgets the key again
+    // flushed right away, a key another node recorded in the meantime fails here with a DataIntegrityViolationException
+    // (the unique index) instead of at commit
+    public void record(String idempotencyKey, Long paymentId, PaymentEvent event, PaymentState state) {
+        processedPaymentEventRepository.saveAndFlush(ProcessedPaymentEvent.builder()
+                .idempotencyKey(idempotencyKey)
+                .paymentId(paymentId)
+                .event(event)
+                .state(state)
+                .processedAt(new Timestamp(System.currentTimeMillis()))
+                .build());
+
+        Outcome outcome = new Outcome(paymentId, event, state);
+        AfterCommit.run(() -> recent.put(idempotencyKey, outcome));
+    }
+
+    // keys past the retention are forgotten, the LRU drops them by itself
+    @Scheduled(fixedDelayString = "${payment.idempotency.purge-interval:PT10M}")
+    public void purge() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+
+        Timestamp before = new Timestamp(System.currentTimeMillis() - properties.getRetention().toMillis());
+        Integer purged = transactionTemplate.execute(status -> processedPaymentEventRepository.deleteProcessedBefore(before));
+        if (purged != null && purged > 0) {
+            log.debug("Purged {} idempotency keys processed before {}", purged, before);
+        }
+    }
+
+    @Value
+    private static class Outcome {
+        Long paymentId;
+        PaymentEvent event;
+        PaymentState state;
+    }
+}
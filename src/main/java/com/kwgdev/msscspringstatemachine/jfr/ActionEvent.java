@@ -0,0 +1,51 @@
+package com.kwgdev.msscspringstatemachine.jfr;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Execution of a transition action - for preAuthAction/authAction that is the call to the processor
+ * (or queueing it, when authorization is async) and sending the follow-up event.
+ */
+@Name(ActionEvent.NAME)
+@Label("Payment Action")
+@Description("Action of a payment transition executed")
+@Category({"Payment", "State Machine"})
+@StackTrace(false)
+public class ActionEvent extends Event {
+
+    public static final String NAME = "com.kwgdev.payment.Action";
+
+    @Label("Action")
+    String name;
+
+    @Label("Payment Id")
+    long paymentId;
+
+    @Label("Source State")
+    String source;
+
+    @Label("Event")
+    String event;
+
+    @Label("Target State")
+    String target;
+
+    public void end(String name, Long paymentId, PaymentState source, PaymentEvent event, PaymentState target) {
+        end();
+        if (shouldCommit()) {
+            this.name = name;
+            this.paymentId = paymentId != null ? paymentId : 0;
+            this.source = source != null ? source.name() : null;
+            this.event = event != null ? event.name() : null;
+            this.target = target != null ? target.name() : null;
+            commit();
+        }
+    }
+}
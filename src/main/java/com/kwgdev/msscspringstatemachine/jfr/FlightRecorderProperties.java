@@ -0,0 +1,15 @@
+package com.kwgdev.msscspringstatemachine.jfr;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Settings for the payment Flight Recorder events, see PaymentFlightRecorder
+ */
+@Data
+@ConfigurationProperties(prefix = "payment.jfr")
+public class FlightRecorderProperties {
+
+    // false leaves guards and actions unwrapped and creates no events, a running recording then sees none of them
+    private boolean enabled = false;
+}
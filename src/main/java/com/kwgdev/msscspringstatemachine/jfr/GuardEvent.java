@@ -0,0 +1,50 @@
+package com.kwgdev.msscspringstatemachine.jfr;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Evaluation of a transition guard
+ */
+@Name(GuardEvent.NAME)
+@Label("Payment Guard")
+@Description("Guard of a payment transition evaluated")
+@Category({"Payment", "State Machine"})
+@StackTrace(false)
+public class GuardEvent extends Event {
+
+    public static final String NAME = "com.kwgdev.payment.Guard";
+
+    @Label("Guard")
+    String name;
+
+    @Label("Payment Id")
+    long paymentId;
+
+    @Label("Source State")
+    String source;
+
+    @Label("Event")
+    String event;
+
+    @Label("Passed")
+    boolean passed;
+
+    public void end(String name, Long paymentId, PaymentState source, PaymentEvent event, boolean passed) {
+        end();
+        if (shouldCommit()) {
+            this.name = name;
+            this.paymentId = paymentId != null ? paymentId : 0;
+            this.source = source != null ? source.name() : null;
+            this.event = event != null ? event.name() : null;
+            this.passed = passed;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.kwgdev.msscspringstatemachine.jfr;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Rehydration of a payment's state machine: checking one out of StateMachinePool (building it on a miss)
+ * and resetting it to the payment's state.
+ */
+@Name(MachineCheckoutEvent.NAME)
+@Label("Payment Machine Checkout")
+@Description("State machine checked out of the pool and reset to the payment's state")
+@Category({"Payment", "State Machine"})
+@StackTrace(false)
+public class MachineCheckoutEvent extends Event {
+
+    public static final String NAME = "com.kwgdev.payment.MachineCheckout";
+
+    @Label("Payment Id")
+    long paymentId;
+
+    @Label("State")
+    String state;
+
+    public void end(Long paymentId, PaymentState state) {
+        end();
+        if (shouldCommit()) {
+            this.paymentId = paymentId != null ? paymentId : 0;
+            this.state = state.name();
+            commit();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.kwgdev.msscspringstatemachine.jfr;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.engine.TransitionAction;
+import com.kwgdev.msscspringstatemachine.engine.TransitionGuard;
+import com.kwgdev.msscspringstatemachine.services.PaymentServiceImpl;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import org.springframework.statemachine.StateContext;
+import org.springframework.statemachine.action.Action;
+import org.springframework.statemachine.guard.Guard;
+import org.springframework.stereotype.Component;
+
+/**
+ * Flight Recorder events for the phases of a payment transition: TransitionEvent around the whole event,
+ * MachineCheckoutEvent, GuardEvent, ActionEvent and PersistEvent inside it.
+ *
+ * With payment.jfr.enabled=false nothing gets wrapped and the begin methods return null, so the events cost nothing.
+ * Turned on they are still close to free until a recording enables them, record with
+ * src/main/resources/jfr/payment.jfc and break the recording down with RecordingAnalyzer.
+ */
+@Component
+public class PaymentFlightRecorder {
+
+    private final boolean enabled;
+
+    public PaymentFlightRecorder(FlightRecorderProperties properties) {
+        this.enabled = properties.isEnabled();
+
+        if (enabled) {
+            // registered up front so they show up in `jcmd JFR.configure` and the recording's metadata before the first transition
+            FlightRecorder.register(TransitionEvent.class);
+            FlightRecorder.register(MachineCheckoutEvent.class);
+            FlightRecorder.register(GuardEvent.class);
+            FlightRecorder.register(ActionEvent.class);
+            FlightRecorder.register(PersistEvent.class);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // the begin methods return the started event, or null when disabled - end it with its end(...) method
+
+    public TransitionEvent beginTransition() {
+        return enabled ? begin(new TransitionEvent()) : null;
+    }
+
+    public MachineCheckoutEvent beginCheckout() {
+        return enabled ? begin(new MachineCheckoutEvent()) : null;
+    }
+
+    public PersistEvent beginPersist() {
+        return enabled ? begin(new PersistEvent()) : null;
+    }
+
+    public Guard<PaymentState, PaymentEvent> guard(String name, Guard<PaymentState, PaymentEvent> guard) {
+        if (!enabled) {
+            return guard;
+        }
+        return context -> {
+            GuardEvent recorded = begin(new GuardEvent());
+            boolean passed = false;
+            try {
+                passed = guard.evaluate(context);
+                return passed;
+            } finally {
+                recorded.end(name, paymentId(context), source(context), context.getEvent(), passed);
+            }
+        };
+    }
+
+    public Action<PaymentState, PaymentEvent> action(String name, Action<PaymentState, PaymentEvent> action) {
+        if (!enabled) {
+            return action;
+        }
+        return context -> {
+            ActionEvent recorded = begin(new ActionEvent());
+            try {
+                action.execute(context);
+            } finally {
+                recorded.end(name, paymentId(context), source(context), context.getEvent(),
+                        context.getTarget() != null ? context.getTarget().getId() : null);
+            }
+        };
+    }
+
+    // the table only hands the payment id to guards and actions, the transition they belong to is known when wrapping
+    public TransitionGuard tableGuard(String name, PaymentState source, PaymentEvent event, TransitionGuard guard) {
+        if (!enabled) {
+            return guard;
+        }
+        return paymentId -> {
+            GuardEvent recorded = begin(new GuardEvent());
+            boolean passed = false;
+            try {
+                passed = guard.evaluate(paymentId);
+                return passed;
+            } finally {
+                recorded.end(name, paymentId, source, event, passed);
+            }
+        };
+    }
+
+    public TransitionAction tableAction(String name, PaymentState source, PaymentEvent event, PaymentState target,
+                                        TransitionAction action) {
+        if (!enabled) {
+            return action;
+        }
+        return paymentId -> {
+            ActionEvent recorded = begin(new ActionEvent());
+            try {
+                return action.execute(paymentId);
+            } finally {
+                recorded.end(name, paymentId, source, event, target);
+            }
+        };
+    }
+
+    private static <T extends Event> T begin(T event) {
+        event.begin();
+        return event;
+    }
+
+    private static Long paymentId(StateContext<PaymentState, PaymentEvent> context) {
+        return (Long) context.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER);
+    }
+
+    private static PaymentState source(StateContext<PaymentState, PaymentEvent> context) {
+        return context.getSource() != null ? context.getSource().getId() : null;
+    }
+}
@@ -0,0 +1,52 @@
+package com.kwgdev.msscspringstatemachine.jfr;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A state change written by PaymentStatePersister: the compare-and-set UPDATE plus the journal, outbox,
+ * cache, timeout and counter bookkeeping that goes with it.
+ */
+@Name(PersistEvent.NAME)
+@Label("Payment Persist")
+@Description("Payment state change written to the database")
+@Category({"Payment", "Persistence"})
+@StackTrace(false)
+public class PersistEvent extends Event {
+
+    public static final String NAME = "com.kwgdev.payment.Persist";
+
+    @Label("Payment Id")
+    long paymentId;
+
+    @Label("Source State")
+    String source;
+
+    @Label("Event")
+    String event;
+
+    @Label("Target State")
+    String target;
+
+    @Label("Updated")
+    @Description("False when the row had moved on and the transition was rejected")
+    boolean updated;
+
+    public void end(Long paymentId, PaymentState source, PaymentEvent event, PaymentState target, boolean updated) {
+        end();
+        if (shouldCommit()) {
+            this.paymentId = paymentId;
+            this.source = source.name();
+            this.event = event.name();
+            this.target = target.name();
+            this.updated = updated;
+            commit();
+        }
+    }
+}
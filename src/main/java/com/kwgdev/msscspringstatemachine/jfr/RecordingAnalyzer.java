@@ -0,0 +1,137 @@
+package com.kwgdev.msscspringstatemachine.jfr;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import lombok.Value;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Offline per-phase latency breakdown of a recording made with the payment events enabled (see jfr/payment.jfc):
+ *
+ *   java -cp target/classes com.kwgdev.msscspringstatemachine.jfr.RecordingAnalyzer recording.jfr
+ *
+ * One line per phase - transition, machine checkout, every guard and action by name, persist (and rejected
+ * persists separately) - with count, total, mean, p50, p99, max and the share of the total transition time.
+ * Phases nest inside the transition (and actions can contain the persist of the follow-up event), so the shares
+ * do not add up to 100%.
+ */
+public final class RecordingAnalyzer {
+
+    static final String TRANSITION = "transition";
+
+    private RecordingAnalyzer() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: RecordingAnalyzer <recording.jfr>");
+            System.exit(2);
+        }
+        System.out.print(format(analyze(Paths.get(args[0]))));
+    }
+
+    // transition first, the rest by total time spent in them
+    public static List<Phase> analyze(Path recording) throws IOException {
+        Map<String, Durations> durations = new LinkedHashMap<>();
+        try (RecordingFile file = new RecordingFile(recording)) {
+            while (file.hasMoreEvents()) {
+                RecordedEvent event = file.readEvent();
+                String phase = phase(event);
+                if (phase != null) {
+                    durations.computeIfAbsent(phase, name -> new Durations()).add(event.getDuration().toNanos());
+                }
+            }
+        }
+
+        List<Phase> phases = new ArrayList<>(durations.size());
+        durations.forEach((name, phaseDurations) -> phases.add(phaseDurations.toPhase(name)));
+        phases.sort(Comparator.comparing((Phase phase) -> !TRANSITION.equals(phase.getName()))
+                .thenComparing(Phase::getTotalNanos, Comparator.reverseOrder()));
+        return phases;
+    }
+
+    public static String format(List<Phase> phases) {
+        long transitionNanos = phases.stream()
+                .filter(phase -> TRANSITION.equals(phase.getName()))
+                .mapToLong(Phase::getTotalNanos)
+                .sum();
+
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-28s %9s %11s %10s %10s %10s %10s %8s%n",
+                "phase", "count", "total ms", "mean us", "p50 us", "p99 us", "max us", "share"));
+        for (Phase phase : phases) {
+            out.append(String.format("%-28s %9d %11.1f %10.1f %10.1f %10.1f %10.1f %7.1f%%%n",
+                    phase.getName(), phase.getCount(), phase.getTotalNanos() / 1e6, phase.getMeanNanos() / 1e3,
+                    phase.getP50Nanos() / 1e3, phase.getP99Nanos() / 1e3, phase.getMaxNanos() / 1e3,
+                    transitionNanos > 0 ? 100.0 * phase.getTotalNanos() / transitionNanos : 0));
+        }
+        return out.toString();
+    }
+
+    // null for events that are not ours
+    private static String phase(RecordedEvent event) {
+        switch (event.getEventType().getName()) {
+            case TransitionEvent.NAME:
+                return TRANSITION;
+            case MachineCheckoutEvent.NAME:
+                return "machine checkout";
+            case GuardEvent.NAME:
+                return "guard " + event.getString("name");
+            case ActionEvent.NAME:
+                return "action " + event.getString("name");
+            case PersistEvent.NAME:
+                return event.getBoolean("updated") ? "persist" : "persist (rejected)";
+            default:
+                return null;
+        }
+    }
+
+    @Value
+    public static class Phase {
+        String name;
+        long count;
+        long totalNanos;
+        long p50Nanos;
+        long p99Nanos;
+        long maxNanos;
+
+        public long getMeanNanos() {
+            return count > 0 ? totalNanos / count : 0;
+        }
+    }
+
+    private static final class Durations {
+        private long[] nanos = new long[1024];
+        private int count;
+
+        private void add(long duration) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count << 1);
+            }
+            nanos[count++] = duration;
+        }
+
+        private Phase toPhase(String name) {
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            long total = 0;
+            for (long duration : sorted) {
+                total += duration;
+            }
+            return new Phase(name, count, total, percentile(sorted, 0.50), percentile(sorted, 0.99), sorted[count - 1]);
+        }
+
+        private static long percentile(long[] sorted, double quantile) {
+            return sorted[(int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1)];
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.kwgdev.msscspringstatemachine.jfr;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One event sent to a payment, from handing it to the engine until the state it ended up in is known.
+ * The other payment events of the same thread fall inside it.
+ */
+@Name(TransitionEvent.NAME)
+@Label("Payment Transition")
+@Description("Event applied to a payment by the state machine or transition table engine")
+@Category({"Payment", "State Machine"})
+@StackTrace(false)
+public class TransitionEvent extends Event {
+
+    public static final String NAME = "com.kwgdev.payment.Transition";
+
+    @Label("Payment Id")
+    long paymentId;
+
+    @Label("Source State")
+    String source;
+
+    @Label("Event")
+    String event;
+
+    @Label("Target State")
+    String target;
+
+    public void end(Long paymentId, PaymentState source, PaymentEvent event, PaymentState target) {
+        end();
+        if (shouldCommit()) {
+            this.paymentId = paymentId != null ? paymentId : 0;
+            this.source = source != null ? source.name() : null;
+            this.event = event.name();
+            this.target = target != null ? target.name() : null;
+            commit();
+        }
+    }
+}
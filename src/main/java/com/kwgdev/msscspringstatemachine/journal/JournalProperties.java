@@ -0,0 +1,39 @@
+package com.kwgdev.msscspringstatemachine.journal;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+
+/**
+ * Settings for the transition journal and its snapshots, see PaymentJournal and PaymentStateIndexer
+ */
+@Data
+@ConfigurationProperties(prefix = "payment.journal")
+public class JournalProperties {
+
+    // false stops appending transitions and rebuilding the index
+    private boolean enabled = true;
+
+    // where the id -> state snapshot is written, relative to the working directory unless absolute - not under
+    // the temp dir, which gets cleaned (and is shared with whatever else runs on the host)
+    private Path snapshotDir = Paths.get("journal");
+
+    private Duration snapshotInterval = Duration.ofMinutes(5);
+
+    // rows younger than this are left for the next catch up, a transaction that appended an earlier row might
+    // still be about to commit - keep it above the longest transaction plus the clock skew between nodes
+    private Duration settleTime = Duration.ofSeconds(30);
+
+    // journal rows read per query while replaying
+    private int replayChunkSize = 10_000;
+
+    // rehydrate payments from the mapped snapshot (plus journal) instead of reading their row, the snapshot is
+    // compared with the payment table in the background after every rebuild
+    private boolean warmStart = true;
+
+    // payment rows read per query by that comparison
+    private int verifyPageSize = 10_000;
+}
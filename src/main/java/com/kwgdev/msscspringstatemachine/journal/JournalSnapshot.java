@@ -0,0 +1,158 @@
+package com.kwgdev.msscspringstatemachine.journal;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Memory-mapped snapshot of paymentId -> PaymentState together with the position (occurred_at and id) of the last
+ * journal row folded into it and the id of the database that journal is in (see PaymentJournalIdentity).
+ *
+ * Layout (little endian): magic, format version, watermark id, entry count, watermark time, database id, then the
+ * payment ids as sorted packed longs and then one state ordinal byte per id. Reading maps the file and hands out
+ * a MappedPaymentStates over it, so loading is the same few microseconds for 10k payments or 10M.
+ * Written to a temp file and moved over the old snapshot, so a crash mid write leaves the previous one intact.
+ */
+@Slf4j
+@Value
+public class JournalSnapshot {
+
+    public static final String FILE_NAME = "payment-state.snapshot";
+
+    private static final int MAGIC = 0x504A534E; // "PJSN"
+    private static final int FORMAT_VERSION = 4;
+    private static final int HEADER_SIZE = 48;
+
+    MappedPaymentStates states;
+    UUID databaseId;
+    // occurred_at (epoch millis) and id of the last journal row folded in
+    long watermarkTime;
+    long watermark;
+
+    public static void write(Path file, UUID databaseId, PaymentStateIndex index, long watermarkTime, long watermark) {
+        write(file, databaseId, MappedPaymentStates.EMPTY, index, watermarkTime, watermark);
+    }
+
+    // base and overlay merged into one file, where both have a payment the overlay wins
+    public static void write(Path file, UUID databaseId, MappedPaymentStates base, PaymentStateIndex overlay,
+                             long watermarkTime, long watermark) {
+        long[] overlayIds = new long[overlay.size()];
+        int[] n = new int[1];
+        overlay.forEach((paymentId, state) -> overlayIds[n[0]++] = paymentId);
+        Arrays.sort(overlayIds);
+
+        int count = base.size();
+        for (long paymentId : overlayIds) {
+            if (base.get(paymentId) == null) {
+                count++;
+            }
+        }
+
+        long fileSize = HEADER_SIZE + (long) count * (Long.BYTES + 1);
+        if (fileSize > Integer.MAX_VALUE) {
+            // one mapping tops out at 2 GB, that is ~238M payments
+            throw new IllegalStateException("Snapshot of " + count + " payments does not fit into one mapping");
+        }
+
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+                out.order(ByteOrder.LITTLE_ENDIAN);
+                out.putInt(0, MAGIC);
+                out.putInt(4, FORMAT_VERSION);
+                out.putLong(8, watermark);
+                out.putInt(16, count);
+                out.putLong(20, watermarkTime);
+                out.putLong(28, databaseId.getMostSignificantBits());
+                out.putLong(36, databaseId.getLeastSignificantBits());
+
+                int idsAt = HEADER_SIZE;
+                int statesAt = HEADER_SIZE + count * Long.BYTES;
+                int b = 0;
+                int o = 0;
+                // both sides are sorted, a plain merge keeps the ids sorted
+                for (int i = 0; i < count; i++) {
+                    long baseId = b < base.size() ? base.idAt(b) : Long.MAX_VALUE;
+                    long overlayId = o < overlayIds.length ? overlayIds[o] : Long.MAX_VALUE;
+
+                    long paymentId;
+                    byte state;
+                    if (overlayId <= baseId) {
+                        paymentId = overlayId;
+                        state = (byte) overlay.get(overlayId).ordinal();
+                        o++;
+                        if (overlayId == baseId) {
+                            b++;
+                        }
+                    } else {
+                        paymentId = baseId;
+                        state = (byte) base.stateAt(b).ordinal();
+                        b++;
+                    }
+
+                    out.putLong(idsAt + i * Long.BYTES, paymentId);
+                    out.put(statesAt + i, state);
+                }
+                out.force();
+            }
+
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write snapshot " + file, e);
+        }
+    }
+
+    // null when there is no (readable) snapshot yet, the caller replays the whole journal then
+    //
+    // the mapping outlives the channel and is released once the returned states are garbage
+    public static JournalSnapshot read(Path file) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE || fileSize > Integer.MAX_VALUE) {
+                throw new IllegalStateException(file + " is not a payment state snapshot");
+            }
+
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            in.order(ByteOrder.LITTLE_ENDIAN);
+            // snapshots were written big endian before the mapped format, the magic reads back reversed then
+            if (in.getInt(0) != MAGIC && in.getInt(0) != Integer.reverseBytes(MAGIC)) {
+                throw new IllegalStateException(file + " is not a payment state snapshot");
+            }
+            if (in.getInt(0) != MAGIC || in.getInt(4) != FORMAT_VERSION) {
+                log.warn("Ignoring snapshot {} in an older format, the journal is replayed instead", file);
+                return null;
+            }
+
+            long watermark = in.getLong(8);
+            int count = in.getInt(16);
+            long watermarkTime = in.getLong(20);
+            UUID databaseId = new UUID(in.getLong(28), in.getLong(36));
+            if (HEADER_SIZE + (long) count * (Long.BYTES + 1) != fileSize) {
+                throw new IllegalStateException(file + " is truncated, expected " + count + " payments");
+            }
+
+            return new JournalSnapshot(new MappedPaymentStates(in, HEADER_SIZE, count), databaseId, watermarkTime, watermark);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read snapshot " + file, e);
+        }
+    }
+}
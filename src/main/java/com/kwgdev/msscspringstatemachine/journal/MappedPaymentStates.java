@@ -0,0 +1,61 @@
+package com.kwgdev.msscspringstatemachine.journal;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read only paymentId -> PaymentState view straight on top of a memory-mapped JournalSnapshot.
+ *
+ * The ids are a sorted run of packed longs followed by one state ordinal byte per id, a lookup is a binary search
+ * over the mapped pages - nothing is copied onto the heap, the OS pages the file in as it is read.
+ * Only absolute gets are used on the buffer, so it is safe to share between threads.
+ */
+public final class MappedPaymentStates {
+
+    public static final MappedPaymentStates EMPTY = new MappedPaymentStates(null, 0, 0);
+
+    private static final PaymentState[] STATES = PaymentState.values();
+
+    private final ByteBuffer buffer;
+    private final int idsOffset;
+    private final int count;
+    private final int statesOffset;
+
+    MappedPaymentStates(ByteBuffer buffer, int idsOffset, int count) {
+        this.buffer = buffer;
+        this.idsOffset = idsOffset;
+        this.count = count;
+        this.statesOffset = idsOffset + count * Long.BYTES;
+    }
+
+    // null when the payment is not in the snapshot
+    public PaymentState get(long paymentId) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long id = idAt(mid);
+            if (id < paymentId) {
+                low = mid + 1;
+            } else if (id > paymentId) {
+                high = mid - 1;
+            } else {
+                return stateAt(mid);
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long idAt(int i) {
+        return buffer.getLong(idsOffset + i * Long.BYTES);
+    }
+
+    public PaymentState stateAt(int i) {
+        return STATES[buffer.get(statesOffset + i)];
+    }
+}
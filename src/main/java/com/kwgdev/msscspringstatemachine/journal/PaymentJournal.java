@@ -0,0 +1,92 @@
+package com.kwgdev.msscspringstatemachine.journal;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.domain.PaymentTransition;
+import com.kwgdev.msscspringstatemachine.repository.PaymentTransitionRepository;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+
+/**
+ * Appends every applied transition to the payment_transition table, inside the transaction that changed the state.
+ *
+ * The row is only persisted here, Hibernate inserts it with the rest of the flush so the inserts of a
+ * transaction (or a whole bulk chunk) go out as one JDBC batch. Once the transaction commits its transitions
+ * are handed to PaymentStateIndexer, so warm lookups see them before the journal is replayed.
+ */
+@RequiredArgsConstructor
+@Component
+public class PaymentJournal {
+
+    private final PaymentTransitionRepository paymentTransitionRepository;
+    private final PaymentStateIndexer paymentStateIndexer;
+    private final JournalProperties properties;
+
+    public void append(Long paymentId, PaymentState source, PaymentState target, PaymentEvent event) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+
+        paymentTransitionRepository.save(PaymentTransition.builder()
+                .paymentId(paymentId)
+                .source(source)
+                .target(target)
+                .event(event)
+                .occurredAt(new Timestamp(System.currentTimeMillis()))
+                .build());
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            paymentStateIndexer.committed(new long[]{paymentId}, new byte[]{(byte) target.ordinal()}, 1);
+            return;
+        }
+
+        // one synchronization per transaction collects all of its transitions, a bulk chunk appends hundreds
+        Committed committed = (Committed) TransactionSynchronizationManager.getResource(this);
+        if (committed == null) {
+            committed = new Committed();
+            TransactionSynchronizationManager.bindResource(this, committed);
+            TransactionSynchronizationManager.registerSynchronization(committed);
+        }
+        committed.add(paymentId, target);
+    }
+
+    private final class Committed implements TransactionSynchronization {
+        private long[] paymentIds = new long[8];
+        private byte[] targets = new byte[8];
+        private int count;
+
+        private void add(long paymentId, PaymentState target) {
+            if (count == paymentIds.length) {
+                paymentIds = Arrays.copyOf(paymentIds, count << 1);
+                targets = Arrays.copyOf(targets, count << 1);
+            }
+            paymentIds[count] = paymentId;
+            targets[count] = (byte) target.ordinal();
+            count++;
+        }
+
+        // a REQUIRES_NEW transaction inside ours collects its own transitions
+        @Override
+        public void suspend() {
+            TransactionSynchronizationManager.unbindResource(PaymentJournal.this);
+        }
+
+        @Override
+        public void resume() {
+            TransactionSynchronizationManager.bindResource(PaymentJournal.this, this);
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(PaymentJournal.this);
+            if (status == STATUS_COMMITTED) {
+                paymentStateIndexer.committed(paymentIds, targets, count);
+            }
+        }
+    }
+}
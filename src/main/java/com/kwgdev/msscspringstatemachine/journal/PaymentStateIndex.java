@@ -0,0 +1,169 @@
+package com.kwgdev.msscspringstatemachine.journal;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+
+import java.util.Arrays;
+
+/**
+ * paymentId -> PaymentState map on primitive arrays (open addressing, linear probing).
+ *
+ * Nine bytes per payment and no boxing, so replaying millions of transitions into it is just array writes.
+ * Not thread safe by itself, PaymentStateIndexer guards it.
+ */
+public class PaymentStateIndex {
+
+    private static final PaymentState[] STATES = PaymentState.values();
+    private static final float LOAD_FACTOR = 0.6f;
+
+    // 0 marks a free slot, the (never generated) id 0 is kept aside
+    private long[] keys;
+    private byte[] values;
+    private int size;
+    private int resizeAt;
+
+    private boolean hasZero;
+    private byte zeroValue;
+
+    public PaymentStateIndex() {
+        this(1024);
+    }
+
+    public PaymentStateIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    public void put(long paymentId, PaymentState state) {
+        if (paymentId == 0) {
+            if (!hasZero) {
+                hasZero = true;
+                size++;
+            }
+            zeroValue = (byte) state.ordinal();
+            return;
+        }
+
+        int mask = keys.length - 1;
+        int slot = slot(paymentId, mask);
+        while (keys[slot] != 0) {
+            if (keys[slot] == paymentId) {
+                values[slot] = (byte) state.ordinal();
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = paymentId;
+        values[slot] = (byte) state.ordinal();
+        if (++size > resizeAt) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    // null when the payment has no transition yet
+    public PaymentState get(long paymentId) {
+        if (paymentId == 0) {
+            return hasZero ? STATES[zeroValue] : null;
+        }
+
+        int mask = keys.length - 1;
+        int slot = slot(paymentId, mask);
+        while (keys[slot] != 0) {
+            if (keys[slot] == paymentId) {
+                return STATES[values[slot]];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    // backward shift deletion, the entries after the removed one that probed past it move up so lookups still find them
+    public void remove(long paymentId) {
+        if (paymentId == 0) {
+            if (hasZero) {
+                hasZero = false;
+                size--;
+            }
+            return;
+        }
+
+        int mask = keys.length - 1;
+        int slot = slot(paymentId, mask);
+        while (keys[slot] != paymentId) {
+            if (keys[slot] == 0) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (keys[next] != 0) {
+            int home = slot(keys[next], mask);
+            // the entry at next may fill the gap only if its home slot is not between the gap and next (cyclically)
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[gap] = 0;
+        size--;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEach(EntryConsumer consumer) {
+        if (hasZero) {
+            consumer.accept(0, STATES[zeroValue]);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                consumer.accept(keys[i], STATES[values[i]]);
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        size = 0;
+        hasZero = false;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        byte[] oldValues = values;
+        allocate(capacity);
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slot(oldKeys[i], mask);
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new byte[capacity];
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int slot(long paymentId, int mask) {
+        long h = paymentId * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(long paymentId, PaymentState state);
+    }
+}
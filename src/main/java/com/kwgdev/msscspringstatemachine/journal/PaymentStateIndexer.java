@@ -0,0 +1,500 @@
+package com.kwgdev.msscspringstatemachine.journal;
+
+import com.kwgdev.msscspringstatemachine.cluster.PartitionsAcquiredEvent;
+import com.kwgdev.msscspringstatemachine.cluster.PaymentPartitionOwnership;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.engine.PaymentStateModel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps paymentId -> PaymentState rebuilt from the journal: last snapshot plus every journal row after its watermark.
+ * A snapshot is only used when it was taken of this database (PaymentJournalIdentity) and its watermark row is still
+ * in the journal - anything else (another database, one restored from a backup older than the snapshot) replays the
+ * whole journal instead.
+ *
+ * Three layers, newest first: states of transitions committed since startup (or found by the verification),
+ * the journal folded in after the snapshot's watermark, and the memory-mapped snapshot itself.
+ * On startup the snapshot is mapped and the tail replayed, after that the index is caught up and snapshotted
+ * every snapshotInterval. Rows are folded in (occurred_at, id) order and catching up stops at the first row that
+ * is younger than settleTime, so a transaction that commits late is not skipped over. Not in id order: journal ids
+ * come in pooled blocks, with several nodes writing (payment.cluster.enabled) a node can insert a low id from its
+ * block long after other nodes' higher ids - occurred_at is taken just before the commit, settleTime only has to
+ * cover the longest transaction plus the clock skew between the nodes.
+ *
+ * States only ever move to a higher rank (see PaymentStateModel), so folding a row never takes a payment back to an earlier
+ * state than the one we know, and the snapshot keeps the recent layer too (it wins over the others, as in lookups) -
+ * corrections made by the verification survive a restart.
+ *
+ * With warm-start on, PaymentStateCache takes states from here instead of reading the payment row, while a
+ * background pass compares the snapshot with the payment table and corrects what it finds.
+ *
+ * In a cluster another node moves the payments of partitions it owns, and we only learn about that from its journal
+ * rows. When this node acquires partitions (PartitionsAcquiredEvent) their payments are not warm-started until the
+ * journal has been folded in past the moment of the acquisition, settleTime later - except for payments this node
+ * has committed a transition for since, those it knows again.
+ * Meters: payment.snapshot.verify.checked and payment.snapshot.verify.mismatches.
+ */
+@Slf4j
+@Component
+public class PaymentStateIndexer {
+
+    private static final PaymentState[] STATES = PaymentState.values();
+
+    // walks ix_payment_transition_occurred
+    private static final String TAIL_QUERY = "select id, payment_id, target, occurred_at from payment_transition " +
+            "where occurred_at > ? or (occurred_at = ? and id > ?) order by occurred_at, id limit ?";
+
+    private static final String PAYMENT_PAGE_QUERY = "select id, state from payment where id > ? order by id limit ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final JournalProperties properties;
+
+    // read (or created) once, the row never changes
+    private volatile UUID databaseId;
+
+    private MappedPaymentStates snapshot = MappedPaymentStates.EMPTY;
+    private PaymentStateIndex index = new PaymentStateIndex();
+    private PaymentStateIndex recent = new PaymentStateIndex();
+    // position of the last row folded in: its occurred_at (epoch millis) and id
+    private long watermarkTime;
+    private long watermark;
+    // every journal row that occurred up to this time (epoch millis) has been folded in
+    private volatile long foldedThrough;
+    private volatile boolean warm;
+
+    // payments whose compare-and-set failed, whatever we have for them may be stale until they commit again here
+    private final Set<Long> distrusted = ConcurrentHashMap.newKeySet();
+
+    // by partition, when this node acquired it (0 when trusted) - another node moved its payments until then
+    // replaced under acquisitionLock, not the indexer's lock, a heartbeat must not wait for a catch up
+    private volatile long[] acquiredAt = new long[0];
+    private final Object acquisitionLock = new Object();
+    // payments in such partitions that committed on this node after the acquisition
+    private final Set<Long> recommitted = ConcurrentHashMap.newKeySet();
+
+    private final ExecutorService verifier = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "payment-snapshot-verify");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Future<?> verification;
+
+    private final ScheduledExecutorService catchUpTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "payment-journal-catch-up");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Counter verified;
+    private final Counter mismatches;
+
+    public PaymentStateIndexer(JdbcTemplate jdbcTemplate, JournalProperties properties, MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.properties = properties;
+        this.verified = meterRegistry.counter("payment.snapshot.verify.checked");
+        this.mismatches = meterRegistry.counter("payment.snapshot.verify.mismatches");
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void rebuild() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        snapshot = MappedPaymentStates.EMPTY;
+        index = new PaymentStateIndex();
+        recent = new PaymentStateIndex();
+        watermarkTime = 0;
+        watermark = 0;
+
+        JournalSnapshot read = JournalSnapshot.read(snapshotFile());
+        long mapped = System.nanoTime();
+        if (read != null) {
+            if (!read.getDatabaseId().equals(getDatabaseId())) {
+                log.warn("Ignoring snapshot {}, it was taken of database {} and this is {}",
+                        snapshotFile(), read.getDatabaseId(), getDatabaseId());
+            } else if (!isInJournal(read.getWatermarkTime(), read.getWatermark())) {
+                // same database but not the journal the snapshot saw, e.g. restored from a backup since
+                log.warn("Ignoring snapshot {}, its watermark row {} at {} is not in the journal",
+                        snapshotFile(), read.getWatermark(), new Timestamp(read.getWatermarkTime()));
+            } else {
+                snapshot = read.getStates();
+                watermarkTime = read.getWatermarkTime();
+                watermark = read.getWatermark();
+            }
+        }
+
+        long replayed = catchUp();
+        peekTail();
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        log.info("Rebuilt state of {} payments (snapshot of {} mapped in {} us, {} journal rows replayed) in {} ms, {} rows/s",
+                size(), snapshot.size(), TimeUnit.NANOSECONDS.toMicros(mapped - start), replayed, millis, replayed * 1000 / millis);
+
+        warm = properties.isWarmStart();
+        if (warm) {
+            if (verification != null) {
+                verification.cancel(true);
+            }
+            verification = verifier.submit(this::verify);
+        }
+    }
+
+    // the three layers merged into a new file, which is then mapped in place of the old one - the recent layer stays
+    // too, whatever it has is at least as new as what the file now says
+    @Scheduled(fixedDelayString = "${payment.journal.snapshot-interval:PT5M}",
+            initialDelayString = "${payment.journal.snapshot-interval:PT5M}")
+    public synchronized void snapshot() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+
+        catchUp();
+        recent.forEach(index::put);
+        JournalSnapshot.write(snapshotFile(), getDatabaseId(), snapshot, index, watermarkTime, watermark);
+        snapshot = JournalSnapshot.read(snapshotFile()).getStates();
+        index.clear();
+        log.debug("Wrote snapshot of {} payments at watermark {}", snapshot.size(), watermark);
+    }
+
+    // folds settled journal rows after the watermark into the index, returns how many
+    public synchronized long catchUp() {
+        if (!properties.isEnabled()) {
+            return 0;
+        }
+
+        long settled = System.currentTimeMillis() - properties.getSettleTime().toMillis();
+        int chunk = properties.getReplayChunkSize();
+        long replayed = 0;
+
+        while (true) {
+            Replay replay = new Replay(settled);
+            Timestamp after = new Timestamp(watermarkTime);
+            jdbcTemplate.query(TAIL_QUERY, replay, after, after, watermark, chunk);
+            replayed += replay.rows;
+
+            if (replay.unsettled || replay.rows < chunk) {
+                // whatever occurred before settled is in now, late commits included
+                foldedThrough = settled;
+                trustCaughtUpPartitions();
+                return replayed;
+            }
+        }
+    }
+
+    public synchronized PaymentState getState(long paymentId) {
+        PaymentState state = recent.get(paymentId);
+        if (state == null) {
+            state = index.get(paymentId);
+        }
+        return state != null ? state : snapshot.get(paymentId);
+    }
+
+    // state to rehydrate a machine with instead of reading the row, null when the database has to be asked
+    public PaymentState getWarmState(long paymentId) {
+        if (!warm || distrusted.contains(paymentId) || isInAcquiredPartition(paymentId)) {
+            return null;
+        }
+        return getState(paymentId);
+    }
+
+    // transitions committed on this node, called by PaymentJournal after their transaction commits
+    public synchronized void committed(long[] paymentIds, byte[] targets, int count) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            recent.put(paymentIds[i], STATES[targets[i]]);
+            if (!distrusted.isEmpty()) {
+                distrusted.remove(paymentIds[i]);
+            }
+            long[] acquired = acquiredAt;
+            if (acquired.length > 0 && acquired[PaymentPartitionOwnership.partitionOf(paymentIds[i], acquired.length)] != 0) {
+                recommitted.add(paymentIds[i]);
+            }
+        }
+    }
+
+    // a compare-and-set on the payment failed, so it moved without us seeing it
+    public void conflicted(long paymentId) {
+        if (warm) {
+            distrusted.add(paymentId);
+        }
+    }
+
+    // another node has been moving these payments, what we know of them is only as good as the journal we folded in
+    // - catch up with what it wrote now, and again once its last transactions have settled (off the heartbeat
+    // thread, this runs before the node takes events for the partitions)
+    @EventListener
+    public void partitionsAcquired(PartitionsAcquiredEvent event) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        synchronized (acquisitionLock) {
+            long[] acquired = acquiredAt.length == event.getPartitionCount()
+                    ? acquiredAt.clone() : new long[event.getPartitionCount()];
+            event.getPartitions().stream().forEach(partition -> acquired[partition] = now);
+            acquiredAt = acquired;
+        }
+
+        catchUpTimer.execute(this::catchUpQuietly);
+        catchUpTimer.schedule(this::catchUpQuietly, properties.getSettleTime().toMillis() + 1, TimeUnit.MILLISECONDS);
+    }
+
+    // payments in any of the layers, each counted once
+    public synchronized int size() {
+        int[] size = {snapshot.size()};
+        index.forEach((paymentId, state) -> {
+            if (snapshot.get(paymentId) == null) {
+                size[0]++;
+            }
+        });
+        recent.forEach((paymentId, state) -> {
+            if (index.get(paymentId) == null && snapshot.get(paymentId) == null) {
+                size[0]++;
+            }
+        });
+        return size[0];
+    }
+
+    public synchronized long getWatermark() {
+        return watermark;
+    }
+
+    public synchronized long getWatermarkTime() {
+        return watermarkTime;
+    }
+
+    // random id of the database the journal is in, whichever node starts first against it creates it
+    public UUID getDatabaseId() {
+        if (databaseId == null) {
+            List<String> ids = jdbcTemplate.queryForList("select database_id from payment_journal_identity", String.class);
+            if (ids.isEmpty()) {
+                try {
+                    jdbcTemplate.update("insert into payment_journal_identity (id, database_id) values (1, ?)",
+                            UUID.randomUUID().toString());
+                } catch (DataIntegrityViolationException e) {
+                    // another node got there first, its id is the one
+                }
+                ids = jdbcTemplate.queryForList("select database_id from payment_journal_identity", String.class);
+            }
+            databaseId = UUID.fromString(ids.get(0));
+        }
+        return databaseId;
+    }
+
+    public Path snapshotFile() {
+        return properties.getSnapshotDir().resolve(JournalSnapshot.FILE_NAME);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        verifier.shutdownNow();
+        catchUpTimer.shutdownNow();
+    }
+
+    // a snapshot that has folded nothing in yet has no watermark row to look for
+    private boolean isInJournal(long watermarkTime, long watermark) {
+        if (watermarkTime == 0 && watermark == 0) {
+            return true;
+        }
+        List<Timestamp> occurredAt = jdbcTemplate.queryForList("select occurred_at from payment_transition where id = ?",
+                Timestamp.class, watermark);
+        return !occurredAt.isEmpty() && occurredAt.get(0).getTime() == watermarkTime;
+    }
+
+    private void catchUpQuietly() {
+        try {
+            catchUp();
+        } catch (RuntimeException e) {
+            // the acquired partitions stay distrusted until the next catch up (the snapshot) gets through
+            log.warn("Catching up with the journal after acquiring partitions failed", e);
+        }
+    }
+
+    private boolean isInAcquiredPartition(long paymentId) {
+        long[] acquired = acquiredAt;
+        return acquired.length > 0 && acquired[PaymentPartitionOwnership.partitionOf(paymentId, acquired.length)] > foldedThrough
+                && !recommitted.contains(paymentId);
+    }
+
+    private void trustCaughtUpPartitions() {
+        synchronized (acquisitionLock) {
+            if (acquiredAt.length == 0) {
+                return;
+            }
+            for (long acquired : acquiredAt) {
+                if (acquired > foldedThrough) {
+                    return;
+                }
+            }
+            acquiredAt = new long[0];
+            recommitted.clear();
+        }
+    }
+
+    // rows after the unsettled one are not folded in (the watermark cannot pass a gap), but they are the newest
+    // states there are, so they go into the recent layer for warm lookups
+    private void peekTail() {
+        int chunk = properties.getReplayChunkSize();
+        long[] last = {watermarkTime, watermark};
+        while (true) {
+            int[] rows = {0};
+            Timestamp after = new Timestamp(last[0]);
+            jdbcTemplate.query(TAIL_QUERY, rs -> {
+                recent.put(rs.getLong(2), PaymentState.valueOf(rs.getString(3)));
+                last[0] = rs.getTimestamp(4).getTime();
+                last[1] = rs.getLong(1);
+                rows[0]++;
+            }, after, after, last[1], chunk);
+
+            if (rows[0] < chunk) {
+                return;
+            }
+        }
+    }
+
+    // walks the payment table in id order and corrects every payment the layers disagree on, returns how many
+    // runs in the background after a rebuild with warm-start on
+    //
+    // the table is right - unless we saw a transition to a later state commit on this node since (the recent layer),
+    // the page was read before that one then. Whatever else disagrees, ahead of the table or behind it, is taken from
+    // the row: the snapshot and the folded journal only ever learn about other nodes' rows settleTime late
+    public long verify() {
+        int pageSize = properties.getVerifyPageSize();
+        long after = 0;
+        long checked = 0;
+        long corrected = 0;
+        long start = System.nanoTime();
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<PaymentRow> page = jdbcTemplate.query(PAYMENT_PAGE_QUERY,
+                        (rs, i) -> new PaymentRow(rs.getLong(1), PaymentState.valueOf(rs.getString(2))), after, pageSize);
+
+                synchronized (this) {
+                    for (PaymentRow row : page) {
+                        long paymentId = row.getId();
+                        PaymentState actual = row.getState();
+                        PaymentState known = getState(paymentId);
+                        PaymentState committed = recent.get(paymentId);
+
+                        if (known == null) {
+                            // never transitioned, not in the journal - now it is in the index and the next snapshot
+                            index.put(paymentId, actual);
+                        } else if (actual != known && (committed == null || rank(committed) <= rank(actual))) {
+                            recent.put(paymentId, actual);
+                            mismatches.increment();
+                            corrected++;
+                        }
+                    }
+                }
+
+                checked += page.size();
+                verified.increment(page.size());
+                if (page.size() < pageSize) {
+                    break;
+                }
+                after = page.get(page.size() - 1).getId();
+            }
+        } catch (RuntimeException e) {
+            log.warn("Verifying the payment state snapshot stopped after {} payments", checked, e);
+            return corrected;
+        }
+
+        log.info("Verified {} payment states against the payment table in {} ms, {} corrected",
+                checked, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), corrected);
+        return corrected;
+    }
+
+    // puts the state into the index unless we already know the payment in a later state
+    private void fold(long paymentId, PaymentState state) {
+        PaymentState known = index.get(paymentId);
+        if (known == null) {
+            known = snapshot.get(paymentId);
+        }
+        if (known == null || rank(state) >= rank(known)) {
+            index.put(paymentId, state);
+        }
+    }
+
+    private static int rank(PaymentState state) {
+        return PaymentStateModel.PAYMENT.rank(state);
+    }
+
+    @Value
+    private static class PaymentRow {
+        long id;
+        PaymentState state;
+    }
+
+    // applies rows in (occurred_at, id) order until the first one that is too young to be trusted
+    private final class Replay implements RowCallbackHandler {
+        private final long settled;
+        private long rows;
+        private boolean unsettled;
+
+        private Replay(long settled) {
+            this.settled = settled;
+        }
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+            if (unsettled) {
+                return;
+            }
+
+            Timestamp occurredAt = rs.getTimestamp(4);
+            if (occurredAt.getTime() > settled) {
+                unsettled = true;
+                return;
+            }
+
+            long id = rs.getLong(1);
+            long paymentId = rs.getLong(2);
+            PaymentState target = PaymentState.valueOf(rs.getString(3));
+            // once the journal has caught up with what we saw commit the recent entry is not needed anymore,
+            // states never go back so a later row cannot fold in an older state after this one - an entry behind
+            // the row is from before another node moved the payment on. The row replaces what the index has as it
+            // is, the entry may have been the verification taking back a state the snapshot had wrong
+            PaymentState seen = recent.get(paymentId);
+            if (seen != null && rank(seen) <= rank(target)) {
+                recent.remove(paymentId);
+                index.put(paymentId, target);
+            } else {
+                fold(paymentId, target);
+            }
+            watermarkTime = occurredAt.getTime();
+            watermark = id;
+            rows++;
+        }
+    }
+}
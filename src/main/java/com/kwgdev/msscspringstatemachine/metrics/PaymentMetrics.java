@@ -0,0 +1,174 @@
+package com.kwgdev.msscspringstatemachine.metrics;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.engine.TransitionAction;
+import com.kwgdev.msscspringstatemachine.engine.TransitionGuard;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.statemachine.StateContext;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.action.Action;
+import org.springframework.statemachine.guard.Guard;
+import org.springframework.statemachine.listener.StateMachineListener;
+import org.springframework.statemachine.listener.StateMachineListenerAdapter;
+import org.springframework.statemachine.state.State;
+import org.springframework.statemachine.support.StateMachineInterceptor;
+import org.springframework.statemachine.support.StateMachineInterceptorAdapter;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer meters for the payment state machine, exposed through the actuator metrics endpoint:
+ *
+ * payment.transition - timer per transition, tagged source/target/event
+ * payment.guard.rejections - counter per guard
+ * payment.action - timer per action
+ * payment.state.persist - timer of the state write, tagged outcome (updated/rejected)
+ * payment.statemachine.errors - counter of state machine errors
+ *
+ * Every tag value comes from a small fixed set (enum constants, guard and action names) so the number of series stays
+ * bounded. Transition timers are looked up through an array indexed by ordinals, recording does not allocate.
+ */
+@Slf4j
+@Component
+public class PaymentMetrics {
+
+    private static final PaymentState[] STATES = PaymentState.values();
+    private static final PaymentEvent[] EVENTS = PaymentEvent.values();
+
+    private final MeterRegistry registry;
+
+    // [source][target][event], filled in on first use - a racing double registration returns the same timer
+    private final Timer[][][] transitionTimers = new Timer[STATES.length][STATES.length][EVENTS.length];
+
+    private final Timer persistUpdated;
+    private final Timer persistRejected;
+    private final Counter stateMachineErrors;
+
+    // start of the transition currently running on this thread, the state machine runs one transition at a time
+    // per thread (events sent from actions are queued until the running transition is done)
+    private final ThreadLocal<long[]> transitionStart = ThreadLocal.withInitial(() -> new long[1]);
+
+    public PaymentMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.persistUpdated = Timer.builder("payment.state.persist").tag("outcome", "updated").register(registry);
+        this.persistRejected = Timer.builder("payment.state.persist").tag("outcome", "rejected").register(registry);
+        this.stateMachineErrors = Counter.builder("payment.statemachine.errors").register(registry);
+    }
+
+    public void recordTransition(PaymentState source, PaymentState target, PaymentEvent event, long nanos) {
+        transitionTimer(source, target, event).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordPersist(boolean updated, long nanos) {
+        (updated ? persistUpdated : persistRejected).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public Guard<PaymentState, PaymentEvent> counted(String name, Guard<PaymentState, PaymentEvent> guard) {
+        Counter rejections = guardRejections(name);
+        return context -> {
+            boolean passed = guard.evaluate(context);
+            if (!passed) {
+                rejections.increment();
+            }
+            return passed;
+        };
+    }
+
+    public TransitionGuard countedTableGuard(String name, TransitionGuard guard) {
+        Counter rejections = guardRejections(name);
+        return paymentId -> {
+            boolean passed = guard.evaluate(paymentId);
+            if (!passed) {
+                rejections.increment();
+            }
+            return passed;
+        };
+    }
+
+    public Action<PaymentState, PaymentEvent> timed(String name, Action<PaymentState, PaymentEvent> action) {
+        Timer timer = actionTimer(name);
+        return context -> {
+            long start = System.nanoTime();
+            try {
+                action.execute(context);
+            } finally {
+                timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        };
+    }
+
+    public TransitionAction timedTableAction(String name, TransitionAction action) {
+        Timer timer = actionTimer(name);
+        return paymentId -> {
+            long start = System.nanoTime();
+            try {
+                return action.execute(paymentId);
+            } finally {
+                timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        };
+    }
+
+    // added to every pooled machine, times each transition from guard to state change
+    public StateMachineInterceptor<PaymentState, PaymentEvent> transitionInterceptor() {
+        return new StateMachineInterceptorAdapter<>() {
+            @Override
+            public StateContext<PaymentState, PaymentEvent> preTransition(StateContext<PaymentState, PaymentEvent> stateContext) {
+                transitionStart.get()[0] = System.nanoTime();
+                return stateContext;
+            }
+
+            @Override
+            public StateContext<PaymentState, PaymentEvent> postTransition(StateContext<PaymentState, PaymentEvent> stateContext) {
+                if (stateContext.getSource() != null && stateContext.getTarget() != null && stateContext.getEvent() != null) {
+                    recordTransition(stateContext.getSource().getId(), stateContext.getTarget().getId(), stateContext.getEvent(),
+                            System.nanoTime() - transitionStart.get()[0]);
+                }
+                return stateContext;
+            }
+        };
+    }
+
+    // replaces the String.format logging listener - nothing gets built unless debug logging is on
+    public StateMachineListener<PaymentState, PaymentEvent> listener() {
+        return new StateMachineListenerAdapter<>() {
+            @Override
+            public void stateChanged(State<PaymentState, PaymentEvent> from, State<PaymentState, PaymentEvent> to) {
+                if (log.isDebugEnabled()) {
+                    log.debug("stateChanged(from: {}, to: {})", from != null ? from.getId() : null, to.getId());
+                }
+            }
+
+            @Override
+            public void stateMachineError(StateMachine<PaymentState, PaymentEvent> stateMachine, Exception exception) {
+                stateMachineErrors.increment();
+            }
+        };
+    }
+
+    private Timer transitionTimer(PaymentState source, PaymentState target, PaymentEvent event) {
+        Timer timer = transitionTimers[source.ordinal()][target.ordinal()][event.ordinal()];
+        if (timer == null) {
+            timer = Timer.builder("payment.transition")
+                    .tag("source", source.name())
+                    .tag("target", target.name())
+                    .tag("event", event.name())
+                    .register(registry);
+            transitionTimers[source.ordinal()][target.ordinal()][event.ordinal()] = timer;
+        }
+        return timer;
+    }
+
+    private Counter guardRejections(String guard) {
+        return Counter.builder("payment.guard.rejections").tag("guard", guard).register(registry);
+    }
+
+    private Timer actionTimer(String action) {
+        return Timer.builder("payment.action").tag("action", action).register(registry);
+    }
+}
@@ -0,0 +1,21 @@
+package com.kwgdev.msscspringstatemachine.outbox;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+
+/**
+ * Writes notifications to the log, the sink used when no OutboxSink bean is configured - nothing is kept in memory,
+ * and nothing is delivered anywhere either
+ */
+@Slf4j
+public class LoggingOutboxSink implements OutboxSink {
+
+    @Override
+    public void publish(List<PaymentNotification> notifications) {
+        for (PaymentNotification notification : notifications) {
+            log.info("Payment {} reached {} through {} (notification {})", notification.getPaymentId(),
+                    notification.getState(), notification.getEvent(), notification.getId());
+        }
+    }
+}
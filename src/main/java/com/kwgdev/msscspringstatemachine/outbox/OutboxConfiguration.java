@@ -0,0 +1,19 @@
+package com.kwgdev.msscspringstatemachine.outbox;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Slf4j
+@Configuration
+public class OutboxConfiguration {
+
+    // real deployments declare their own OutboxSink bean, until then the relayed notifications only go to the log
+    @Bean
+    @ConditionalOnMissingBean(OutboxSink.class)
+    public LoggingOutboxSink loggingOutboxSink() {
+        log.warn("No OutboxSink configured, payment notifications are only logged");
+        return new LoggingOutboxSink();
+    }
+}
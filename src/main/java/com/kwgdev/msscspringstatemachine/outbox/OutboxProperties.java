@@ -0,0 +1,42 @@
+package com.kwgdev.msscspringstatemachine.outbox;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Settings for the payment notification outbox, see PaymentOutbox and OutboxRelay
+ */
+@Data
+@ConfigurationProperties(prefix = "payment.outbox")
+public class OutboxProperties {
+
+    public enum ClaimStrategy {
+        // conditional UPDATE that stamps a claim token on the oldest free rows, works on every database incl. H2
+        UPDATE,
+        // SELECT ... FOR UPDATE SKIP LOCKED inside the publishing transaction (PostgreSQL, MySQL 8, Oracle)
+        SKIP_LOCKED
+    }
+
+    private boolean enabled = true;
+
+    // states that produce a notification
+    private Set<PaymentState> states = EnumSet.of(PaymentState.AUTH, PaymentState.AUTH_ERROR, PaymentState.PRE_AUTH_ERROR);
+
+    private ClaimStrategy claimStrategy = ClaimStrategy.UPDATE;
+
+    // rows claimed and handed to the sink at once
+    private int batchSize = 200;
+
+    // batches relayed per poll at most, so one poll does not run forever behind a busy writer
+    private int maxBatchesPerPoll = 50;
+
+    private Duration pollInterval = Duration.ofSeconds(1);
+
+    // how long a claim stays exclusive, a relay that died with rows claimed gets them retried after this
+    private Duration leaseTime = Duration.ofSeconds(30);
+}
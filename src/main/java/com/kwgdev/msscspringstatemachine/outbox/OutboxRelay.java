@@ -0,0 +1,160 @@
+package com.kwgdev.msscspringstatemachine.outbox;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Polls the outbox, claims the oldest rows a batch at a time, hands them to the OutboxSink and deletes them.
+ *
+ * Any number of relays (threads or instances) can run side by side, a row is only ever claimed by one of them
+ * at a time. Delivery is at-least-once: a relay that dies between publishing and deleting leaves its rows to be
+ * claimed again when the lease runs out.
+ *
+ * Meters: payment.outbox.relay.batch (rows per batch), payment.outbox.published / payment.outbox.failures
+ * (rate gives throughput) and payment.outbox.lag (written to published).
+ */
+@Slf4j
+@Component
+public class OutboxRelay {
+
+    private static final String COLUMNS = "id, payment_id, state, event, created_at";
+
+    // the oldest free rows (never claimed, or lease over) get our claim token, the outer condition is checked again
+    // on the locked row so a relay that picked the same rows at the same time cannot take them over
+    private static final String CLAIM = "update payment_outbox_message set claimed_by = ?, claimed_until = ? " +
+            "where id in (select id from payment_outbox_message where claimed_until is null or claimed_until < ? " +
+            "order by id limit ?) and (claimed_until is null or claimed_until < ?)";
+    private static final String SELECT_CLAIMED = "select " + COLUMNS + " from payment_outbox_message " +
+            "where claimed_by = ? order by id";
+    private static final String DELETE_CLAIMED = "delete from payment_outbox_message where claimed_by = ?";
+
+    private static final String SELECT_SKIP_LOCKED = "select " + COLUMNS + " from payment_outbox_message " +
+            "order by id limit ? for update skip locked";
+    private static final String DELETE_BY_ID = "delete from payment_outbox_message where id = ?";
+
+    private static final RowMapper<PaymentNotification> NOTIFICATION = (rs, row) -> new PaymentNotification(
+            rs.getLong(1),
+            rs.getLong(2),
+            PaymentState.valueOf(rs.getString(3)),
+            rs.getString(4) != null ? PaymentEvent.valueOf(rs.getString(4)) : null,
+            rs.getTimestamp(5).toInstant());
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final OutboxSink outboxSink;
+    private final OutboxProperties properties;
+
+    private final String relayId = UUID.randomUUID().toString();
+    private final AtomicLong claims = new AtomicLong();
+
+    private final DistributionSummary batchSizes;
+    private final Counter published;
+    private final Counter failures;
+    private final Timer lag;
+
+    public OutboxRelay(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, OutboxSink outboxSink,
+                       OutboxProperties properties, MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.outboxSink = outboxSink;
+        this.properties = properties;
+
+        this.batchSizes = DistributionSummary.builder("payment.outbox.relay.batch").register(meterRegistry);
+        this.published = Counter.builder("payment.outbox.published").register(meterRegistry);
+        this.failures = Counter.builder("payment.outbox.failures").register(meterRegistry);
+        this.lag = Timer.builder("payment.outbox.lag").register(meterRegistry);
+    }
+
+    // relays until the outbox is drained or maxBatchesPerPoll is reached, returns the rows published
+    @Scheduled(fixedDelayString = "${payment.outbox.poll-interval:PT1S}")
+    public int relay() {
+        if (!properties.isEnabled()) {
+            return 0;
+        }
+
+        int total = 0;
+        for (int i = 0; i < properties.getMaxBatchesPerPoll(); i++) {
+            int relayed = relayBatch();
+            total += relayed;
+            if (relayed < properties.getBatchSize()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    // one batch, 0 when there was nothing to claim or the sink failed
+    public int relayBatch() {
+        try {
+            return properties.getClaimStrategy() == OutboxProperties.ClaimStrategy.SKIP_LOCKED
+                    ? relaySkipLocked()
+                    : relayClaimed();
+        } catch (RuntimeException e) {
+            failures.increment();
+            log.warn("Relaying outbox batch failed, the rows are retried once their claim expires", e);
+            return 0;
+        }
+    }
+
+    private int relayClaimed() {
+        String token = relayId + ":" + claims.incrementAndGet();
+        long now = System.currentTimeMillis();
+
+        Timestamp expired = new Timestamp(now);
+        int claimed = jdbcTemplate.update(CLAIM, token, new Timestamp(now + properties.getLeaseTime().toMillis()),
+                expired, properties.getBatchSize(), expired);
+        if (claimed == 0) {
+            return 0;
+        }
+
+        List<PaymentNotification> batch = jdbcTemplate.query(SELECT_CLAIMED, NOTIFICATION, token);
+        publish(batch);
+
+        // a relay that took over after our lease ran out has its own token, its claim is left alone
+        jdbcTemplate.update(DELETE_CLAIMED, token);
+        return batch.size();
+    }
+
+    private int relaySkipLocked() {
+        Integer relayed = transactionTemplate.execute(status -> {
+            List<PaymentNotification> batch = jdbcTemplate.query(SELECT_SKIP_LOCKED, NOTIFICATION, properties.getBatchSize());
+            if (batch.isEmpty()) {
+                return 0;
+            }
+
+            publish(batch);
+            jdbcTemplate.batchUpdate(DELETE_BY_ID, batch, batch.size(), (ps, notification) -> ps.setLong(1, notification.getId()));
+            return batch.size();
+        });
+        return relayed != null ? relayed : 0;
+    }
+
+    private void publish(List<PaymentNotification> batch) {
+        outboxSink.publish(batch);
+
+        Instant now = Instant.now();
+        for (PaymentNotification notification : batch) {
+            lag.record(now.toEpochMilli() - notification.getCreatedAt().toEpochMilli(), TimeUnit.MILLISECONDS);
+        }
+        batchSizes.record(batch.size());
+        published.increment(batch.size());
+    }
+}
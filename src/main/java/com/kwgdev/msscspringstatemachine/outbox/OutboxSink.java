@@ -0,0 +1,14 @@
+package com.kwgdev.msscspringstatemachine.outbox;
+
+import java.util.List;
+
+/**
+ * Where the relay delivers notifications to (a broker, a webhook, ...)
+ *
+ * Called with one claimed batch at a time, in id order. Returning normally means the whole batch is delivered
+ * and the rows get deleted, throwing leaves them to be retried once their lease is over.
+ */
+public interface OutboxSink {
+
+    void publish(List<PaymentNotification> notifications);
+}
@@ -0,0 +1,21 @@
+package com.kwgdev.msscspringstatemachine.outbox;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import lombok.Value;
+
+import java.time.Instant;
+
+/**
+ * What an OutboxSink gets: a payment reached state through event, id is unique per notification
+ * so consumers can drop the duplicates at-least-once delivery can produce
+ */
+@Value
+public class PaymentNotification {
+
+    long id;
+    long paymentId;
+    PaymentState state;
+    PaymentEvent event;
+    Instant createdAt;
+}
@@ -0,0 +1,42 @@
+package com.kwgdev.msscspringstatemachine.outbox;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentOutboxMessage;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.repository.PaymentOutboxMessageRepository;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.util.EnumSet;
+
+/**
+ * Writes an outbox row for state changes downstream services care about, in the transaction of the state change,
+ * so a notification exists if and only if the change committed. OutboxRelay takes it from there.
+ */
+@Component
+public class PaymentOutbox {
+
+    private final PaymentOutboxMessageRepository paymentOutboxMessageRepository;
+    private final boolean enabled;
+    private final EnumSet<PaymentState> states;
+
+    public PaymentOutbox(PaymentOutboxMessageRepository paymentOutboxMessageRepository, OutboxProperties properties) {
+        this.paymentOutboxMessageRepository = paymentOutboxMessageRepository;
+        this.enabled = properties.isEnabled();
+        this.states = properties.getStates().isEmpty()
+                ? EnumSet.noneOf(PaymentState.class) : EnumSet.copyOf(properties.getStates());
+    }
+
+    public void stateChanged(Long paymentId, PaymentState target, PaymentEvent event) {
+        if (!enabled || !states.contains(target)) {
+            return;
+        }
+
+        paymentOutboxMessageRepository.save(PaymentOutboxMessage.builder()
+                .paymentId(paymentId)
+                .state(target)
+                .event(event)
+                .createdAt(new Timestamp(System.currentTimeMillis()))
+                .build());
+    }
+}
@@ -0,0 +1,7 @@
+package com.kwgdev.msscspringstatemachine.repository;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentOutboxMessage;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface PaymentOutboxMessageRepository extends JpaRepository<PaymentOutboxMessage, Long> {
+}
@@ -1,10 +1,73 @@
 package com.kwgdev.msscspringstatemachine.repository;
 
 import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+
+import javax.persistence.QueryHint;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.QueryHints.HINT_CACHEABLE;
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+import static org.hibernate.jpa.QueryHints.HINT_READONLY;
 
 /**
  * created by kw on 1/4/2021 @ 6:38 AM
  */
 public interface PaymentRepository extends JpaRepository<Payment, Long> {
+
+    // rows the JDBC driver is asked to hand over per round trip while streaming
+    String STREAM_FETCH_SIZE = "500";
+
+    // compare-and-set of the payment state - a single UPDATE that only goes through while the row is still
+    // in the state the transition started from, returns the number of rows updated (0 or 1)
+    // the persistence context is left alone, a managed copy of this payment is now stale - PaymentStatePersister
+    // evicts just that one, see there
+    // not flushAutomatically: Hibernate already flushes pending writes to the payment table before a bulk UPDATE on it,
+    // the journal, outbox and idempotency inserts of earlier transitions stay queued and go out as batches at commit
+    @Modifying
+    @Query("update Payment p set p.state = :target, p.version = coalesce(p.version, 0) + 1 " +
+            "where p.id = :id and p.state = :source")
+    int updateState(@Param("id") Long id, @Param("source") PaymentState source, @Param("target") PaymentState target);
+
+    // just the columns machine rehydration needs, without loading (and dirty checking) the whole entity
+    @Query("select p.state as state, p.version as version, p.amount as amount from Payment p where p.id = :id")
+    Optional<StateView> findStateById(@Param("id") Long id);
+
+    // one keyset page of the payments in a state: ids in (afterId, upToId], in id order, at most pageable.getPageSize()
+    // of them - pass the last id of a page as afterId of the next, so no page ever needs an OFFSET
+    // (pass an unpaged-offset Pageable like PageRequest.of(0, size), the page number is not used)
+    //
+    // ordered by state too although it is fixed - that is the order of ix_payment_state_id, so the database walks
+    // the index instead of sorting every row after afterId to return the first page's worth
+    @Query("select p from Payment p where p.state = :state and p.id > :afterId and p.id <= :upToId order by p.state, p.id")
+    List<Payment> findPageByState(@Param("state") PaymentState state, @Param("afterId") Long afterId,
+                                  @Param("upToId") Long upToId, Pageable pageable);
+
+    // the same rows through a forward-only cursor, has to be read (and closed) inside a transaction
+    // the entities stay in the persistence context unless the caller detaches them, see PaymentService.streamByState
+    @QueryHints({
+            @QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE),
+            @QueryHint(name = HINT_READONLY, value = "true"),
+            @QueryHint(name = HINT_CACHEABLE, value = "false")
+    })
+    @Query("select p from Payment p where p.state = :state and p.id > :afterId and p.id <= :upToId order by p.state, p.id")
+    Stream<Payment> streamByState(@Param("state") PaymentState state, @Param("afterId") Long afterId,
+                                  @Param("upToId") Long upToId);
+
+    interface StateView {
+        PaymentState getState();
+
+        Long getVersion();
+
+        BigDecimal getAmount();
+    }
 }
@@ -0,0 +1,8 @@
+package com.kwgdev.msscspringstatemachine.repository;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.domain.PaymentStateSummary;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface PaymentStateSummaryRepository extends JpaRepository<PaymentStateSummary, PaymentState> {
+}
@@ -0,0 +1,12 @@
+package com.kwgdev.msscspringstatemachine.repository;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentTransition;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import java.util.List;
+
+public interface PaymentTransitionRepository extends JpaRepository<PaymentTransition, Long> {
+
+    // a payment's history, oldest first
+    List<PaymentTransition> findByPaymentIdOrderByIdAsc(Long paymentId);
+}
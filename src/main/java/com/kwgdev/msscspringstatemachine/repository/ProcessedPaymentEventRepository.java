@@ -0,0 +1,19 @@
+package com.kwgdev.msscspringstatemachine.repository;
+
+import com.kwgdev.msscspringstatemachine.domain.ProcessedPaymentEvent;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.sql.Timestamp;
+import java.util.Optional;
+
+public interface ProcessedPaymentEventRepository extends JpaRepository<ProcessedPaymentEvent, Long> {
+
+    Optional<ProcessedPaymentEvent> findByIdempotencyKey(String idempotencyKey);
+
+    @Modifying
+    @Query("delete from ProcessedPaymentEvent e where e.processedAt < :before")
+    int deleteProcessedBefore(@Param("before") Timestamp before);
+}
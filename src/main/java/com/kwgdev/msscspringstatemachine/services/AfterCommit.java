@@ -0,0 +1,40 @@
+package com.kwgdev.msscspringstatemachine.services;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Work that must only happen once the current transaction's changes are visible to everyone else (the cache, the
+ * counters, timers, requests to the processor). Without a transaction the work runs right away.
+ */
+public final class AfterCommit {
+
+    private AfterCommit() {
+    }
+
+    public static void run(Runnable onCommit) {
+        run(onCommit, null);
+    }
+
+    // onRollback (may be null) runs instead when the transaction does not commit
+    public static void run(Runnable onCommit, Runnable onRollback) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            onCommit.run();
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                onCommit.run();
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status != STATUS_COMMITTED && onRollback != null) {
+                    onRollback.run();
+                }
+            }
+        });
+    }
+}
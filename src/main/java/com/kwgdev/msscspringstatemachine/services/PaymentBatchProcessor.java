@@ -0,0 +1,293 @@
+package com.kwgdev.msscspringstatemachine.services;
+
+import com.kwgdev.msscspringstatemachine.cluster.PaymentPartitionOwnership;
+import com.kwgdev.msscspringstatemachine.config.PaymentBatchProperties;
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.engine.PaymentTransitionTable;
+import com.kwgdev.msscspringstatemachine.engine.TransitionListener;
+import com.kwgdev.msscspringstatemachine.journal.PaymentJournal;
+import com.kwgdev.msscspringstatemachine.outbox.PaymentOutbox;
+import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
+import com.kwgdev.msscspringstatemachine.summary.PaymentStateCounters;
+import com.kwgdev.msscspringstatemachine.timeout.PaymentTimeouts;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Applies one event to many payments, and inserts many new payments.
+ *
+ * Payments are handled in chunks: one query loads the chunk, the transition table works out every payment's
+ * new state in memory and Hibernate flushes the changed rows as JDBC batches (see hibernate.jdbc.batch_size)
+ * when the chunk's transaction commits. Each chunk runs in its own transaction.
+ *
+ * The table is used whatever payment.engine is set to - both engines pass the same conformance tests,
+ * and the table is what lets us skip building a machine and updating the payment row per intermediate transition.
+ */
+@Slf4j
+@Component
+public class PaymentBatchProcessor {
+
+    private final PaymentRepository paymentRepository;
+    private final PaymentTransitionTable paymentTransitionTable;
+    private final PaymentBatchProperties properties;
+    private final PaymentStateCache paymentStateCache;
+    private final PaymentJournal paymentJournal;
+    private final PaymentOutbox paymentOutbox;
+    private final PaymentTimeouts paymentTimeouts;
+    private final PaymentStateCounters paymentStateCounters;
+    private final PaymentPartitionOwnership paymentPartitionOwnership;
+    private final TransactionTemplate transactionTemplate;
+
+    public PaymentBatchProcessor(PaymentRepository paymentRepository, PaymentTransitionTable paymentTransitionTable,
+                                 PaymentBatchProperties properties, PaymentStateCache paymentStateCache,
+                                 PaymentJournal paymentJournal, PaymentOutbox paymentOutbox,
+                                 PaymentTimeouts paymentTimeouts, PaymentStateCounters paymentStateCounters,
+                                 PaymentPartitionOwnership paymentPartitionOwnership,
+                                 PlatformTransactionManager transactionManager) {
+        this.paymentRepository = paymentRepository;
+        this.paymentTransitionTable = paymentTransitionTable;
+        this.properties = properties;
+        this.paymentStateCache = paymentStateCache;
+        this.paymentJournal = paymentJournal;
+        this.paymentOutbox = paymentOutbox;
+        this.paymentTimeouts = paymentTimeouts;
+        this.paymentStateCounters = paymentStateCounters;
+        this.paymentPartitionOwnership = paymentPartitionOwnership;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    // results come back in the order of the ids passed in
+    public List<PaymentTransitionResult> sendEvent(Collection<Long> paymentIds, PaymentEvent event) {
+        return chunked(paymentIds, chunk -> sendChunk(chunk, event));
+    }
+
+    // new payments are persisted a chunk per transaction, the pooled ids mean no sequence call per row
+    // and the INSERTs go out as JDBC batches when the chunk commits
+    public List<Payment> insert(Collection<Payment> payments) {
+        return chunked(payments, chunk -> transactionTemplate.execute(status -> {
+            PaymentStateCounters.Delta delta = new PaymentStateCounters.Delta();
+            for (Payment payment : chunk) {
+                delta.add(payment.getState(), PaymentStateCounters.toCents(payment.getAmount()));
+            }
+            paymentStateCounters.apply(delta);
+            return paymentRepository.saveAll(chunk);
+        }));
+    }
+
+    private <T, R> List<R> chunked(Collection<T> items, Function<List<T>, List<R>> perChunk) {
+        List<R> results = new ArrayList<>(items.size());
+
+        List<T> chunk = new ArrayList<>(properties.getChunkSize());
+        for (T item : items) {
+            chunk.add(item);
+            if (chunk.size() == properties.getChunkSize()) {
+                results.addAll(perChunk.apply(chunk));
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            results.addAll(perChunk.apply(chunk));
+        }
+
+        return results;
+    }
+
+    private List<PaymentTransitionResult> sendChunk(List<Long> chunk, PaymentEvent event) {
+        List<PaymentTransitionResult> results = new ArrayList<>(chunk.size());
+        List<Outcome> outcomes = new ArrayList<>();
+        try {
+            return transactionTemplate.execute(status -> transition(chunk, event, results, outcomes));
+        } catch (OptimisticLockingFailureException e) {
+            // some payment of the chunk changed between our read and the batched UPDATE, which fails the whole batch.
+            // Firing the event again would ask the processor a second time about every payment of the chunk (sync
+            // mode asks inside the transaction), so what the first pass worked out is written again instead, one
+            // payment per transaction - unless the payment is no longer at the version it was worked out for, that
+            // one really conflicts. Async requests wait for a commit and go out with the rewrite that commits
+            log.debug("Chunk of {} payments hit a concurrent update, retrying one by one", chunk.size(), e);
+
+            List<PaymentTransitionResult> retried = new ArrayList<>(chunk.size());
+            Iterator<Outcome> applied = outcomes.iterator();
+            for (int i = 0; i < chunk.size(); i++) {
+                Long paymentId = chunk.get(i);
+                try {
+                    if (i >= results.size()) {
+                        // the first pass never got to it, nothing was asked about it yet
+                        retried.addAll(transactionTemplate.execute(status ->
+                                transition(List.of(paymentId), event, new ArrayList<>(1), new ArrayList<>(1))));
+                    } else if (results.get(i).getStatus() == PaymentTransitionResult.Status.APPLIED) {
+                        Outcome outcome = applied.next();
+                        retried.add(transactionTemplate.execute(status -> rewrite(outcome)));
+                    } else {
+                        // not owned, not found or not accepted - nothing was written for it
+                        retried.add(results.get(i));
+                    }
+                } catch (OptimisticLockingFailureException conflict) {
+                    retried.add(new PaymentTransitionResult(paymentId, null, PaymentTransitionResult.Status.CONFLICT));
+                }
+            }
+            return retried;
+        }
+    }
+
+    // runs inside the chunk transaction, the changed entities get flushed as a batch on commit
+    // results gets one entry per payment of the chunk as it goes, outcomes one per APPLIED result, in the same order
+    private List<PaymentTransitionResult> transition(List<Long> chunk, PaymentEvent event,
+                                                     List<PaymentTransitionResult> results, List<Outcome> outcomes) {
+        // payments of partitions another node owns are neither loaded nor touched
+        List<Long> owned = chunk;
+        Set<Long> notOwned = Set.of();
+        if (paymentPartitionOwnership.isEnabled()) {
+            owned = new ArrayList<>(chunk.size());
+            notOwned = new HashSet<>();
+            for (Long paymentId : chunk) {
+                if (paymentPartitionOwnership.admit(paymentId)) {
+                    owned.add(paymentId);
+                } else {
+                    notOwned.add(paymentId);
+                }
+            }
+        }
+
+        Map<Long, Payment> payments = new HashMap<>(chunk.size() * 2);
+        for (Payment payment : paymentRepository.findAllById(owned)) {
+            payments.put(payment.getId(), payment);
+        }
+
+        TransitionRecorder recorder = new TransitionRecorder();
+        List<Long> changed = new ArrayList<>(chunk.size());
+        PaymentStateCounters.Delta delta = new PaymentStateCounters.Delta();
+
+        for (Long paymentId : chunk) {
+            Payment payment = payments.get(paymentId);
+            if (notOwned.contains(paymentId)) {
+                results.add(new PaymentTransitionResult(paymentId, null, PaymentTransitionResult.Status.NOT_OWNED));
+                continue;
+            }
+            if (payment == null) {
+                results.add(new PaymentTransitionResult(paymentId, null, PaymentTransitionResult.Status.NOT_FOUND));
+                continue;
+            }
+
+            // whatever the actions leave for after commit (the async answers of PaymentAuthorizer) goes with the
+            // outcome, so a retry can hand it to its own transaction
+            Set<TransactionSynchronization> before = synchronizations();
+            recorder.transitions = new ArrayList<>(2);
+            PaymentState state = paymentTransitionTable.fire(paymentId, payment.getState(), event, recorder);
+
+            if (recorder.transitions.isEmpty()) {
+                results.add(new PaymentTransitionResult(paymentId, state, PaymentTransitionResult.Status.NOT_ACCEPTED));
+                continue;
+            }
+
+            List<TransactionSynchronization> afterCommit = new ArrayList<>(synchronizations());
+            afterCommit.removeAll(before);
+            Outcome outcome = new Outcome(paymentId, payment.getState(), payment.getVersion(), state,
+                    recorder.transitions, afterCommit);
+            outcomes.add(outcome);
+
+            journal(outcome);
+            // only the end state is written to the payment, the intermediate ones (NEW -> NEW -> PRE_AUTH) only make
+            // it into the journal
+            if (state != payment.getState()) {
+                delta.move(payment.getState(), state, PaymentStateCounters.toCents(payment.getAmount()));
+                payment.setState(state);
+                changed.add(paymentId);
+            }
+            results.add(new PaymentTransitionResult(paymentId, state, PaymentTransitionResult.Status.APPLIED));
+        }
+
+        // the rows are written by the flush at commit, not through the persister, so the cached states just go
+        paymentStateCache.changed(changed);
+        paymentStateCounters.apply(delta);
+
+        return results;
+    }
+
+    // writes a first pass outcome again in a transaction of its own, if the payment has not moved since
+    private PaymentTransitionResult rewrite(Outcome outcome) {
+        Payment payment = paymentRepository.findById(outcome.paymentId).orElse(null);
+        if (payment == null || !Objects.equals(payment.getVersion(), outcome.version) || payment.getState() != outcome.source) {
+            return new PaymentTransitionResult(outcome.paymentId, null, PaymentTransitionResult.Status.CONFLICT);
+        }
+
+        journal(outcome);
+        outcome.afterCommit.forEach(TransactionSynchronizationManager::registerSynchronization);
+        if (outcome.target != outcome.source) {
+            PaymentStateCounters.Delta delta = new PaymentStateCounters.Delta();
+            delta.move(outcome.source, outcome.target, PaymentStateCounters.toCents(payment.getAmount()));
+            payment.setState(outcome.target);
+            paymentStateCache.changed(List.of(outcome.paymentId));
+            paymentStateCounters.apply(delta);
+        }
+        return new PaymentTransitionResult(outcome.paymentId, outcome.target, PaymentTransitionResult.Status.APPLIED);
+    }
+
+    // journals each transition, writes the outbox rows and starts the timeouts
+    private void journal(Outcome outcome) {
+        for (Transition transition : outcome.transitions) {
+            paymentJournal.append(outcome.paymentId, transition.source, transition.target, transition.event);
+            paymentOutbox.stateChanged(outcome.paymentId, transition.target, transition.event);
+            if (transition.source != transition.target) {
+                paymentTimeouts.stateEntered(outcome.paymentId, transition.target);
+            }
+        }
+    }
+
+    private static Set<TransactionSynchronization> synchronizations() {
+        Set<TransactionSynchronization> registered = Collections.newSetFromMap(new IdentityHashMap<>());
+        registered.addAll(TransactionSynchronizationManager.getSynchronizations());
+        return registered;
+    }
+
+    // collects the transitions of the payment being fired
+    private static final class TransitionRecorder implements TransitionListener {
+        private List<Transition> transitions;
+
+        @Override
+        public void stateChanged(Long paymentId, PaymentState source, PaymentState target, PaymentEvent event) {
+            transitions.add(new Transition(source, target, event));
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static final class Transition {
+        private final PaymentState source;
+        private final PaymentState target;
+        private final PaymentEvent event;
+    }
+
+    // what firing the event did to one payment: the version and state it started from, the state it ended up in,
+    // the transitions on the way and the after-commit work the actions registered
+    @RequiredArgsConstructor
+    private static final class Outcome {
+        private final Long paymentId;
+        private final PaymentState source;
+        private final Long version;
+        private final PaymentState target;
+        private final List<Transition> transitions;
+        private final List<TransactionSynchronization> afterCommit;
+    }
+}
@@ -0,0 +1,15 @@
+package com.kwgdev.msscspringstatemachine.services;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+
+/**
+ * Applies an event to a payment in the given (persisted) state and persists the resulting state changes.
+ *
+ * Which engine does the work is picked with the payment.engine property:
+ * statemachine (default) for Spring Statemachine, table for the PaymentTransitionTable.
+ */
+public interface PaymentEventProcessor {
+
+    PaymentState sendEvent(Long paymentId, PaymentState state, PaymentEvent event);
+}
@@ -0,0 +1,36 @@
+package com.kwgdev.msscspringstatemachine.services;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.GenericMessage;
+
+import java.util.Collections;
+
+/**
+ * Messages sent to the payment state machines.
+ *
+ * MessageBuilder copies the header map into a fresh MessageHeaders and generates a random UUID id and a timestamp
+ * for every message, none of which the machine looks at. These headers carry just the payment id, and the events
+ * an action sends on behalf of a message reuse that message's (immutable) headers as they are.
+ */
+public final class PaymentMessages {
+
+    private PaymentMessages() {
+    }
+
+    public static Message<PaymentEvent> event(Long paymentId, PaymentEvent event) {
+        return new GenericMessage<>(event, new PaymentHeaders(paymentId));
+    }
+
+    // an event sent from an action, for the same payment as the message that triggered the action
+    public static Message<PaymentEvent> followUp(PaymentEvent event, MessageHeaders headers) {
+        return new GenericMessage<>(event, headers);
+    }
+
+    private static final class PaymentHeaders extends MessageHeaders {
+        private PaymentHeaders(Long paymentId) {
+            super(Collections.singletonMap(PaymentServiceImpl.PAYMENT_ID_HEADER, paymentId), ID_VALUE_NONE, -1L);
+        }
+    }
+}
@@ -3,7 +3,11 @@ package com.kwgdev.msscspringstatemachine.services;
 import com.kwgdev.msscspringstatemachine.domain.Payment;
 import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
 import com.kwgdev.msscspringstatemachine.domain.PaymentState;
-import org.springframework.statemachine.StateMachine;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
  * created by kw on 1/4/2021 @ 7:00 AM
@@ -12,10 +16,51 @@ public interface PaymentService {
 
     Payment newPayment(Payment payment);
 
+    // bulk version of newPayment, inserted in chunks like the other bulk calls, returned in the order passed in
+    List<Payment> newPayments(Collection<Payment> payments);
+
     // what these will do is they'll take in a paymentId, an return a State based on the paymentId
-    StateMachine<PaymentState, PaymentEvent> preAuth(Long paymentId);
+    // the state machines behind these calls are pooled, so only the resulting State leaves the service
+    // with payment.authorization.async (the default) preAuth and authorizePayment return before the processor
+    // answered, i.e. NEW / PRE_AUTH - the answer moves the payment on later, see PaymentAuthorizer
+    PaymentState preAuth(Long paymentId);
+
+    PaymentState authorizePayment(Long paymentId);
+
+    PaymentState declineAuth(Long paymentId);
+
+    // retry safe versions - the first call with an idempotencyKey is applied, a retry with the same key gets the
+    // state that call left the payment in, without applying the event again (null key means no dedup)
+    PaymentState preAuth(Long paymentId, String idempotencyKey);
+
+    PaymentState authorizePayment(Long paymentId, String idempotencyKey);
+
+    // apply an event that came from outside the state machine, e.g. the processor's answer to an authorization
+    PaymentState sendEvent(Long paymentId, PaymentEvent event);
+
+    PaymentState sendEvent(Long paymentId, PaymentEvent event, String idempotencyKey);
+
+    // with payment.cluster.enabled the calls above only take payments in partitions this node owns, for the others
+    // they throw PartitionNotOwnedException naming the owner - follow-ups of work this node already started
+    // (timeouts, the processor's answer) go through this one instead, which takes any payment; the compare-and-set
+    // on the row keeps it safe should the owner be moving the same payment at the same time
+    PaymentState sendFollowUpEvent(Long paymentId, PaymentEvent event);
+
+    // bulk versions of preAuth and authorizePayment for settlement jobs
+    // payments are loaded and written in chunks, each chunk in its own transaction, so call these outside of one
+    // every payment gets its own result - a declined, missing or conflicting payment does not fail the others
+    // (with async authorization APPLIED only means the request goes out, see PaymentTransitionResult.Status)
+    List<PaymentTransitionResult> preAuthAll(Collection<Long> paymentIds);
+
+    List<PaymentTransitionResult> authorizeAll(Collection<Long> paymentIds);
 
-    StateMachine<PaymentState, PaymentEvent> authorizePayment(Long paymentId);
+    // payments in a state with an id in (afterId, upToId] - null for either end means unbounded - in id order,
+    // at most limit of them; page through a state by passing the last id returned as the next afterId
+    List<Payment> findByState(PaymentState state, Long afterId, Long upToId, int limit);
 
-    StateMachine<PaymentState, PaymentEvent> declineAuth(Long paymentId);
+    // every payment in the state and id range, handed to the reader as a stream over one cursor in id order
+    // the payments are detached as they are read, so a scan over millions of them runs in constant memory -
+    // the stream is only open while the reader runs, in a read-only transaction of its own (a caller's transaction
+    // is suspended meanwhile and does not see the scan's entities)
+    <R> R streamByState(PaymentState state, Long afterId, Long upToId, Function<Stream<Payment>, R> reader);
 }
@@ -1,18 +1,30 @@
 package com.kwgdev.msscspringstatemachine.services;
 
+import com.kwgdev.msscspringstatemachine.cluster.PaymentPartitionOwnership;
 import com.kwgdev.msscspringstatemachine.domain.Payment;
 import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
 import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.executor.PartitionedEventExecutor;
+import com.kwgdev.msscspringstatemachine.idempotency.PaymentEventDeduplicator;
 import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
-import com.kwgdev.msscspringstatemachine.services.PaymentStateChangeInterceptor;
+import com.kwgdev.msscspringstatemachine.summary.PaymentStateCounters;
+import com.kwgdev.msscspringstatemachine.timeout.PaymentTimeouts;
 import lombok.RequiredArgsConstructor;
-import org.springframework.messaging.Message;
-import org.springframework.messaging.support.MessageBuilder;
-import org.springframework.statemachine.StateMachine;
-import org.springframework.statemachine.config.StateMachineFactory;
-import org.springframework.statemachine.support.DefaultStateMachineContext;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /**
  * created by kw on 1/4/2021 @ 7:03 AM
@@ -24,88 +36,155 @@ public class PaymentServiceImpl implements PaymentService {
     public static final String PAYMENT_ID_HEADER = "payment_id";
 
     private final PaymentRepository paymentRepository;
-    private final StateMachineFactory<PaymentState, PaymentEvent> stateMachineFactory;
-    private final PaymentStateChangeInterceptor paymentStateChangeInterceptor;
+    private final PaymentStateCache paymentStateCache;
+    private final PaymentEventProcessor paymentEventProcessor;
+    private final PaymentBatchProcessor paymentBatchProcessor;
+    private final PartitionedEventExecutor partitionedEventExecutor;
+    private final TransactionTemplate transactionTemplate;
+    private final PaymentTimeouts paymentTimeouts;
+    private final PaymentStateCounters paymentStateCounters;
+    private final PaymentEventDeduplicator paymentEventDeduplicator;
+    private final PaymentPartitionOwnership paymentPartitionOwnership;
+    private final EntityManager entityManager;
 
     @Override
     public Payment newPayment(Payment payment) {
         payment.setState(PaymentState.NEW);
-        return paymentRepository.save(payment);
+        Payment saved = paymentRepository.save(payment);
+
+        paymentStateCounters.created(saved.getState(), saved.getAmount());
+        paymentStateCache.created(saved.getId(), saved.getState(), saved.getVersion(), saved.getAmount());
+        paymentTimeouts.stateEntered(saved.getId(), saved.getState());
+        return saved;
     }
 
-    @Transactional
     @Override
-    public StateMachine<PaymentState, PaymentEvent> preAuth(Long paymentId) {
-
-        StateMachine<PaymentState, PaymentEvent> sm = build(paymentId);
-
-        sendEvent(paymentId, sm, PaymentEvent.PRE_AUTHORIZE);
-
-        return sm;
+    public List<Payment> newPayments(Collection<Payment> payments) {
+        for (Payment payment : payments) {
+            payment.setState(PaymentState.NEW);
+        }
+
+        // counted by the batch processor, chunk by chunk as they commit
+        List<Payment> saved = paymentBatchProcessor.insert(payments);
+        for (Payment payment : saved) {
+            paymentStateCache.created(payment.getId(), payment.getState(), payment.getVersion(), payment.getAmount());
+            paymentTimeouts.stateEntered(payment.getId(), payment.getState());
+        }
+        return saved;
     }
 
-    @Transactional
     @Override
-    public StateMachine<PaymentState, PaymentEvent> authorizePayment(Long paymentId) {
-
-
-        StateMachine<PaymentState, PaymentEvent> sm = build(paymentId);
-
-        sendEvent(paymentId, sm, PaymentEvent.AUTH_APPROVED);
-
-        return sm;
+    public PaymentState preAuth(Long paymentId) {
+        return sendEvent(paymentId, PaymentEvent.PRE_AUTHORIZE);
     }
 
-    @Transactional
     @Override
-    public StateMachine<PaymentState, PaymentEvent> declineAuth(Long paymentId) {
-
-
-        StateMachine<PaymentState, PaymentEvent> sm = build(paymentId);
-
-        sendEvent(paymentId, sm, PaymentEvent.AUTH_DECLINED);
-
-        return sm;
+    public PaymentState authorizePayment(Long paymentId) {
+        return sendEvent(paymentId, PaymentEvent.AUTH_APPROVED);
     }
 
-    // base method for sending a message containing the paymentId
-    private void sendEvent(Long paymentId, StateMachine<PaymentState, PaymentEvent> sm, PaymentEvent event) {
-
-        Message msg = MessageBuilder.withPayload(event)
-                .setHeader(PAYMENT_ID_HEADER,paymentId)
-                .build();
+    @Override
+    public PaymentState declineAuth(Long paymentId) {
+        return sendEvent(paymentId, PaymentEvent.AUTH_DECLINED);
+    }
 
-        // want the State Machine to be aware of the payment ID
-        sm.sendEvent(msg);
+    @Override
+    public PaymentState preAuth(Long paymentId, String idempotencyKey) {
+        return sendEvent(paymentId, PaymentEvent.PRE_AUTHORIZE, idempotencyKey);
     }
 
-    // build a State Machine based on the current State of a payment retrieved from the database
-    // this is the base method to perform all State Machine methods -> authorize, decline, etc.
+    @Override
+    public PaymentState authorizePayment(Long paymentId, String idempotencyKey) {
+        return sendEvent(paymentId, PaymentEvent.AUTH_APPROVED, idempotencyKey);
+    }
 
     // since we're persisting the state of a payment through a state machine, we're basically checking the
     // state of the State Machine in and out of the database at each step/state change
-    private StateMachine<PaymentState, PaymentEvent> build(Long paymentId) {
+    //
+    // the current State comes out of the state cache (the database on a miss), the configured engine applies
+    // the event on top of it
+    //
+    // events for the same payment are queued up on that payment's lane so they never race each other,
+    // the transaction is opened on the lane thread (or joined, when the caller already has one)
+    @Override
+    public PaymentState sendEvent(Long paymentId, PaymentEvent event) {
+        return sendEvent(paymentId, event, null);
+    }
 
-        Payment payment = paymentRepository.getOne(paymentId);
+    // a keyed event is checked on the payment's lane, so a retry waits for the first call and then finds its outcome
+    // without building a machine or reading the payment - the outcome is recorded in the event's own transaction
+    @Override
+    public PaymentState sendEvent(Long paymentId, PaymentEvent event, String idempotencyKey) {
+        paymentPartitionOwnership.checkOwned(paymentId);
+
+        if (idempotencyKey == null || !paymentEventDeduplicator.isEnabled()) {
+            return sendFollowUpEvent(paymentId, event);
+        }
+
+        try {
+            return retryOnConflict(() -> partitionedEventExecutor.execute(paymentId, () -> transactionTemplate.execute(status ->
+                    paymentEventDeduplicator.recorded(idempotencyKey, paymentId, event).orElseGet(() -> {
+                        PaymentState state = paymentEventProcessor.sendEvent(paymentId, paymentStateCache.getState(paymentId), event);
+                        paymentEventDeduplicator.record(idempotencyKey, paymentId, event, state);
+                        return state;
+                    }))));
+        } catch (DataIntegrityViolationException e) {
+            // the lane only orders this node, another node ran the same key at the same time and recorded it first -
+            // ours rolled back, answer with what the other one did (a caller's own transaction cannot go on after the
+            // failed insert, that one gets the exception)
+            if (TransactionSynchronizationManager.isActualTransactionActive()) {
+                throw e;
+            }
+            return paymentEventDeduplicator.recorded(idempotencyKey, paymentId, event).orElseThrow(() -> e);
+        }
+    }
 
-        // generate a State Machine based on the paymentId of the payment event
-        StateMachine<PaymentState, PaymentEvent> sm = stateMachineFactory.getStateMachine(Long.toString(payment.getId()));
+    @Override
+    public PaymentState sendFollowUpEvent(Long paymentId, PaymentEvent event) {
+        return retryOnConflict(() -> partitionedEventExecutor.execute(paymentId, () -> transactionTemplate.execute(status ->
+                paymentEventProcessor.sendEvent(paymentId, paymentStateCache.getState(paymentId), event))));
+    }
 
-        // tell State Machine to stop
-        sm.stop();
+    // a compare-and-set miss means the state the event started from was stale (a cache entry, or a concurrent event
+    // got there first) and the persister dropped it - the event is tried once more, against the row this time.
+    // A caller's own transaction is rollback-only by now, that one gets the exception
+    private PaymentState retryOnConflict(Supplier<PaymentState> attempt) {
+        try {
+            return attempt.get();
+        } catch (OptimisticLockingFailureException e) {
+            if (TransactionSynchronizationManager.isActualTransactionActive()) {
+                throw e;
+            }
+            return attempt.get();
+        }
+    }
 
-        // and set State Machine State to the State value we retrieve from the database
-        sm.getStateMachineAccessor()
-                .doWithAllRegions(sma -> {
-                    // add interceptor/listener using PaymentStateChangeInterceptor object
-                    // so before we reset the State Machine, we're gonna grab the current state of the event and persist it back to the database
-                    sma.addStateMachineInterceptor(paymentStateChangeInterceptor);
-                    sma.resetStateMachine(new DefaultStateMachineContext<>(payment.getState(), null, null, null));
-                });
+    @Override
+    public List<PaymentTransitionResult> preAuthAll(Collection<Long> paymentIds) {
+        return paymentBatchProcessor.sendEvent(paymentIds, PaymentEvent.PRE_AUTHORIZE);
+    }
+
+    @Override
+    public List<PaymentTransitionResult> authorizeAll(Collection<Long> paymentIds) {
+        return paymentBatchProcessor.sendEvent(paymentIds, PaymentEvent.AUTH_APPROVED);
+    }
 
-        // restart the State Machine with the new State from database
-        sm.start();
+    @Transactional(readOnly = true)
+    @Override
+    public List<Payment> findByState(PaymentState state, Long afterId, Long upToId, int limit) {
+        return paymentRepository.findPageByState(state, afterId != null ? afterId : Long.MIN_VALUE,
+                upToId != null ? upToId : Long.MAX_VALUE, PageRequest.of(0, limit));
+    }
 
-        return sm;
+    // a transaction (and persistence context) of its own, detaching the scanned rows must not touch entities a
+    // calling transaction has loaded or changed
+    @Transactional(readOnly = true, propagation = Propagation.REQUIRES_NEW)
+    @Override
+    public <R> R streamByState(PaymentState state, Long afterId, Long upToId, Function<Stream<Payment>, R> reader) {
+        try (Stream<Payment> payments = paymentRepository.streamByState(state, afterId != null ? afterId : Long.MIN_VALUE,
+                upToId != null ? upToId : Long.MAX_VALUE)) {
+            // out of the persistence context as soon as they are read, otherwise it would end up holding the whole scan
+            return reader.apply(payments.peek(entityManager::detach));
+        }
     }
 }
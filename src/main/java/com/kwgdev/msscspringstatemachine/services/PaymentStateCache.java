@@ -0,0 +1,174 @@
+package com.kwgdev.msscspringstatemachine.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.kwgdev.msscspringstatemachine.cluster.PartitionsAcquiredEvent;
+import com.kwgdev.msscspringstatemachine.config.PaymentStateCacheProperties;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.journal.PaymentStateIndexer;
+import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
+import com.kwgdev.msscspringstatemachine.summary.PaymentStateCounters;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.EntityNotFoundException;
+import java.math.BigDecimal;
+import java.util.Collection;
+
+/**
+ * Bounded write-through cache of paymentId -> (state, version, amount) used to rehydrate machines without reading the row.
+ *
+ * Entries only ever change after the transaction that wrote them commits, a rollback throws the entry away,
+ * and so does a compare-and-set that finds the row in another state than we expected. A miss inside a transaction
+ * is answered from the row as that transaction sees it, it only goes into the cache once the transaction commits.
+ * An entry can still be stale (another node, a commit we raced with), which surfaces as the compare-and-set miss.
+ * Hit ratio and evictions are exported as cache.* meters tagged cache=payment.state.
+ *
+ * With payment.journal.warm-start a miss is answered from PaymentStateIndexer (the mapped snapshot) before the
+ * database, such an entry knows the state only - its version and amount are UNKNOWN until someone asks for them.
+ */
+@Component
+public class PaymentStateCache {
+
+    public static final long UNKNOWN = -1;
+
+    private final PaymentRepository paymentRepository;
+    private final PaymentStateIndexer paymentStateIndexer;
+    private final boolean enabled;
+    private final Cache<Long, CachedState> cache;
+
+    public PaymentStateCache(PaymentRepository paymentRepository, PaymentStateIndexer paymentStateIndexer,
+                             PaymentStateCacheProperties properties, MeterRegistry meterRegistry) {
+        this.paymentRepository = paymentRepository;
+        this.paymentStateIndexer = paymentStateIndexer;
+        this.enabled = properties.isEnabled();
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(properties.getMaximumSize())
+                .expireAfterWrite(properties.getExpireAfterWrite())
+                .recordStats()
+                .build();
+
+        if (enabled) {
+            CaffeineCacheMetrics.monitor(meterRegistry, cache, "payment.state");
+        }
+    }
+
+    // current state of the payment, from the cache or else from the database
+    public PaymentState getState(Long paymentId) {
+        return get(paymentId).getState();
+    }
+
+    public CachedState get(Long paymentId) {
+        CachedState cached = enabled ? cache.getIfPresent(paymentId) : null;
+        if (cached != null) {
+            return cached;
+        }
+
+        CachedState loaded = load(paymentId);
+        if (loaded == null) {
+            throw new EntityNotFoundException("Unable to find Payment with id " + paymentId);
+        }
+        if (enabled) {
+            // the row may carry the reading transaction's own uncommitted change, or go away with its rollback -
+            // an entry an event of the same transaction moved on in the meantime is not overwritten
+            AfterCommit.run(() -> cache.asMap().putIfAbsent(paymentId, loaded));
+        }
+        return loaded;
+    }
+
+    // amount of the payment, a warm entry reads it from the row the first time it is needed
+    public long getAmountCents(Long paymentId) {
+        CachedState cached = get(paymentId);
+        if (cached.getAmountCents() != UNKNOWN) {
+            return cached.getAmountCents();
+        }
+
+        CachedState loaded = loadRow(paymentId);
+        if (loaded == null) {
+            throw new EntityNotFoundException("Unable to find Payment with id " + paymentId);
+        }
+        if (enabled) {
+            // the amount never changes, the state stays whatever the entry says until its transaction commits
+            cache.asMap().replace(paymentId, cached, new CachedState(cached.getState(), cached.getVersion(), loaded.getAmountCents()));
+        }
+        return loaded.getAmountCents();
+    }
+
+    // a payment was inserted
+    public void created(Long paymentId, PaymentState state, Long version, BigDecimal amount) {
+        afterCompletion(paymentId, () -> cache.put(paymentId, new CachedState(state, version, PaymentStateCounters.toCents(amount))));
+    }
+
+    // the row went from source to target, only applied on top of an entry that still agrees on source
+    public void transitioned(Long paymentId, PaymentState source, PaymentState target) {
+        afterCompletion(paymentId, () -> cache.asMap().computeIfPresent(paymentId, (id, cached) ->
+                cached.getState() == source ? new CachedState(target, cached.getVersion() == UNKNOWN ? UNKNOWN : cached.getVersion() + 1,
+                        cached.getAmountCents()) : null));
+    }
+
+    // the row changed in a way we do not follow entry by entry (bulk updates), drop it once the change is visible
+    public void changed(Collection<Long> paymentIds) {
+        if (!enabled) {
+            return;
+        }
+
+        cache.invalidateAll(paymentIds);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    cache.invalidateAll(paymentIds);
+                }
+            });
+        }
+    }
+
+    public void invalidate(Long paymentId) {
+        cache.invalidate(paymentId);
+    }
+
+    // another node has been moving these payments, what we have for them is from before it took them over
+    @EventListener
+    public void partitionsAcquired(PartitionsAcquiredEvent event) {
+        cache.asMap().keySet().removeIf(event::containsPayment);
+    }
+
+    public double hitRate() {
+        return cache.stats().hitRate();
+    }
+
+    private CachedState load(Long paymentId) {
+        PaymentState warm = paymentStateIndexer.getWarmState(paymentId);
+        if (warm != null) {
+            return new CachedState(warm, UNKNOWN, UNKNOWN);
+        }
+        return loadRow(paymentId);
+    }
+
+    private CachedState loadRow(Long paymentId) {
+        return paymentRepository.findStateById(paymentId)
+                .map(view -> new CachedState(view.getState(), view.getVersion() != null ? view.getVersion() : 0L,
+                        PaymentStateCounters.toCents(view.getAmount())))
+                .orElse(null);
+    }
+
+    private void afterCompletion(Long paymentId, Runnable onCommit) {
+        if (!enabled) {
+            return;
+        }
+
+        AfterCommit.run(onCommit, () -> cache.invalidate(paymentId));
+    }
+
+    @Value
+    public static class CachedState {
+        PaymentState state;
+        long version;
+        long amountCents;
+    }
+}
@@ -1,9 +1,7 @@
 package com.kwgdev.msscspringstatemachine.services;
 
-import com.kwgdev.msscspringstatemachine.domain.Payment;
 import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
 import com.kwgdev.msscspringstatemachine.domain.PaymentState;
-import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
 import lombok.RequiredArgsConstructor;
 import org.springframework.messaging.Message;
 import org.springframework.statemachine.StateMachine;
@@ -12,8 +10,6 @@ import org.springframework.statemachine.support.StateMachineInterceptorAdapter;
 import org.springframework.statemachine.transition.Transition;
 import org.springframework.stereotype.Component;
 
-import java.util.Optional;
-
 /**
  * created by kw on 1/4/2021 @ 7:28 AM
  */
@@ -21,24 +17,39 @@ import java.util.Optional;
 @Component
 public class PaymentStateChangeInterceptor extends StateMachineInterceptorAdapter<PaymentState, PaymentEvent> {
 
-    private final PaymentRepository paymentRepository;
+    // extended state variable holding the exception of a state change the persister rejected
+    public static final String REJECTION_VARIABLE = "payment_state_rejection";
+
+    private final PaymentStatePersister paymentStatePersister;
 
     @Override
     public void preStateChange(State<PaymentState, PaymentEvent> state, Message<PaymentEvent> message,
                                Transition<PaymentState, PaymentEvent> transition, StateMachine<PaymentState, PaymentEvent> stateMachine) {
         // before a State change, we are going to say **IF** a message is present,
         // we'll get the paymentId off the header and pass that
-        // so if we find a paymentId Header then we will go to the paymentRepository and get the payment (by paymentId)
-        // then we will set the State from the state being passed in to the method and then save it to the repository
+        // so if we find a paymentId Header then we will hand the payment (by paymentId) and the state being passed
+        // in to the method to PaymentStatePersister, which saves it to the repository
         //
         // and this is how we will persist state changes to the database
-        Optional.ofNullable(message).ifPresent(msg -> {
-            Optional.ofNullable(Long.class.cast(msg.getHeaders().getOrDefault(PaymentServiceImpl.PAYMENT_ID_HEADER, -1L)))
-                    .ifPresent(paymentId -> {
-                        Payment payment = paymentRepository.getOne(paymentId);
-                        payment.setState(state.getId());
-                        paymentRepository.save(payment);
-                    });
-        });
+        //
+        // plain null checks rather than Optional chains, this runs for every transition
+        if (message != null) {
+            Long paymentId = (Long) message.getHeaders().getOrDefault(PaymentServiceImpl.PAYMENT_ID_HEADER, -1L);
+            persist(paymentId, state, message, transition, stateMachine);
+        }
+    }
+
+    private void persist(Long paymentId, State<PaymentState, PaymentEvent> state, Message<PaymentEvent> message,
+                         Transition<PaymentState, PaymentEvent> transition, StateMachine<PaymentState, PaymentEvent> stateMachine) {
+        PaymentState source = transition != null && transition.getSource() != null ? transition.getSource().getId() : null;
+
+        try {
+            paymentStatePersister.stateChanged(paymentId, source, state.getId(), message.getPayload());
+        } catch (RuntimeException e) {
+            // the state machine skips the state change when an interceptor throws, but it only logs the exception
+            // so we leave it on the machine for StateMachineEventProcessor to hand back to the caller
+            stateMachine.getExtendedState().getVariables().put(REJECTION_VARIABLE, e);
+            throw e;
+        }
     }
 }
@@ -0,0 +1,83 @@
+package com.kwgdev.msscspringstatemachine.services;
+
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.engine.TransitionListener;
+import com.kwgdev.msscspringstatemachine.jfr.PaymentFlightRecorder;
+import com.kwgdev.msscspringstatemachine.jfr.PersistEvent;
+import com.kwgdev.msscspringstatemachine.journal.PaymentJournal;
+import com.kwgdev.msscspringstatemachine.journal.PaymentStateIndexer;
+import com.kwgdev.msscspringstatemachine.metrics.PaymentMetrics;
+import com.kwgdev.msscspringstatemachine.outbox.PaymentOutbox;
+import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
+import com.kwgdev.msscspringstatemachine.summary.PaymentStateCounters;
+import com.kwgdev.msscspringstatemachine.timeout.PaymentTimeouts;
+import lombok.RequiredArgsConstructor;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Writes a payment state change to the database as a compare-and-set on the current state
+ * and appends it to the transition journal (and the outbox, for states downstream services are notified about).
+ * Shared by PaymentStateChangeInterceptor (state machine engine) and the transition table engine.
+ */
+@RequiredArgsConstructor
+@Component
+public class PaymentStatePersister implements TransitionListener {
+
+    private final PaymentRepository paymentRepository;
+    private final PaymentMetrics paymentMetrics;
+    private final PaymentStateCache paymentStateCache;
+    private final PaymentJournal paymentJournal;
+    private final PaymentStateIndexer paymentStateIndexer;
+    private final PaymentOutbox paymentOutbox;
+    private final PaymentTimeouts paymentTimeouts;
+    private final PaymentStateCounters paymentStateCounters;
+    private final PaymentFlightRecorder paymentFlightRecorder;
+    private final EntityManager entityManager;
+
+    // one conditional UPDATE per transition instead of load, dirty check and full entity save
+    // if the row moved on in the meantime (a concurrent event won) nothing is written and the transition is rejected
+    @Override
+    public void stateChanged(Long paymentId, PaymentState source, PaymentState target, PaymentEvent event) {
+        PersistEvent recorded = paymentFlightRecorder.beginPersist();
+        boolean updated = false;
+        try {
+            long start = System.nanoTime();
+            updated = paymentRepository.updateState(paymentId, source, target) == 1;
+            paymentMetrics.recordPersist(updated, System.nanoTime() - start);
+            evict(paymentId);
+
+            if (!updated) {
+                // whatever we had cached (or mapped) for it is what just lost, next event reads the row again
+                paymentStateCache.invalidate(paymentId);
+                paymentStateIndexer.conflicted(paymentId);
+                throw new OptimisticLockingFailureException("Payment " + paymentId + " is no longer in state " + source
+                        + ", rejecting " + event + " -> " + target);
+            }
+
+            paymentJournal.append(paymentId, source, target, event);
+            paymentOutbox.stateChanged(paymentId, target, event);
+            paymentStateCache.transitioned(paymentId, source, target);
+            if (source != target) {
+                paymentTimeouts.stateEntered(paymentId, target);
+                // the UPDATE does not read the row, the amount comes along with the cached state
+                paymentStateCounters.moved(source, target, paymentStateCache.getAmountCents(paymentId));
+            }
+        } finally {
+            if (recorded != null) {
+                recorded.end(paymentId, source, event, target, updated);
+            }
+        }
+    }
+
+    // the UPDATE went around the persistence context, a managed copy of the payment the caller's transaction holds
+    // still has the old state and version - detach only that one (whatever else the caller manages stays managed),
+    // getReference hands back the managed instance if there is one and an uninitialized proxy otherwise, no SELECT
+    private void evict(Long paymentId) {
+        entityManager.detach(entityManager.getReference(Payment.class, paymentId));
+    }
+}
@@ -0,0 +1,31 @@
+package com.kwgdev.msscspringstatemachine.services;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import lombok.Value;
+
+/**
+ * Outcome of an event for one payment of a bulk call
+ */
+@Value
+public class PaymentTransitionResult {
+
+    public enum Status {
+        // the event was applied, state is where the payment ended up when the chunk committed.
+        // With payment.authorization.async (the default) that is not the processor's answer yet: a PRE_AUTHORIZE or
+        // AUTHORIZE comes back APPLIED with the payment still in NEW / PRE_AUTH, and each answer is applied on its
+        // own after the chunk committed (see PaymentAuthorizer) - read the payment again for the outcome
+        APPLIED,
+        // the payment's state does not accept the event (or a guard said no), state is unchanged
+        NOT_ACCEPTED,
+        // there is no payment with this id
+        NOT_FOUND,
+        // the payment changed underneath us, nothing was written
+        CONFLICT,
+        // another node owns the payment's partition (payment.cluster.enabled), send it there
+        NOT_OWNED
+    }
+
+    Long paymentId;
+    PaymentState state;
+    Status status;
+}
@@ -0,0 +1,74 @@
+package com.kwgdev.msscspringstatemachine.services;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.jfr.MachineCheckoutEvent;
+import com.kwgdev.msscspringstatemachine.jfr.PaymentFlightRecorder;
+import com.kwgdev.msscspringstatemachine.jfr.TransitionEvent;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Spring Statemachine engine - the default, state changes get persisted by PaymentStateChangeInterceptor
+ */
+@RequiredArgsConstructor
+@Component
+@ConditionalOnProperty(name = "payment.engine", havingValue = "statemachine", matchIfMissing = true)
+public class StateMachineEventProcessor implements PaymentEventProcessor {
+
+    private final StateMachinePool stateMachinePool;
+    private final PaymentFlightRecorder paymentFlightRecorder;
+
+    // check a State Machine out of the pool, send it the event and hand it back
+    // only the State the payment ended up in leaves this method, the machine itself gets reused
+    @Transactional
+    @Override
+    public PaymentState sendEvent(Long paymentId, PaymentState state, PaymentEvent event) {
+        TransitionEvent recorded = paymentFlightRecorder.beginTransition();
+        PaymentState result = null;
+
+        StateMachine<PaymentState, PaymentEvent> sm = build(paymentId, state);
+
+        try {
+            sendEvent(paymentId, sm, event);
+
+            // a state change PaymentStateChangeInterceptor could not persist was skipped by the machine
+            Object rejection = sm.getExtendedState().getVariables().remove(PaymentStateChangeInterceptor.REJECTION_VARIABLE);
+            if (rejection != null) {
+                throw (RuntimeException) rejection;
+            }
+
+            result = sm.getState().getId();
+            return result;
+        } finally {
+            stateMachinePool.release(sm);
+            if (recorded != null) {
+                recorded.end(paymentId, state, event, result);
+            }
+        }
+    }
+
+    // base method for sending a message containing the paymentId
+    private void sendEvent(Long paymentId, StateMachine<PaymentState, PaymentEvent> sm, PaymentEvent event) {
+
+        // want the State Machine to be aware of the payment ID
+        sm.sendEvent(PaymentMessages.event(paymentId, event));
+    }
+
+    // build a State Machine based on the current State of a payment retrieved from the database
+    // this is the base method to perform all State Machine methods -> authorize, decline, etc.
+    //
+    // the machine comes out of StateMachinePool already wired with PaymentStateChangeInterceptor,
+    // the pool resets it to the State value we retrieve from the database and restarts it
+    private StateMachine<PaymentState, PaymentEvent> build(Long paymentId, PaymentState state) {
+        MachineCheckoutEvent recorded = paymentFlightRecorder.beginCheckout();
+        StateMachine<PaymentState, PaymentEvent> sm = stateMachinePool.checkout(state);
+        if (recorded != null) {
+            recorded.end(paymentId, state);
+        }
+        return sm;
+    }
+}
@@ -0,0 +1,228 @@
+package com.kwgdev.msscspringstatemachine.services;
+
+import com.kwgdev.msscspringstatemachine.config.StateMachinePoolProperties;
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.metrics.PaymentMetrics;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+import org.springframework.statemachine.support.StateMachineInterceptor;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of prebuilt payment state machines.
+ *
+ * Building a machine from the factory and wiring the interceptor into it is the expensive part of rehydration,
+ * so we do that once per pooled machine and only reset it to the persisted state on every checkout. minIdle machines
+ * are built while the context starts, the first events after a start find them waiting.
+ */
+@Slf4j
+@Component
+public class StateMachinePool {
+
+    private final StateMachineFactory<PaymentState, PaymentEvent> stateMachineFactory;
+    private final PaymentStateChangeInterceptor paymentStateChangeInterceptor;
+    private final StateMachineInterceptor<PaymentState, PaymentEvent> transitionMetricsInterceptor;
+    private final StateMachinePoolProperties properties;
+
+    // idle machines, most recently returned first so the tail is what goes stale
+    private final ConcurrentLinkedDeque<IdleMachine> idle = new ConcurrentLinkedDeque<>();
+
+    // checked out machines and when they were handed out, used for leak detection
+    private final Map<StateMachine<PaymentState, PaymentEvent>, Checkout> borrowed = new ConcurrentHashMap<>();
+
+    private final Semaphore permits;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    public StateMachinePool(StateMachineFactory<PaymentState, PaymentEvent> stateMachineFactory,
+                            PaymentStateChangeInterceptor paymentStateChangeInterceptor,
+                            PaymentMetrics paymentMetrics,
+                            MeterRegistry meterRegistry,
+                            StateMachinePoolProperties properties) {
+        this.stateMachineFactory = stateMachineFactory;
+        this.paymentStateChangeInterceptor = paymentStateChangeInterceptor;
+        this.transitionMetricsInterceptor = paymentMetrics.transitionInterceptor();
+        this.properties = properties;
+        this.permits = new Semaphore(properties.getMaxSize(), true);
+
+        registerMeters(meterRegistry);
+    }
+
+    // built up front, they count as neither hits nor misses
+    @PostConstruct
+    public void prefill() {
+        long now = System.nanoTime();
+        int target = Math.min(properties.getMinIdle(), properties.getMaxSize());
+        for (int i = idle.size(); i < target; i++) {
+            idle.offerLast(new IdleMachine(create(), now));
+        }
+    }
+
+    // hand out a machine that is started in the given state, waiting up to maxWait for a free one
+    public StateMachine<PaymentState, PaymentEvent> checkout(PaymentState state) {
+        try {
+            if (!permits.tryAcquire(properties.getMaxWait().toNanos(), TimeUnit.NANOSECONDS)) {
+                throw new IllegalStateException("No state machine available within " + properties.getMaxWait()
+                        + " (pool size " + properties.getMaxSize() + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a state machine", e);
+        }
+
+        try {
+            IdleMachine pooled = idle.pollFirst();
+            StateMachine<PaymentState, PaymentEvent> sm;
+
+            if (pooled != null) {
+                hits.increment();
+                sm = pooled.machine;
+            } else {
+                misses.increment();
+                sm = create();
+            }
+
+            reset(sm, state);
+            borrowed.put(sm, new Checkout(System.nanoTime()));
+            return sm;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    // give a machine back, it is stopped here so it does not hold on to anything until the next checkout
+    public void release(StateMachine<PaymentState, PaymentEvent> sm) {
+        if (borrowed.remove(sm) == null) {
+            log.warn("Ignoring release of a state machine that is not checked out: {}", sm.getUuid());
+            return;
+        }
+
+        try {
+            sm.stop();
+            idle.offerFirst(new IdleMachine(sm, System.nanoTime()));
+        } finally {
+            permits.release();
+        }
+    }
+
+    // drop machines that sat idle too long and report machines that were never given back
+    @Scheduled(fixedDelayString = "${payment.state-machine.pool.maintenance-interval:PT30S}")
+    public void maintain() {
+        long now = System.nanoTime();
+
+        long idleTimeout = properties.getIdleTimeout().toNanos();
+        int keep = properties.getMinIdle();
+        Iterator<IdleMachine> it = idle.descendingIterator();
+        while (it.hasNext() && idle.size() > keep) {
+            IdleMachine candidate = it.next();
+            if (now - candidate.returnedAt > idleTimeout && idle.remove(candidate)) {
+                evictions.increment();
+            }
+        }
+
+        long leakThreshold = properties.getLeakDetectionThreshold().toNanos();
+        borrowed.forEach((sm, checkout) -> {
+            // a leaked machine stays borrowed, it is reported (and counted) on the first run that finds it only
+            if (now - checkout.borrowedAt > leakThreshold && checkout.reported.compareAndSet(false, true)) {
+                leaks.increment();
+                log.warn("State machine {} checked out for {} ms, possible leak",
+                        sm.getUuid(), TimeUnit.NANOSECONDS.toMillis(now - checkout.borrowedAt));
+            }
+        });
+    }
+
+    private void registerMeters(MeterRegistry registry) {
+        FunctionCounter.builder("payment.statemachine.pool.checkouts", this, StateMachinePool::getHits)
+                .tag("result", "hit").register(registry);
+        FunctionCounter.builder("payment.statemachine.pool.checkouts", this, StateMachinePool::getMisses)
+                .tag("result", "miss").register(registry);
+        FunctionCounter.builder("payment.statemachine.pool.evictions", this, StateMachinePool::getEvictions).register(registry);
+        FunctionCounter.builder("payment.statemachine.pool.leaks", this, StateMachinePool::getLeaks).register(registry);
+        Gauge.builder("payment.statemachine.pool.machines", this, StateMachinePool::getIdleCount)
+                .tag("state", "idle").register(registry);
+        Gauge.builder("payment.statemachine.pool.machines", this, StateMachinePool::getActiveCount)
+                .tag("state", "active").register(registry);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getLeaks() {
+        return leaks.sum();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getActiveCount() {
+        return borrowed.size();
+    }
+
+    private StateMachine<PaymentState, PaymentEvent> create() {
+        StateMachine<PaymentState, PaymentEvent> sm = stateMachineFactory.getStateMachine();
+
+        // the interceptors are wired in exactly once for the lifetime of the machine
+        sm.getStateMachineAccessor()
+                .doWithAllRegions(sma -> {
+                    sma.addStateMachineInterceptor(paymentStateChangeInterceptor);
+                    sma.addStateMachineInterceptor(transitionMetricsInterceptor);
+                });
+
+        return sm;
+    }
+
+    // set State Machine State to the State value we retrieve from the database and restart it
+    private void reset(StateMachine<PaymentState, PaymentEvent> sm, PaymentState state) {
+        sm.stop();
+
+        sm.getStateMachineAccessor()
+                .doWithAllRegions(sma -> sma.resetStateMachine(new DefaultStateMachineContext<>(state, null, null, null)));
+
+        sm.start();
+    }
+
+    @RequiredArgsConstructor
+    private static final class Checkout {
+        private final long borrowedAt;
+        private final AtomicBoolean reported = new AtomicBoolean();
+    }
+
+    @RequiredArgsConstructor
+    private static final class IdleMachine {
+        private final StateMachine<PaymentState, PaymentEvent> machine;
+        private final long returnedAt;
+    }
+}
@@ -0,0 +1,61 @@
+package com.kwgdev.msscspringstatemachine.services;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.engine.PaymentTransitionTable;
+import com.kwgdev.msscspringstatemachine.engine.TransitionListener;
+import com.kwgdev.msscspringstatemachine.jfr.PaymentFlightRecorder;
+import com.kwgdev.msscspringstatemachine.jfr.TransitionEvent;
+import com.kwgdev.msscspringstatemachine.metrics.PaymentMetrics;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Table engine - applies events straight off the PaymentTransitionTable compiled in StateMachineConfig
+ */
+@RequiredArgsConstructor
+@Component
+@ConditionalOnProperty(name = "payment.engine", havingValue = "table")
+public class TransitionTableEventProcessor implements PaymentEventProcessor {
+
+    private final PaymentTransitionTable paymentTransitionTable;
+    private final PaymentStatePersister paymentStatePersister;
+    private final PaymentMetrics paymentMetrics;
+    private final PaymentFlightRecorder paymentFlightRecorder;
+
+    // one reusable timing listener per thread, so timing the transitions does not allocate per event
+    private final ThreadLocal<TimedPersister> timedPersister = ThreadLocal.withInitial(TimedPersister::new);
+
+    @Transactional
+    @Override
+    public PaymentState sendEvent(Long paymentId, PaymentState state, PaymentEvent event) {
+        TransitionEvent recorded = paymentFlightRecorder.beginTransition();
+        PaymentState result = null;
+        try {
+            TimedPersister listener = timedPersister.get();
+            listener.start = System.nanoTime();
+            result = paymentTransitionTable.fire(paymentId, state, event, listener);
+            return result;
+        } finally {
+            if (recorded != null) {
+                recorded.end(paymentId, state, event, result);
+            }
+        }
+    }
+
+    // persists a transition and records how long it took since the previous one (or the start of the event) ended
+    private final class TimedPersister implements TransitionListener {
+        private long start;
+
+        @Override
+        public void stateChanged(Long paymentId, PaymentState source, PaymentState target, PaymentEvent event) {
+            paymentStatePersister.stateChanged(paymentId, source, target, event);
+
+            long end = System.nanoTime();
+            paymentMetrics.recordTransition(source, target, event, end - start);
+            start = end;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.kwgdev.msscspringstatemachine.summary;
+
+import com.kwgdev.msscspringstatemachine.cluster.ClusterProperties;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.domain.PaymentStateSummary;
+import com.kwgdev.msscspringstatemachine.repository.PaymentStateSummaryRepository;
+import com.kwgdev.msscspringstatemachine.services.AfterCommit;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Number of payments and their total amount per PaymentState, kept up to date as payments are created and move
+ * between states instead of counting the payment table.
+ *
+ * Every change is a Delta that is added to striped LongAdders once its transaction commits, so reading a state's
+ * count or amount is one sum() over a handful of cells. The counters are written to payment_state_summary every
+ * checkpoint-interval and counted again from the payment table on startup (the checkpoint is only used to report
+ * how far it was off).
+ *
+ * With payment.cluster.enabled a node only sees the deltas of its own transactions, and every node writing its totals
+ * would overwrite the others' in the shared payment_state_summary. So in cluster mode nothing is checkpointed, every
+ * checkpoint-interval the node counts the payment table again instead - the counters are the table as of the last
+ * count plus what committed on this node since, other nodes' changes show up with the next count.
+ *
+ * Meters: payment.state.count{state} and payment.state.amount{state}.
+ */
+@Slf4j
+@Component
+public class PaymentStateCounters {
+
+    private static final PaymentState[] STATES = PaymentState.values();
+
+    private static final String COUNT_BY_STATE = "select state, count(*), coalesce(sum(amount), 0) from payment group by state";
+
+    private final PaymentStateSummaryRepository summaryRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final PaymentStateCountersProperties properties;
+    private final boolean clustered;
+
+    private final LongAdder[] counts = new LongAdder[STATES.length];
+    private final LongAdder[] amountCents = new LongAdder[STATES.length];
+
+    public PaymentStateCounters(PaymentStateSummaryRepository summaryRepository, JdbcTemplate jdbcTemplate,
+                                PlatformTransactionManager transactionManager, PaymentStateCountersProperties properties,
+                                ClusterProperties clusterProperties, MeterRegistry meterRegistry) {
+        this.summaryRepository = summaryRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.properties = properties;
+        this.clustered = clusterProperties.isEnabled();
+
+        for (PaymentState state : STATES) {
+            counts[state.ordinal()] = new LongAdder();
+            amountCents[state.ordinal()] = new LongAdder();
+
+            Gauge.builder("payment.state.count", this, counters -> counters.count(state))
+                    .tag("state", state.name()).register(meterRegistry);
+            Gauge.builder("payment.state.amount", this, counters -> counters.amount(state).doubleValue())
+                    .tag("state", state.name()).register(meterRegistry);
+        }
+    }
+
+    public static long toCents(BigDecimal amount) {
+        return amount == null ? 0 : amount.movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValueExact();
+    }
+
+    // a payment was inserted
+    public void created(PaymentState state, BigDecimal amount) {
+        apply(new Delta().add(state, toCents(amount)));
+    }
+
+    // a payment went from source to target
+    public void moved(PaymentState source, PaymentState target, long amountCents) {
+        if (source != target) {
+            apply(new Delta().move(source, target, amountCents));
+        }
+    }
+
+    // added to the counters after the current transaction commits (right away without one), a rollback drops it
+    public void apply(Delta delta) {
+        if (delta.isEmpty()) {
+            return;
+        }
+
+        AfterCommit.run(() -> add(delta));
+    }
+
+    public long count(PaymentState state) {
+        return counts[state.ordinal()].sum();
+    }
+
+    public long amountCents(PaymentState state) {
+        return amountCents[state.ordinal()].sum();
+    }
+
+    public BigDecimal amount(PaymentState state) {
+        return BigDecimal.valueOf(amountCents(state), 2);
+    }
+
+    public Map<PaymentState, Totals> totals() {
+        Map<PaymentState, Totals> totals = new EnumMap<>(PaymentState.class);
+        for (PaymentState state : STATES) {
+            totals.put(state, new Totals(count(state), amountCents(state)));
+        }
+        return totals;
+    }
+
+    @Scheduled(fixedDelayString = "${payment.state-counters.checkpoint-interval:PT1M}",
+            initialDelayString = "${payment.state-counters.checkpoint-interval:PT1M}")
+    public void checkpoint() {
+        if (clustered) {
+            recount(Map.of());
+            log.debug("Payment state counters counted again: {}", totals());
+            return;
+        }
+
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        List<PaymentStateSummary> rows = new ArrayList<>(STATES.length);
+        totals().forEach((state, totals) -> rows.add(new PaymentStateSummary(state, totals.getCount(), totals.getAmountCents(), now)));
+
+        transactionTemplate.executeWithoutResult(status -> summaryRepository.saveAll(rows));
+    }
+
+    // the payment table is the truth, whatever the checkpoint says is only logged when it does not agree
+    //
+    // deltas committed while the table is being counted are kept on top of it, so a transition racing the
+    // startup scan can be counted twice - the next restart (or a call to reconcile) puts that right
+    //
+    // in cluster mode the checkpoint is not ours to trust or compare with, the table is always counted
+    @EventListener(ApplicationReadyEvent.class)
+    public void reconcile() {
+        if (clustered) {
+            recount(Map.of());
+            log.info("Payment state counters counted: {}", totals());
+            return;
+        }
+
+        Map<PaymentState, Totals> checkpointed = new EnumMap<>(PaymentState.class);
+        for (PaymentStateSummary row : summaryRepository.findAll()) {
+            checkpointed.put(row.getState(), new Totals(row.getPaymentCount(), row.getAmountCents()));
+        }
+
+        if (!properties.isReconcileOnStartup()) {
+            Map<PaymentState, Totals> current = totals();
+            checkpointed.forEach((state, totals) -> reset(state, current.get(state), totals));
+            log.info("Payment state counters loaded from checkpoint: {}", totals());
+            return;
+        }
+
+        recount(checkpointed);
+        log.info("Payment state counters reconciled: {}", totals());
+    }
+
+    // puts the counters on what the payment table has, warns about checkpointed totals that do not agree
+    private void recount(Map<PaymentState, Totals> checkpointed) {
+        Map<PaymentState, Totals> before = totals();
+        Map<PaymentState, Totals> scanned = new EnumMap<>(PaymentState.class);
+        jdbcTemplate.query(COUNT_BY_STATE, rs -> {
+            scanned.put(PaymentState.valueOf(rs.getString(1)), new Totals(rs.getLong(2), toCents(rs.getBigDecimal(3))));
+        });
+
+        for (PaymentState state : STATES) {
+            Totals actual = scanned.getOrDefault(state, Totals.ZERO);
+            Totals saved = checkpointed.get(state);
+            if (saved != null && !saved.equals(actual)) {
+                log.warn("Payment state counters for {} were checkpointed at {} but the table has {}", state, saved, actual);
+            }
+            reset(state, before.get(state), actual);
+        }
+    }
+
+    // moves the counters from what they were when we looked to the given totals, leaving concurrent deltas alone
+    private void reset(PaymentState state, Totals from, Totals to) {
+        counts[state.ordinal()].add(to.getCount() - from.getCount());
+        amountCents[state.ordinal()].add(to.getAmountCents() - from.getAmountCents());
+    }
+
+    private void add(Delta delta) {
+        for (int i = 0; i < STATES.length; i++) {
+            if (delta.counts[i] != 0) {
+                counts[i].add(delta.counts[i]);
+            }
+            if (delta.amountCents[i] != 0) {
+                amountCents[i].add(delta.amountCents[i]);
+            }
+        }
+    }
+
+    /**
+     * Changes to the counters made by one transaction, bulk operations collect a whole chunk into one
+     */
+    public static final class Delta {
+        private final long[] counts = new long[STATES.length];
+        private final long[] amountCents = new long[STATES.length];
+        private boolean empty = true;
+
+        public Delta add(PaymentState state, long cents) {
+            counts[state.ordinal()]++;
+            amountCents[state.ordinal()] += cents;
+            empty = false;
+            return this;
+        }
+
+        public Delta move(PaymentState source, PaymentState target, long cents) {
+            if (source != target) {
+                counts[source.ordinal()]--;
+                amountCents[source.ordinal()] -= cents;
+                add(target, cents);
+            }
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return empty;
+        }
+    }
+
+    @Value
+    public static class Totals {
+        static final Totals ZERO = new Totals(0, 0);
+
+        long count;
+        long amountCents;
+    }
+}
@@ -0,0 +1,21 @@
+package com.kwgdev.msscspringstatemachine.summary;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * Settings for the per-state payment counters, see PaymentStateCounters
+ */
+@Data
+@ConfigurationProperties(prefix = "payment.state-counters")
+public class PaymentStateCountersProperties {
+
+    // how often the counters are written to payment_state_summary (with payment.cluster.enabled: how often the
+    // payment table is counted again instead)
+    private Duration checkpointInterval = Duration.ofMinutes(1);
+
+    // false trusts the last checkpoint on startup instead of counting the payment table again, not in cluster mode
+    private boolean reconcileOnStartup = true;
+}
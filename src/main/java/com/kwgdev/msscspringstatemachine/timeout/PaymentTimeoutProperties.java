@@ -0,0 +1,34 @@
+package com.kwgdev.msscspringstatemachine.timeout;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * Settings for expiring payments that never got the processor's answer, see PaymentTimeouts
+ */
+@Data
+@ConfigurationProperties(prefix = "payment.timeout")
+public class PaymentTimeoutProperties {
+
+    private boolean enabled = true;
+
+    // a NEW payment still waiting for PRE_AUTH_APPROVED/DECLINED after this is sent PRE_AUTH_DECLINED
+    private Duration newTimeout = Duration.ofMinutes(15);
+
+    // a PRE_AUTH payment still waiting for AUTH_APPROVED/DECLINED after this is sent AUTH_DECLINED
+    private Duration preAuthTimeout = Duration.ofMinutes(15);
+
+    // resolution of the timing wheel, payments expire up to one tick late
+    private Duration tick = Duration.ofSeconds(1);
+
+    // buckets of the wheel (rounded up to a power of two), a timeout longer than wheelSize ticks just waits extra rounds
+    private int wheelSize = 4096;
+
+    // expired payments checked and declined per batch
+    private int expiryBatchSize = 500;
+
+    // payments read per query when rebuilding the wheel on startup
+    private int rebuildPageSize = 10_000;
+}
@@ -0,0 +1,238 @@
+package com.kwgdev.msscspringstatemachine.timeout;
+
+import com.kwgdev.msscspringstatemachine.cluster.PartitionsAcquiredEvent;
+import com.kwgdev.msscspringstatemachine.cluster.PaymentPartitionOwnership;
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.services.AfterCommit;
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongPredicate;
+
+/**
+ * Declines payments that sit in NEW or PRE_AUTH longer than the configured timeout.
+ *
+ * Entering one of those states (after commit) puts a timer on a TimingWheel, every tick the expired timers are
+ * collected and worked off in batches: one query drops the payments that moved on in the meantime, the rest get
+ * PRE_AUTH_DECLINED / AUTH_DECLINED through PaymentService.sendFollowUpEvent - the same lane, machine and interceptor
+ * path as any other event. On startup the wheel is refilled from the payments still in those states, with
+ * payment.cluster.enabled from the ones in each partition this node takes over instead.
+ *
+ * Meters: payment.timeout.pending, payment.timeout.expired{state} and payment.timeout.skipped (moved on in time).
+ */
+@Slf4j
+@Component
+public class PaymentTimeouts {
+
+    private static final String STILL_IN_STATE = "select id from payment where state = :state and id in (:ids)";
+
+    // the last journaled transition tells when the payment got into its state, a NEW payment without one
+    // is counted from now (it may expire up to one timeout late, never early)
+    private static final String PENDING_PAGE = "select p.id, p.state, " +
+            "(select max(t.occurred_at) from payment_transition t where t.payment_id = p.id) " +
+            "from payment p where p.state in ('NEW', 'PRE_AUTH') and p.id > ? order by p.id limit ?";
+
+    private final ObjectProvider<PaymentService> paymentService;
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+    private final PaymentTimeoutProperties properties;
+    private final PaymentPartitionOwnership paymentPartitionOwnership;
+    private final long tickMillis;
+    private final TimingWheel wheel;
+
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "payment-timeout-load");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Counter expiredNew;
+    private final Counter expiredPreAuth;
+    private final Counter skipped;
+
+    public PaymentTimeouts(ObjectProvider<PaymentService> paymentService, JdbcTemplate jdbcTemplate,
+                           PaymentTimeoutProperties properties, PaymentPartitionOwnership paymentPartitionOwnership,
+                           MeterRegistry meterRegistry) {
+        this.paymentService = paymentService;
+        this.jdbcTemplate = jdbcTemplate;
+        this.namedJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+        this.properties = properties;
+        this.paymentPartitionOwnership = paymentPartitionOwnership;
+        this.tickMillis = Math.max(1, properties.getTick().toMillis());
+        this.wheel = new TimingWheel(properties.getWheelSize(), currentTick());
+
+        Gauge.builder("payment.timeout.pending", wheel, TimingWheel::size).register(meterRegistry);
+        this.expiredNew = Counter.builder("payment.timeout.expired").tag("state", PaymentState.NEW.name()).register(meterRegistry);
+        this.expiredPreAuth = Counter.builder("payment.timeout.expired").tag("state", PaymentState.PRE_AUTH.name()).register(meterRegistry);
+        this.skipped = Counter.builder("payment.timeout.skipped").register(meterRegistry);
+    }
+
+    // a payment moved into state, starts its timer once the transaction commits
+    public void stateEntered(Long paymentId, PaymentState state) {
+        if (!properties.isEnabled() || timeout(state) == 0) {
+            return;
+        }
+
+        long deadline = System.currentTimeMillis() + timeout(state);
+        AfterCommit.run(() -> schedule(paymentId, state, deadline));
+    }
+
+    @Scheduled(fixedDelayString = "${payment.timeout.tick:PT1S}")
+    public void tick() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+
+        Expired expiredNewIds = new Expired();
+        Expired expiredPreAuthIds = new Expired();
+        wheel.advance(currentTick(), (paymentId, state) ->
+                (state == PaymentState.NEW ? expiredNewIds : expiredPreAuthIds).add(paymentId));
+
+        expire(expiredNewIds, PaymentState.NEW, PaymentEvent.PRE_AUTH_DECLINED, expiredNew);
+        expire(expiredPreAuthIds, PaymentState.PRE_AUTH, PaymentEvent.AUTH_DECLINED, expiredPreAuth);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        if (!properties.isEnabled() || paymentPartitionOwnership.isEnabled()) {
+            return;
+        }
+
+        log.info("Scheduled timeouts for {} pending payments", load(paymentId -> true));
+    }
+
+    // the node that had these partitions may have died with their timers, a timer we end up with twice
+    // only declines once (the second one finds the payment moved on)
+    // the scan runs off the heartbeat thread, it must not hold up the lease renewals
+    @EventListener
+    public void partitionsAcquired(PartitionsAcquiredEvent event) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+
+        loader.execute(() -> log.info("Scheduled timeouts for {} pending payments in {} acquired partitions",
+                load(event::containsPayment), event.getPartitions().cardinality()));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        loader.shutdownNow();
+    }
+
+    public int pending() {
+        return wheel.size();
+    }
+
+    // schedules the pending payments accepted by the filter, returns how many
+    private int load(LongPredicate accept) {
+        long now = System.currentTimeMillis();
+        long[] lastId = {0};
+        int[] page = new int[1];
+        int[] total = {0};
+
+        do {
+            page[0] = 0;
+            jdbcTemplate.query(PENDING_PAGE, rs -> {
+                long paymentId = rs.getLong(1);
+                PaymentState state = PaymentState.valueOf(rs.getString(2));
+                Timestamp enteredAt = rs.getTimestamp(3);
+
+                if (accept.test(paymentId)) {
+                    schedule(paymentId, state, (enteredAt != null ? enteredAt.getTime() : now) + timeout(state));
+                    total[0]++;
+                }
+                lastId[0] = paymentId;
+                page[0]++;
+            }, lastId[0], properties.getRebuildPageSize());
+        } while (page[0] == properties.getRebuildPageSize());
+
+        return total[0];
+    }
+
+    private void expire(Expired expired, PaymentState state, PaymentEvent decline, Counter counter) {
+        int batchSize = properties.getExpiryBatchSize();
+        for (int from = 0; from < expired.size; from += batchSize) {
+            long[] batch = Arrays.copyOfRange(expired.ids, from, Math.min(expired.size, from + batchSize));
+            try {
+                expireBatch(batch, state, decline, counter);
+            } catch (RuntimeException e) {
+                log.warn("Expiring {} payments in {} failed", batch.length, state, e);
+            }
+        }
+    }
+
+    private void expireBatch(long[] batch, PaymentState state, PaymentEvent decline, Counter counter) {
+        List<Long> ids = new ArrayList<>(batch.length);
+        for (long id : batch) {
+            ids.add(id);
+        }
+
+        Set<Long> stillPending = new HashSet<>(namedJdbcTemplate.queryForList(STILL_IN_STATE,
+                new MapSqlParameterSource("state", state.name()).addValue("ids", ids), Long.class));
+        skipped.increment(batch.length - stillPending.size());
+
+        for (Long paymentId : stillPending) {
+            try {
+                paymentService.getObject().sendFollowUpEvent(paymentId, decline);
+                counter.increment();
+            } catch (RuntimeException e) {
+                // most likely the processor's answer came in at the same moment, that one wins
+                log.debug("Could not expire payment {} in {}", paymentId, state, e);
+                skipped.increment();
+            }
+        }
+    }
+
+    private void schedule(long paymentId, PaymentState state, long deadlineMillis) {
+        wheel.schedule(paymentId, state, (deadlineMillis + tickMillis - 1) / tickMillis);
+    }
+
+    private long timeout(PaymentState state) {
+        switch (state) {
+            case NEW:
+                return properties.getNewTimeout().toMillis();
+            case PRE_AUTH:
+                return properties.getPreAuthTimeout().toMillis();
+            default:
+                return 0;
+        }
+    }
+
+    private long currentTick() {
+        return System.currentTimeMillis() / tickMillis;
+    }
+
+    // growable list of ids without boxing, filled while the wheel is locked
+    private static final class Expired {
+        private long[] ids = new long[16];
+        private int size;
+
+        private void add(long paymentId) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size << 1);
+            }
+            ids[size++] = paymentId;
+        }
+    }
+}
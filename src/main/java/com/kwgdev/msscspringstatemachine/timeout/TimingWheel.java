@@ -0,0 +1,128 @@
+package com.kwgdev.msscspringstatemachine.timeout;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+
+import java.util.Arrays;
+
+/**
+ * Hashed timing wheel of (paymentId, state, deadline) timers.
+ *
+ * A timer goes into bucket deadline % wheelSize, advancing one tick only looks at that tick's bucket and fires
+ * the timers whose deadline has come (the others are a round or more ahead). Scheduling and firing are O(1)
+ * per timer no matter how many are pending, and buckets are primitive arrays, so millions of timers cost
+ * about 17 bytes each and no objects.
+ *
+ * There is no cancel: a timer records the state it guards and whoever gets it on expiry checks whether the
+ * payment is still in that state (lazy cancellation).
+ */
+public class TimingWheel {
+
+    private static final PaymentState[] STATES = PaymentState.values();
+
+    private final Bucket[] buckets;
+    private final int mask;
+    private long currentTick;
+    private int size;
+
+    public TimingWheel(int wheelSize, long startTick) {
+        int capacity = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+        this.buckets = new Bucket[capacity];
+        for (int i = 0; i < capacity; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.mask = capacity - 1;
+        this.currentTick = startTick;
+    }
+
+    // a deadline that already passed fires on the next tick
+    public synchronized void schedule(long paymentId, PaymentState state, long deadlineTick) {
+        long deadline = Math.max(deadlineTick, currentTick + 1);
+        buckets[(int) (deadline & mask)].add(paymentId, state, deadline);
+        size++;
+    }
+
+    // moves the wheel up to toTick and hands every timer that came due to the consumer, returns how many
+    public synchronized int advance(long toTick, ExpiryConsumer consumer) {
+        if (toTick <= currentTick) {
+            return 0;
+        }
+
+        int expired = 0;
+        if (toTick - currentTick >= buckets.length) {
+            // fell a whole round or more behind (paused JVM, long expiry batch), one sweep of every bucket does it
+            currentTick = toTick;
+            for (Bucket bucket : buckets) {
+                expired += bucket.expire(currentTick, consumer);
+            }
+        } else {
+            while (currentTick < toTick) {
+                currentTick++;
+                expired += buckets[(int) (currentTick & mask)].expire(currentTick, consumer);
+            }
+        }
+
+        size -= expired;
+        return expired;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long getCurrentTick() {
+        return currentTick;
+    }
+
+    @FunctionalInterface
+    public interface ExpiryConsumer {
+        void expired(long paymentId, PaymentState state);
+    }
+
+    private static final class Bucket {
+        private long[] paymentIds = new long[4];
+        private long[] deadlines = new long[4];
+        private byte[] states = new byte[4];
+        private int size;
+
+        private void add(long paymentId, PaymentState state, long deadline) {
+            if (size == paymentIds.length) {
+                int capacity = size << 1;
+                paymentIds = Arrays.copyOf(paymentIds, capacity);
+                deadlines = Arrays.copyOf(deadlines, capacity);
+                states = Arrays.copyOf(states, capacity);
+            }
+            paymentIds[size] = paymentId;
+            deadlines[size] = deadline;
+            states[size] = (byte) state.ordinal();
+            size++;
+        }
+
+        // fires what is due and fills the holes with the last entry, order inside a bucket does not matter
+        private int expire(long tick, ExpiryConsumer consumer) {
+            int expired = 0;
+            int i = 0;
+            while (i < size) {
+                if (deadlines[i] <= tick) {
+                    consumer.expired(paymentIds[i], STATES[states[i]]);
+                    expired++;
+
+                    size--;
+                    paymentIds[i] = paymentIds[size];
+                    deadlines[i] = deadlines[size];
+                    states[i] = states[size];
+                } else {
+                    i++;
+                }
+            }
+
+            // give the memory of a burst back once the bucket is nearly empty again
+            if (paymentIds.length > 64 && size < paymentIds.length / 8) {
+                int capacity = Math.max(4, paymentIds.length / 4);
+                paymentIds = Arrays.copyOf(paymentIds, capacity);
+                deadlines = Arrays.copyOf(deadlines, capacity);
+                states = Arrays.copyOf(states, capacity);
+            }
+            return expired;
+        }
+    }
+}
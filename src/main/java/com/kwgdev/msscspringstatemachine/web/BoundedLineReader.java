@@ -0,0 +1,85 @@
+package com.kwgdev.msscspringstatemachine.web;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Line reader for request bodies that never holds more than maxLength chars of a line, whatever the client sends.
+ *
+ * A longer line is read up to its end and thrown away, isTooLong() tells the caller so. Lines end at \n, a \r in
+ * front of it is dropped.
+ */
+final class BoundedLineReader {
+
+    private final Reader in;
+    private final int maxLength;
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+
+    // one more than maxLength, the last char may turn out to be the \r of a \r\n
+    private final StringBuilder line = new StringBuilder();
+    private boolean tooLong;
+
+    BoundedLineReader(Reader in, int maxLength) {
+        this.in = in;
+        this.maxLength = maxLength;
+    }
+
+    // next line without its terminator, null at the end of the input - empty when the line was too long
+    String readLine() throws IOException {
+        line.setLength(0);
+        tooLong = false;
+        boolean read = false;
+
+        while (true) {
+            if (position == limit) {
+                limit = Math.max(0, in.read(buffer, 0, buffer.length));
+                position = 0;
+                if (limit == 0) {
+                    return read ? finish() : null;
+                }
+            }
+            read = true;
+
+            int start = position;
+            while (position < limit && buffer[position] != '\n') {
+                position++;
+            }
+            append(start, position);
+
+            if (position < limit) {
+                position++;
+                return finish();
+            }
+        }
+    }
+
+    // whether the line readLine() returned last was longer than maxLength
+    boolean isTooLong() {
+        return tooLong;
+    }
+
+    private void append(int from, int to) {
+        int room = maxLength + 1 - line.length();
+        if (to - from > room) {
+            tooLong = true;
+        } else if (!tooLong) {
+            line.append(buffer, from, to - from);
+        }
+    }
+
+    private String finish() {
+        if (tooLong) {
+            return "";
+        }
+        if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+            line.setLength(line.length() - 1);
+        }
+        if (line.length() > maxLength) {
+            tooLong = true;
+            return "";
+        }
+        return line.toString();
+    }
+}
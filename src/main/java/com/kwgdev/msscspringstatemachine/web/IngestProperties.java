@@ -0,0 +1,21 @@
+package com.kwgdev.msscspringstatemachine.web;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Settings for the NDJSON ingestion endpoint, see PaymentIngestController
+ */
+@Data
+@ConfigurationProperties(prefix = "payment.ingest")
+public class IngestProperties {
+
+    // records handed to PaymentService per call, results are flushed back after every chunk
+    private int chunkSize = 500;
+
+    // ingest requests running at once, the next one gets a 429
+    private int maxConcurrentRequests = 8;
+
+    // longest record line read, a longer one is skipped and answered with INVALID
+    private int maxLineLength = 16_384;
+}
@@ -0,0 +1,24 @@
+package com.kwgdev.msscspringstatemachine.web;
+
+import lombok.Data;
+
+import java.math.BigDecimal;
+
+/**
+ * One line of an ingest request body
+ *
+ * {"op":"NEW","amount":12.99}, {"op":"PRE_AUTH","paymentId":1} or {"op":"AUTHORIZE","paymentId":1}
+ */
+@Data
+public class IngestRecord {
+
+    public enum Op {
+        NEW,
+        PRE_AUTH,
+        AUTHORIZE
+    }
+
+    private Op op;
+    private Long paymentId;
+    private BigDecimal amount;
+}
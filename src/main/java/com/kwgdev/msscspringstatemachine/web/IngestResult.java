@@ -0,0 +1,23 @@
+package com.kwgdev.msscspringstatemachine.web;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import lombok.Value;
+
+/**
+ * One line of an ingest response, line is the 1 based line of the request it answers
+ *
+ * status is CREATED for new payments, one of PaymentTransitionResult.Status for events,
+ * INVALID for a line that could not be used and FAILED when PaymentService threw
+ */
+@Value
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class IngestResult {
+
+    long line;
+    IngestRecord.Op op;
+    Long paymentId;
+    PaymentState state;
+    String status;
+    String error;
+}
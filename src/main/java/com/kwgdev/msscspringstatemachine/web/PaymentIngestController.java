@@ -0,0 +1,210 @@
+package com.kwgdev.msscspringstatemachine.web;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import com.kwgdev.msscspringstatemachine.services.PaymentTransitionResult;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bulk entry point for upstream systems: new payments and events as NDJSON in, one result per line back out.
+ *
+ * The body is read line by line and handed to PaymentService a chunk at a time, runs of new payments go through
+ * newPayments and runs of events through preAuthAll/authorizeAll. Results of a chunk are written and flushed
+ * as soon as it is done, so neither side ever holds the whole stream. A bad line only fails itself, and so does one
+ * longer than maxLineLength - it is skipped without being buffered.
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/v1/payments")
+public class PaymentIngestController {
+
+    public static final String NDJSON = "application/x-ndjson";
+
+    private final PaymentService paymentService;
+    private final IngestProperties properties;
+    private final ObjectReader recordReader;
+    private final ObjectWriter resultWriter;
+    private final Semaphore permits;
+
+    public PaymentIngestController(PaymentService paymentService, IngestProperties properties, ObjectMapper objectMapper) {
+        this.paymentService = paymentService;
+        this.properties = properties;
+        this.recordReader = objectMapper.readerFor(IngestRecord.class);
+        this.resultWriter = objectMapper.writerFor(IngestResult.class);
+        this.permits = new Semaphore(properties.getMaxConcurrentRequests());
+    }
+
+    @PostMapping(path = "/ingest", consumes = NDJSON, produces = NDJSON)
+    public void ingest(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!permits.tryAcquire()) {
+            response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+            return;
+        }
+
+        try {
+            response.setContentType(NDJSON);
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+
+            BoundedLineReader body = new BoundedLineReader(new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8),
+                    properties.getMaxLineLength());
+            OutputStream out = response.getOutputStream();
+
+            List<Line> chunk = new ArrayList<>(properties.getChunkSize());
+            long lineNumber = 0;
+            String text;
+            while ((text = body.readLine()) != null) {
+                lineNumber++;
+                if (body.isTooLong()) {
+                    chunk.add(Line.invalid(lineNumber, null, "line is longer than " + properties.getMaxLineLength() + " characters"));
+                } else if (text.isBlank()) {
+                    continue;
+                } else {
+                    chunk.add(parse(lineNumber, text));
+                }
+                if (chunk.size() == properties.getChunkSize()) {
+                    write(process(chunk), out);
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                write(process(chunk), out);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private Line parse(long lineNumber, String text) {
+        IngestRecord record;
+        try {
+            record = recordReader.readValue(text);
+        } catch (JsonProcessingException e) {
+            return Line.invalid(lineNumber, null, "not a payment record: " + e.getOriginalMessage());
+        }
+
+        if (record.getOp() == null) {
+            return Line.invalid(lineNumber, null, "op is missing");
+        }
+        if (record.getOp() == IngestRecord.Op.NEW && record.getAmount() == null) {
+            return Line.invalid(lineNumber, record.getOp(), "amount is missing");
+        }
+        if (record.getOp() != IngestRecord.Op.NEW && record.getPaymentId() == null) {
+            return Line.invalid(lineNumber, record.getOp(), "paymentId is missing");
+        }
+        return new Line(lineNumber, record, null);
+    }
+
+    // results in the order of the lines, consecutive events of the same kind go to the bulk call together
+    private List<IngestResult> process(List<Line> chunk) {
+        List<IngestResult> results = new ArrayList<>(chunk.size());
+
+        int i = 0;
+        while (i < chunk.size()) {
+            Line line = chunk.get(i);
+            if (line.error != null) {
+                results.add(new IngestResult(line.number, line.op(), null, null, "INVALID", line.error));
+                i++;
+                continue;
+            }
+
+            int end = i + 1;
+            while (end < chunk.size() && chunk.get(end).error == null && chunk.get(end).op() == line.op()) {
+                end++;
+            }
+
+            List<Line> run = chunk.subList(i, end);
+            try {
+                if (line.op() == IngestRecord.Op.NEW) {
+                    create(run, results);
+                } else {
+                    transition(run, results);
+                }
+            } catch (RuntimeException e) {
+                log.warn("Ingest of lines {}-{} failed", run.get(0).number, run.get(run.size() - 1).number, e);
+                for (Line failed : run) {
+                    results.add(new IngestResult(failed.number, failed.op(), failed.record.getPaymentId(), null,
+                            "FAILED", e.getMessage()));
+                }
+            }
+            i = end;
+        }
+
+        return results;
+    }
+
+    private void create(List<Line> run, List<IngestResult> results) {
+        List<Payment> payments = new ArrayList<>(run.size());
+        for (Line line : run) {
+            payments.add(Payment.builder().amount(line.record.getAmount()).build());
+        }
+
+        List<Payment> created = paymentService.newPayments(payments);
+        for (int i = 0; i < run.size(); i++) {
+            Payment payment = created.get(i);
+            results.add(new IngestResult(run.get(i).number, run.get(i).op(), payment.getId(), payment.getState(), "CREATED", null));
+        }
+    }
+
+    private void transition(List<Line> run, List<IngestResult> results) {
+        List<Long> paymentIds = new ArrayList<>(run.size());
+        for (Line line : run) {
+            paymentIds.add(line.record.getPaymentId());
+        }
+
+        List<PaymentTransitionResult> transitioned = run.get(0).op() == IngestRecord.Op.PRE_AUTH
+                ? paymentService.preAuthAll(paymentIds)
+                : paymentService.authorizeAll(paymentIds);
+
+        for (int i = 0; i < run.size(); i++) {
+            PaymentTransitionResult result = transitioned.get(i);
+            results.add(new IngestResult(run.get(i).number, run.get(i).op(), result.getPaymentId(), result.getState(),
+                    result.getStatus().name(), null));
+        }
+    }
+
+    private void write(List<IngestResult> results, OutputStream out) throws IOException {
+        for (IngestResult result : results) {
+            out.write(resultWriter.writeValueAsBytes(result));
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    @RequiredArgsConstructor
+    private static final class Line {
+        private final long number;
+        private final IngestRecord record;
+        private final String error;
+
+        private static Line invalid(long number, IngestRecord.Op op, String error) {
+            IngestRecord record = new IngestRecord();
+            record.setOp(op);
+            return new Line(number, record, error);
+        }
+
+        private IngestRecord.Op op() {
+            return record.getOp();
+        }
+    }
+}
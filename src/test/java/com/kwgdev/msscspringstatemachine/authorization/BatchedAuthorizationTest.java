@@ -0,0 +1,40 @@
+package com.kwgdev.msscspringstatemachine.authorization;
+
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "payment.authorization.async=false",
+        "payment.authorization.batch.enabled=true",
+        "payment.authorization.batch.max-wait=1ms",
+        "payment.authorization.stub.approval-rate=1.0"})
+class BatchedAuthorizationTest {
+
+    @Autowired
+    AuthorizationGateway authorizationGateway;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Test
+    void actionsGoThroughTheBatchProcessor() {
+        assertTrue(authorizationGateway instanceof CoalescingAuthorizationGateway);
+
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+        assertEquals(PaymentState.PRE_AUTH, paymentService.preAuth(payment.getId()));
+
+        assertTrue(meterRegistry.get("payment.authorization.batch.requests").tag("type", "PRE_AUTHORIZATION").counter().count() >= 1);
+    }
+}
@@ -0,0 +1,109 @@
+package com.kwgdev.msscspringstatemachine.authorization;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CoalescingAuthorizationGatewayTest {
+
+    // approves even payment ids, remembers every batch it got
+    final List<List<Long>> batches = new CopyOnWriteArrayList<>();
+    final BatchAuthorizationProcessor processor = (type, paymentIds) -> {
+        batches.add(List.copyOf(paymentIds));
+        List<Boolean> answers = new ArrayList<>();
+        paymentIds.forEach(id -> answers.add(id % 2 == 0));
+        return CompletableFuture.completedFuture(answers);
+    };
+
+    final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    CoalescingAuthorizationGateway gateway;
+
+    @AfterEach
+    void tearDown() {
+        gateway.shutdown();
+    }
+
+    @Test
+    void concurrentRequestsGoOutInBatchesAndGetTheirOwnAnswer() throws Exception {
+        gateway = gateway(processor, 16, Duration.ofMillis(5));
+
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        List<CompletableFuture<Boolean>> answers = new ArrayList<>();
+        List<CompletableFuture<CompletableFuture<Boolean>>> submitted = new ArrayList<>();
+        for (long id = 0; id < 1000; id++) {
+            long paymentId = id;
+            submitted.add(CompletableFuture.supplyAsync(() -> gateway.authorize(AuthorizationType.AUTHORIZATION, paymentId), threads));
+        }
+        for (CompletableFuture<CompletableFuture<Boolean>> future : submitted) {
+            answers.add(future.get(10, TimeUnit.SECONDS));
+        }
+        threads.shutdown();
+
+        for (int id = 0; id < answers.size(); id++) {
+            assertEquals(id % 2 == 0, answers.get(id).get(10, TimeUnit.SECONDS), "payment " + id);
+        }
+
+        assertTrue(batches.size() < 1000, batches.size() + " batches");
+        assertTrue(batches.stream().allMatch(batch -> batch.size() <= 16));
+        assertEquals(1000, batches.stream().mapToInt(List::size).sum());
+        assertEquals(1000, meterRegistry.get("payment.authorization.batch.requests").tag("type", "AUTHORIZATION").counter().count());
+        assertEquals(batches.size(), meterRegistry.get("payment.authorization.batch.size").tag("type", "AUTHORIZATION").summary().count());
+    }
+
+    @Test
+    void lonelyRequestGoesOutAfterMaxWait() throws Exception {
+        gateway = gateway(processor, 64, Duration.ofMillis(20));
+
+        long start = System.nanoTime();
+        assertTrue(gateway.authorize(AuthorizationType.PRE_AUTHORIZATION, 2L).get(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(List.of(List.of(2L)), batches);
+    }
+
+    @Test
+    void typesAreBatchedSeparately() throws Exception {
+        gateway = gateway(processor, 2, Duration.ofSeconds(10));
+
+        CompletableFuture<Boolean> preAuth = gateway.authorize(AuthorizationType.PRE_AUTHORIZATION, 1L);
+        CompletableFuture<Boolean> auth = gateway.authorize(AuthorizationType.AUTHORIZATION, 2L);
+        assertFalse(preAuth.isDone());
+        assertFalse(auth.isDone());
+
+        gateway.authorize(AuthorizationType.PRE_AUTHORIZATION, 3L);
+        assertFalse(preAuth.get(1, TimeUnit.SECONDS));
+        assertFalse(auth.isDone());
+    }
+
+    @Test
+    void failedBatchFailsEveryRequestInIt() {
+        gateway = gateway((type, paymentIds) -> CompletableFuture.failedFuture(new IllegalStateException("processor down")),
+                2, Duration.ofSeconds(10));
+
+        CompletableFuture<Boolean> first = gateway.authorize(AuthorizationType.AUTHORIZATION, 1L);
+        CompletableFuture<Boolean> second = gateway.authorize(AuthorizationType.AUTHORIZATION, 2L);
+
+        assertThrows(CompletionException.class, first::join);
+        assertThrows(CompletionException.class, second::join);
+    }
+
+    private CoalescingAuthorizationGateway gateway(BatchAuthorizationProcessor processor, int maxSize, Duration maxWait) {
+        AuthorizationProperties.Batch properties = new AuthorizationProperties.Batch();
+        properties.setEnabled(true);
+        properties.setMaxSize(maxSize);
+        properties.setMaxWait(maxWait);
+        return new CoalescingAuthorizationGateway(processor, properties, meterRegistry);
+    }
+}
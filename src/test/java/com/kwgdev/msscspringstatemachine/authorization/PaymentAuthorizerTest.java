@@ -0,0 +1,99 @@
+package com.kwgdev.msscspringstatemachine.authorization;
+
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import com.kwgdev.msscspringstatemachine.services.PaymentStateCache;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@SpringBootTest(properties = {
+        "payment.authorization.async=true",
+        "payment.authorization.stub.latency=50ms",
+        "payment.authorization.stub.approval-rate=1.0"})
+class PaymentAuthorizerTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    TransactionTemplate transactionTemplate;
+
+    @Autowired
+    PaymentStateCache paymentStateCache;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @SpyBean
+    AuthorizationGateway authorizationGateway;
+
+    @Test
+    void answerIsAppliedAfterTheRequestReturns() throws InterruptedException {
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+
+        // the processor has not answered yet
+        assertEquals(PaymentState.NEW, paymentService.preAuth(payment.getId()));
+
+        assertEquals(PaymentState.PRE_AUTH, awaitStateChange(payment.getId(), PaymentState.NEW));
+    }
+
+    @Test
+    void requestIsNotSentWhenTheTransactionRollsBack() throws InterruptedException {
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+
+        transactionTemplate.executeWithoutResult(status -> {
+            paymentService.preAuth(payment.getId());
+            status.setRollbackOnly();
+        });
+
+        Thread.sleep(200);
+        assertEquals(PaymentState.NEW, stateOf(payment.getId()));
+        verify(authorizationGateway, never()).authorize(any(), eq(payment.getId()));
+    }
+
+    @Test
+    void requestIsNotSentWhenTheStateChangeLosesItsCompareAndSet() {
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+
+        // the event is worked out against NEW, someone else moves the row on before the UPDATE
+        assertThrows(OptimisticLockingFailureException.class, () -> transactionTemplate.executeWithoutResult(status -> {
+            paymentStateCache.getState(payment.getId());
+            jdbcTemplate.update("update payment set state = ? where id = ?", PaymentState.PRE_AUTH_ERROR.name(), payment.getId());
+            paymentService.preAuth(payment.getId());
+        }));
+
+        verify(authorizationGateway, never()).authorize(any(), eq(payment.getId()));
+    }
+
+    private PaymentState awaitStateChange(Long paymentId, PaymentState from) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        PaymentState state = stateOf(paymentId);
+        while (state == from && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            state = stateOf(paymentId);
+        }
+        return state;
+    }
+
+    private PaymentState stateOf(Long paymentId) {
+        return paymentRepository.findById(paymentId).orElseThrow().getState();
+    }
+}
@@ -0,0 +1,162 @@
+package com.kwgdev.msscspringstatemachine.cluster;
+
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import com.kwgdev.msscspringstatemachine.services.PaymentTransitionResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// the context is node-a, the other nodes are built by hand on the same database; heartbeats are driven by the tests
+@SpringBootTest(properties = {
+        "payment.authorization.async=false",
+        "payment.authorization.stub.approval-rate=1.0",
+        "payment.cluster.enabled=true",
+        "payment.cluster.node-id=node-a",
+        "payment.cluster.partitions=16",
+        "payment.cluster.lease-time=PT2H",
+        "payment.cluster.heartbeat-interval=PT1H"
+})
+class PaymentPartitionOwnershipTest {
+
+    private static final int PARTITIONS = 16;
+
+    @Autowired
+    PaymentPartitionOwnership nodeA;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    private final List<PaymentPartitionOwnership> others = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        nodeA.leave();
+    }
+
+    @AfterEach
+    void tearDown() {
+        others.forEach(PaymentPartitionOwnership::leave);
+    }
+
+    @Test
+    void nodesSplitThePartitionsAsTheyJoinAndLeave() {
+        nodeA.heartbeat();
+        assertEquals(PARTITIONS, nodeA.ownedPartitions());
+
+        // b joins, a sheds half on its next heartbeat and b picks them up on its own
+        PaymentPartitionOwnership nodeB = node("node-b", Duration.ofHours(2));
+        nodeB.heartbeat();
+        nodeA.heartbeat();
+        nodeB.heartbeat();
+        assertEquals(PARTITIONS / 2, nodeA.ownedPartitions());
+        assertEquals(PARTITIONS / 2, nodeB.ownedPartitions());
+        assertEveryPaymentHasOneOwner(nodeA, nodeB);
+
+        nodeB.leave();
+        nodeA.heartbeat();
+        assertEquals(PARTITIONS, nodeA.ownedPartitions());
+        assertEquals(0, nodeB.ownedPartitions());
+    }
+
+    @Test
+    void partitionsOfADeadNodeAreTakenOverOnceItsLeasesRunOut() throws Exception {
+        PaymentPartitionOwnership nodeX = node("node-x", Duration.ofMillis(400));
+        PaymentPartitionOwnership nodeY = node("node-y", Duration.ofMillis(400));
+        nodeX.heartbeat();
+        nodeY.heartbeat();
+        nodeX.heartbeat();
+        nodeY.heartbeat();
+        assertEquals(PARTITIONS / 2, nodeX.ownedPartitions());
+        assertEquals(PARTITIONS / 2, nodeY.ownedPartitions());
+
+        // y stops heartbeating
+        Thread.sleep(500);
+        assertEquals(0, nodeY.ownedPartitions());
+
+        nodeX.heartbeat();
+        assertEquals(PARTITIONS, nodeX.ownedPartitions());
+    }
+
+    @Test
+    void eventsForPartitionsOwnedElsewhereAreRejected() {
+        PaymentPartitionOwnership nodeB = node("node-b", Duration.ofHours(2));
+        nodeA.heartbeat();
+        nodeB.heartbeat();
+        nodeA.heartbeat();
+        nodeB.heartbeat();
+        // a learns who took the partitions it gave up on its next heartbeat
+        nodeA.heartbeat();
+
+        Long ours = null;
+        Long theirs = null;
+        while (ours == null || theirs == null) {
+            Long paymentId = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+            if (nodeA.isOwned(paymentId)) {
+                ours = paymentId;
+            } else {
+                theirs = paymentId;
+            }
+        }
+
+        assertEquals(PaymentState.PRE_AUTH, paymentService.preAuth(ours));
+
+        Long rejected = theirs;
+        PartitionNotOwnedException e = assertThrows(PartitionNotOwnedException.class, () -> paymentService.preAuth(rejected));
+        assertEquals("node-b", e.getOwnerId());
+        assertEquals("http://node-b:8080", e.getOwnerAddress());
+        assertEquals(nodeB.partitionOf(rejected), e.getPartition());
+
+        List<PaymentTransitionResult> results = paymentService.preAuthAll(List.of(ours, theirs));
+        assertEquals(PaymentTransitionResult.Status.NOT_ACCEPTED, results.get(0).getStatus());
+        assertEquals(PaymentTransitionResult.Status.NOT_OWNED, results.get(1).getStatus());
+        assertEquals(PaymentState.NEW, paymentService.findByState(PaymentState.NEW, theirs - 1, theirs, 1).get(0).getState());
+
+        // follow-ups of work this node started still go through
+        assertEquals(PaymentState.PRE_AUTH, paymentService.sendFollowUpEvent(theirs, PaymentEvent.PRE_AUTH_APPROVED));
+    }
+
+    private PaymentPartitionOwnership node(String nodeId, Duration leaseTime) {
+        ClusterProperties properties = new ClusterProperties();
+        properties.setEnabled(true);
+        properties.setNodeId(nodeId);
+        properties.setAddress("http://" + nodeId + ":8080");
+        properties.setPartitions(PARTITIONS);
+        properties.setLeaseTime(leaseTime);
+        properties.setHeartbeatInterval(leaseTime.dividedBy(4));
+        properties.setClockSkewAllowance(leaseTime.dividedBy(4));
+
+        PaymentPartitionOwnership node = new PaymentPartitionOwnership(jdbcTemplate, properties, event -> { },
+                new SimpleMeterRegistry());
+        others.add(node);
+        return node;
+    }
+
+    private void assertEveryPaymentHasOneOwner(PaymentPartitionOwnership... nodes) {
+        for (long paymentId = 1; paymentId <= 1_000; paymentId++) {
+            int owners = 0;
+            for (PaymentPartitionOwnership node : nodes) {
+                if (node.isOwned(paymentId)) {
+                    owners++;
+                }
+            }
+            assertEquals(1, owners, "owners of payment " + paymentId);
+        }
+    }
+}
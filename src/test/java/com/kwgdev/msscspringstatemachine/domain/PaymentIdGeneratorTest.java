@@ -0,0 +1,48 @@
+package com.kwgdev.msscspringstatemachine.domain;
+
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.persistence.EntityManagerFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "spring.jpa.properties.hibernate.generate_statistics=true",
+        "payment.id.allocation-size=100",
+        "payment.batch.chunk-size=500"
+})
+class PaymentIdGeneratorTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+
+    @Test
+    void bulkInsertIsBatchedAndTakesIdsInBlocks() {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+
+        List<Payment> payments = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            payments.add(Payment.builder().amount(new BigDecimal("12.99")).build());
+        }
+        statistics.clear();
+
+        List<Payment> saved = paymentService.newPayments(payments);
+
+        // 1000 rows are 10 sequence calls (11 when a block straddles the chunks) and one INSERT statement per chunk
+        // executed as JDBC batches, against 2000 statements for one sequence call and one INSERT per payment
+        assertEquals(1_000, saved.size());
+        assertEquals(1_000, statistics.getEntityInsertCount());
+        assertTrue(statistics.getPrepareStatementCount() <= 15, "statements for 1000 payments: " + statistics.getPrepareStatementCount());
+    }
+}
@@ -0,0 +1,93 @@
+package com.kwgdev.msscspringstatemachine.engine;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PaymentStateModelTest {
+
+    @Test
+    void paymentModelIsValid() {
+        PaymentStateModel model = PaymentStateModel.PAYMENT;
+
+        assertEquals(PaymentState.NEW, model.getInitial());
+        assertEquals(Set.of(PaymentState.AUTH, PaymentState.PRE_AUTH_ERROR, PaymentState.AUTH_ERROR), model.getEnds());
+        assertEquals(6, model.getTransitions().size());
+        assertThrows(UnsupportedOperationException.class, () -> model.getTransitions().clear());
+
+        for (PaymentStateModel.Transition transition : model.getTransitions()) {
+            assertTrue(model.rank(transition.getTarget()) >= model.rank(transition.getSource()), transition.toString());
+        }
+        // not the enum's declaration order, PRE_AUTH_ERROR is declared after PRE_AUTH but neither leads to the other
+        assertEquals(model.rank(PaymentState.PRE_AUTH), model.rank(PaymentState.PRE_AUTH_ERROR));
+    }
+
+    @Test
+    void brokenModelsAreRejected() {
+        assertNotNull(valid().build());
+
+        // the same event twice out of one state
+        assertThrows(IllegalStateException.class, () -> valid()
+                .transition(PaymentState.NEW, PaymentEvent.PRE_AUTH_APPROVED, PaymentState.PRE_AUTH_ERROR)
+                .build());
+
+        // out of an end state
+        assertThrows(IllegalStateException.class, () -> valid()
+                .transition(PaymentState.AUTH, PaymentEvent.AUTH_DECLINED, PaymentState.AUTH)
+                .build());
+
+        // back to an earlier state
+        assertThrows(IllegalStateException.class, () -> valid()
+                .transition(PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_DECLINED, PaymentState.NEW)
+                .build());
+
+        // over to a state of the same rank
+        assertThrows(IllegalStateException.class, () -> valid()
+                .rank(PaymentState.PRE_AUTH_ERROR, 1)
+                .transition(PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_DECLINED, PaymentState.PRE_AUTH_ERROR)
+                .build());
+
+        // a state without a rank
+        assertThrows(IllegalStateException.class, () -> PaymentStateModel.builder()
+                .initial(PaymentState.NEW)
+                .rank(PaymentState.NEW, 0)
+                .transition(PaymentState.NEW, PaymentEvent.PRE_AUTH_APPROVED, PaymentState.PRE_AUTH)
+                .build());
+
+        // AUTH_ERROR can no longer be reached
+        assertThrows(IllegalStateException.class, () -> ranked(PaymentStateModel.builder())
+                .initial(PaymentState.NEW)
+                .end(PaymentState.AUTH)
+                .transition(PaymentState.NEW, PaymentEvent.PRE_AUTH_APPROVED, PaymentState.PRE_AUTH)
+                .transition(PaymentState.NEW, PaymentEvent.PRE_AUTH_DECLINED, PaymentState.PRE_AUTH_ERROR)
+                .transition(PaymentState.PRE_AUTH, PaymentEvent.AUTH_APPROVED, PaymentState.AUTH)
+                .build());
+
+        assertThrows(IllegalStateException.class, () -> PaymentStateModel.builder().build());
+    }
+
+    private static PaymentStateModel.Builder valid() {
+        return ranked(PaymentStateModel.builder())
+                .initial(PaymentState.NEW)
+                .end(PaymentState.AUTH)
+                .end(PaymentState.PRE_AUTH_ERROR)
+                .end(PaymentState.AUTH_ERROR)
+                .transition(PaymentState.NEW, PaymentEvent.PRE_AUTH_APPROVED, PaymentState.PRE_AUTH)
+                .transition(PaymentState.NEW, PaymentEvent.PRE_AUTH_DECLINED, PaymentState.PRE_AUTH_ERROR)
+                .transition(PaymentState.PRE_AUTH, PaymentEvent.AUTH_APPROVED, PaymentState.AUTH)
+                .transition(PaymentState.PRE_AUTH, PaymentEvent.AUTH_DECLINED, PaymentState.AUTH_ERROR);
+    }
+
+    private static PaymentStateModel.Builder ranked(PaymentStateModel.Builder builder) {
+        return builder
+                .rank(PaymentState.NEW, 0)
+                .rank(PaymentState.PRE_AUTH, 1)
+                .rank(PaymentState.PRE_AUTH_ERROR, 2)
+                .rank(PaymentState.AUTH, 3)
+                .rank(PaymentState.AUTH_ERROR, 3);
+    }
+}
@@ -0,0 +1,222 @@
+package com.kwgdev.msscspringstatemachine.executor;
+
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = "payment.authorization.async=false")
+class PartitionedEventExecutorTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    PartitionedEventExecutor executor;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Test
+    void concurrentEventsOnOnePaymentDoNotConflict() throws Exception {
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+
+        int callers = 16;
+        ExecutorService pool = Executors.newFixedThreadPool(callers);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<PaymentState>> results = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                results.add(pool.submit(() -> {
+                    start.await();
+                    return paymentService.preAuth(payment.getId());
+                }));
+            }
+            start.countDown();
+
+            // every caller gets an answer, none of them loses a compare-and-set race
+            for (Future<PaymentState> result : results) {
+                assertNotEquals(PaymentState.NEW, result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Payment saved = paymentRepository.findById(payment.getId()).orElseThrow();
+        assertNotEquals(PaymentState.NEW, saved.getState());
+    }
+
+    @Test
+    void eventsOfOnePaymentRunInSubmissionOrder() {
+        List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger running = new AtomicInteger();
+
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            int n = i;
+            futures.add(executor.submit(42L, () -> {
+                assertEquals(1, running.incrementAndGet());
+                seen.add(n);
+                running.decrementAndGet();
+                return n;
+            }));
+        }
+        futures.forEach(CompletableFuture::join);
+
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i, seen.get(i));
+        }
+    }
+
+    @Test
+    void nestedCallOnALaneRunsInline() {
+        Long id = 7L;
+
+        String thread = executor.execute(id, () -> executor.execute(id, () -> Thread.currentThread().getName()));
+
+        assertEquals("payment-lane-" + executor.laneOf(id), thread);
+    }
+
+    @Test
+    void taskExceptionsComeBackOut() {
+        IllegalStateException thrown = assertThrows(IllegalStateException.class,
+                () -> executor.execute(3L, () -> {
+                    throw new IllegalStateException("boom");
+                }));
+
+        assertEquals("boom", thrown.getMessage());
+    }
+
+    @Test
+    void fullLaneRejectsAfterOfferTimeout() throws Exception {
+        PartitionedExecutorProperties properties = new PartitionedExecutorProperties();
+        properties.setLanes(1);
+        properties.setQueueCapacity(2);
+        properties.setOfferTimeout(Duration.ofMillis(50));
+        PartitionedEventExecutor small = new PartitionedEventExecutor(properties, new SimpleMeterRegistry());
+
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            small.submit(1L, () -> {
+                blocked.countDown();
+                await(release);
+                return null;
+            });
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+            small.submit(1L, () -> null);
+            small.submit(1L, () -> null);
+
+            assertThrows(RejectedExecutionException.class, () -> small.submit(1L, () -> null));
+        } finally {
+            release.countDown();
+            small.shutdown();
+        }
+    }
+
+    @Test
+    void callerInATransactionWaitsForItsTurnOnTheLane() throws Exception {
+        PartitionedEventExecutor small = singleLane(Duration.ofSeconds(5));
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            CompletableFuture<Object> first = small.submit(1L, () -> {
+                blocked.countDown();
+                await(release);
+                order.add("queued");
+                return null;
+            });
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+            Future<String> inTransaction = caller.submit(() -> new TransactionTemplate(transactionManager).execute(status ->
+                    small.execute(1L, () -> {
+                        order.add("transactional");
+                        // a nested event of the same caller does not wait for the lane it is holding
+                        return small.execute(1L, () -> Thread.currentThread().getName());
+                    })));
+
+            Thread.sleep(100);
+            assertTrue(order.isEmpty());
+
+            release.countDown();
+            first.join();
+            // the event ran on the caller's own thread, after what was queued before it
+            assertFalse(inTransaction.get(5, TimeUnit.SECONDS).startsWith("payment-lane-"));
+            assertEquals(List.of("queued", "transactional"), order);
+        } finally {
+            release.countDown();
+            caller.shutdownNow();
+            small.shutdown();
+        }
+    }
+
+    @Test
+    void shutdownFailsWhatIsStillQueued() throws Exception {
+        PartitionedEventExecutor small = singleLane(Duration.ofSeconds(5));
+
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            small.submit(1L, () -> {
+                blocked.countDown();
+                await(release);
+                return null;
+            });
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+            CompletableFuture<Object> queued = small.submit(1L, () -> null);
+
+            small.shutdown();
+
+            CompletionException e = assertThrows(CompletionException.class, queued::join);
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+            assertThrows(RejectedExecutionException.class, () -> small.submit(1L, () -> null));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private static PartitionedEventExecutor singleLane(Duration holdTimeout) {
+        PartitionedExecutorProperties properties = new PartitionedExecutorProperties();
+        properties.setLanes(1);
+        properties.setHoldTimeout(holdTimeout);
+        return new PartitionedEventExecutor(properties, new SimpleMeterRegistry());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
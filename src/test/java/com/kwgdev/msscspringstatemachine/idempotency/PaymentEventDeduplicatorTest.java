@@ -0,0 +1,149 @@
+package com.kwgdev.msscspringstatemachine.idempotency;
+
+import com.kwgdev.msscspringstatemachine.authorization.AuthorizationGateway;
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.domain.ProcessedPaymentEvent;
+import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
+import com.kwgdev.msscspringstatemachine.repository.PaymentTransitionRepository;
+import com.kwgdev.msscspringstatemachine.repository.ProcessedPaymentEventRepository;
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+
+@SpringBootTest(properties = "payment.authorization.async=false")
+class PaymentEventDeduplicatorTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    PaymentTransitionRepository paymentTransitionRepository;
+
+    @Autowired
+    ProcessedPaymentEventRepository processedPaymentEventRepository;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @SpyBean
+    AuthorizationGateway authorizationGateway;
+
+    @Test
+    void retryGetsTheFirstOutcomeBack() {
+        Payment payment = newPayment();
+        String key = UUID.randomUUID().toString();
+
+        PaymentState first = paymentService.preAuth(payment.getId(), key);
+        long version = paymentRepository.findById(payment.getId()).orElseThrow().getVersion();
+        int transitions = paymentTransitionRepository.findByPaymentIdOrderByIdAsc(payment.getId()).size();
+        double memoryHits = lookups("memory");
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(first, paymentService.preAuth(payment.getId(), key));
+        }
+
+        // the event ran once, the payment was not touched by the retries
+        assertEquals(version, paymentRepository.findById(payment.getId()).orElseThrow().getVersion());
+        assertEquals(transitions, paymentTransitionRepository.findByPaymentIdOrderByIdAsc(payment.getId()).size());
+        assertEquals(memoryHits + 5, lookups("memory"));
+    }
+
+    @Test
+    void keyNotInMemoryIsFoundInTheTable() {
+        Payment payment = newPayment();
+        String key = UUID.randomUUID().toString();
+        processedPaymentEventRepository.save(ProcessedPaymentEvent.builder()
+                .idempotencyKey(key)
+                .paymentId(payment.getId())
+                .event(PaymentEvent.PRE_AUTHORIZE)
+                .state(PaymentState.PRE_AUTH)
+                .processedAt(new Timestamp(System.currentTimeMillis()))
+                .build());
+        double tableHits = lookups("table");
+
+        assertEquals(PaymentState.PRE_AUTH, paymentService.preAuth(payment.getId(), key));
+        assertEquals(PaymentState.NEW, paymentRepository.findById(payment.getId()).orElseThrow().getState());
+        assertEquals(tableHits + 1, lookups("table"));
+    }
+
+    @Test
+    void keyRecordedElsewhereWhileTheEventRanGetsThatOutcome() {
+        Payment payment = newPayment();
+        String key = UUID.randomUUID().toString();
+
+        // another node gets the same key past its lookup too and commits first, while this one asks the processor
+        TransactionTemplate elsewhere = new TransactionTemplate(transactionManager);
+        elsewhere.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        doAnswer(invocation -> {
+            if (payment.getId().equals(invocation.getArgument(1))) {
+                elsewhere.executeWithoutResult(status -> processedPaymentEventRepository.save(ProcessedPaymentEvent.builder()
+                        .idempotencyKey(key)
+                        .paymentId(payment.getId())
+                        .event(PaymentEvent.PRE_AUTHORIZE)
+                        .state(PaymentState.PRE_AUTH_ERROR)
+                        .processedAt(new Timestamp(System.currentTimeMillis()))
+                        .build()));
+            }
+            return invocation.callRealMethod();
+        }).when(authorizationGateway).authorize(any(), any());
+
+        // the insert hits the unique key, this run rolls back and the caller gets what the other node recorded
+        assertEquals(PaymentState.PRE_AUTH_ERROR, paymentService.preAuth(payment.getId(), key));
+        assertEquals(PaymentState.NEW, paymentRepository.findById(payment.getId()).orElseThrow().getState());
+        assertEquals(0, paymentTransitionRepository.findByPaymentIdOrderByIdAsc(payment.getId()).size());
+    }
+
+    @Test
+    void keyUsedForAnotherPaymentIsRejected() {
+        String key = UUID.randomUUID().toString();
+        paymentService.preAuth(newPayment().getId(), key);
+
+        Long other = newPayment().getId();
+        assertThrows(IllegalArgumentException.class, () -> paymentService.preAuth(other, key));
+        assertEquals(PaymentState.NEW, paymentRepository.findById(other).orElseThrow().getState());
+    }
+
+    @Test
+    void eventsWithoutKeyAreAlwaysApplied() {
+        Payment payment = newPayment();
+        paymentService.preAuth(payment.getId());
+        int transitions = paymentTransitionRepository.findByPaymentIdOrderByIdAsc(payment.getId()).size();
+
+        paymentService.declineAuth(payment.getId());
+        paymentService.declineAuth(payment.getId());
+
+        assertTrue(paymentTransitionRepository.findByPaymentIdOrderByIdAsc(payment.getId()).size() >= transitions);
+        assertFalse(processedPaymentEventRepository.findAll().stream()
+                .anyMatch(row -> row.getPaymentId().equals(payment.getId())));
+    }
+
+    private double lookups(String result) {
+        return meterRegistry.get("payment.idempotency.lookups").tag("result", result).counter().count();
+    }
+
+    private Payment newPayment() {
+        return paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+    }
+}
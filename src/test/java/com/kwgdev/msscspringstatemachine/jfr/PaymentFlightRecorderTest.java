@@ -0,0 +1,68 @@
+package com.kwgdev.msscspringstatemachine.jfr;
+
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "payment.authorization.async=false",
+        "payment.jfr.enabled=true"
+})
+class PaymentFlightRecorderTest {
+
+    private static final int PAYMENTS = 20;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Test
+    void recordingBreaksDownIntoPhases(@TempDir Path dir) throws Exception {
+        Configuration settings;
+        try (Reader jfc = new InputStreamReader(getClass().getResourceAsStream("/jfr/payment.jfc"), StandardCharsets.UTF_8)) {
+            settings = Configuration.create(jfc);
+        }
+
+        Path file = dir.resolve("payment.jfr");
+        try (Recording recording = new Recording(settings)) {
+            recording.start();
+            for (int i = 0; i < PAYMENTS; i++) {
+                Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+                paymentService.preAuth(payment.getId());
+            }
+            recording.stop();
+            recording.dump(file);
+        }
+
+        Map<String, RecordingAnalyzer.Phase> phases = RecordingAnalyzer.analyze(file).stream()
+                .collect(Collectors.toMap(RecordingAnalyzer.Phase::getName, Function.identity()));
+
+        assertEquals(PAYMENTS, phases.get(RecordingAnalyzer.TRANSITION).getCount());
+        assertEquals(PAYMENTS, phases.get("machine checkout").getCount());
+        assertEquals(PAYMENTS, phases.get("guard paymentIdGuard").getCount());
+        assertEquals(PAYMENTS, phases.get("action preAuthAction").getCount());
+        // NEW -> NEW for PRE_AUTHORIZE, then PRE_AUTH or PRE_AUTH_ERROR for the processor's answer
+        assertEquals(2 * PAYMENTS, phases.get("persist").getCount());
+
+        List<RecordingAnalyzer.Phase> ordered = RecordingAnalyzer.analyze(file);
+        assertEquals(RecordingAnalyzer.TRANSITION, ordered.get(0).getName());
+        String report = RecordingAnalyzer.format(ordered);
+        assertTrue(report.contains("action preAuthAction"), report);
+    }
+}
@@ -0,0 +1,117 @@
+package com.kwgdev.msscspringstatemachine.journal;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PaymentStateIndexTest {
+
+    private static final PaymentState[] STATES = PaymentState.values();
+
+    @Test
+    void behavesLikeAMap() {
+        PaymentStateIndex index = new PaymentStateIndex(16);
+        Map<Long, PaymentState> expected = new HashMap<>();
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 100_000; i++) {
+            long id = random.nextLong(0, 20_000);
+            PaymentState state = STATES[random.nextInt(STATES.length)];
+            index.put(id, state);
+            expected.put(id, state);
+        }
+
+        assertEquals(expected.size(), index.size());
+        expected.forEach((id, state) -> assertEquals(state, index.get(id)));
+        assertNull(index.get(20_001));
+    }
+
+    @Test
+    void removeKeepsTheOtherEntriesReachable() {
+        PaymentStateIndex index = new PaymentStateIndex(16);
+        Map<Long, PaymentState> expected = new HashMap<>();
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 100_000; i++) {
+            long id = random.nextLong(0, 5_000);
+            if (random.nextInt(3) == 0) {
+                index.remove(id);
+                expected.remove(id);
+            } else {
+                PaymentState state = STATES[random.nextInt(STATES.length)];
+                index.put(id, state);
+                expected.put(id, state);
+            }
+        }
+
+        assertEquals(expected.size(), index.size());
+        for (long id = 0; id < 5_000; id++) {
+            assertEquals(expected.get(id), index.get(id), "payment " + id);
+        }
+    }
+
+    @Test
+    void snapshotRoundTrip(@TempDir Path dir) {
+        PaymentStateIndex index = new PaymentStateIndex();
+        for (long id = 1; id <= 10_000; id++) {
+            index.put(id, STATES[(int) (id % STATES.length)]);
+        }
+
+        Path file = dir.resolve(JournalSnapshot.FILE_NAME);
+        UUID databaseId = UUID.randomUUID();
+        JournalSnapshot.write(file, databaseId, index, 1_000L, 42L);
+        JournalSnapshot read = JournalSnapshot.read(file);
+
+        assertEquals(databaseId, read.getDatabaseId());
+        assertEquals(1_000L, read.getWatermarkTime());
+        assertEquals(42L, read.getWatermark());
+        assertEquals(index.size(), read.getStates().size());
+        index.forEach((id, state) -> assertEquals(state, read.getStates().get(id)));
+        assertNull(read.getStates().get(10_001));
+    }
+
+    @Test
+    void overlayIsMergedIntoTheMappedSnapshot(@TempDir Path dir) {
+        PaymentStateIndex base = new PaymentStateIndex();
+        for (long id = 2; id <= 2_000; id += 2) {
+            base.put(id, PaymentState.PRE_AUTH);
+        }
+        Path first = dir.resolve("first");
+        JournalSnapshot.write(first, UUID.randomUUID(), base, 0L, 10L);
+
+        // every third id moves on, the odd ones are new
+        PaymentStateIndex overlay = new PaymentStateIndex();
+        for (long id = 1; id <= 2_001; id += 3) {
+            overlay.put(id, PaymentState.AUTH);
+        }
+        Path second = dir.resolve("second");
+        JournalSnapshot.write(second, UUID.randomUUID(), JournalSnapshot.read(first).getStates(), overlay, 0L, 20L);
+
+        MappedPaymentStates merged = JournalSnapshot.read(second).getStates();
+        int expectedSize = 0;
+        for (long id = 0; id <= 2_002; id++) {
+            PaymentState expected = overlay.get(id) != null ? overlay.get(id) : base.get(id);
+            assertEquals(expected, merged.get(id), "payment " + id);
+            if (expected != null) {
+                expectedSize++;
+            }
+        }
+        assertEquals(expectedSize, merged.size());
+        for (int i = 1; i < merged.size(); i++) {
+            assertTrue(merged.idAt(i - 1) < merged.idAt(i));
+        }
+    }
+
+    @Test
+    void missingSnapshotReadsAsNull(@TempDir Path dir) {
+        assertNull(JournalSnapshot.read(dir.resolve(JournalSnapshot.FILE_NAME)));
+    }
+}
@@ -0,0 +1,247 @@
+package com.kwgdev.msscspringstatemachine.journal;
+
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.domain.PaymentTransition;
+import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
+import com.kwgdev.msscspringstatemachine.repository.PaymentTransitionRepository;
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "payment.authorization.async=false",
+        "payment.journal.settle-time=0s",
+        "payment.journal.replay-chunk-size=100",
+        "payment.journal.snapshot-dir=target/journal-test",
+        // verification is called by the tests instead of racing them in the background
+        "payment.journal.warm-start=false"
+})
+class PaymentStateIndexerTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    PaymentTransitionRepository paymentTransitionRepository;
+
+    @Autowired
+    PaymentStateIndexer indexer;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Test
+    void everyTransitionIsJournaled() {
+        Payment payment = newPayment();
+
+        paymentService.preAuth(payment.getId());
+
+        List<PaymentTransition> history = paymentTransitionRepository.findByPaymentIdOrderByIdAsc(payment.getId());
+        assertFalse(history.isEmpty());
+        assertEquals(PaymentState.NEW, history.get(0).getSource());
+        assertEquals(paymentRepository.findById(payment.getId()).orElseThrow().getState(),
+                history.get(history.size() - 1).getTarget());
+    }
+
+    @Test
+    void bulkTransitionsAreJournaledToo() {
+        Payment payment = newPayment();
+
+        paymentService.preAuthAll(List.of(payment.getId()));
+
+        List<PaymentTransition> history = paymentTransitionRepository.findByPaymentIdOrderByIdAsc(payment.getId());
+        assertEquals(paymentRepository.findById(payment.getId()).orElseThrow().getState(),
+                history.get(history.size() - 1).getTarget());
+    }
+
+    @Test
+    void snapshotPlusTailRebuildsTheStates() throws Exception {
+        List<Long> before = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            before.add(newPayment().getId());
+        }
+        paymentService.preAuthAll(before);
+        indexer.snapshot();
+        assertTrue(Files.exists(indexer.snapshotFile()));
+
+        // these only exist in the journal tail after the snapshot
+        List<Long> after = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            after.add(newPayment().getId());
+        }
+        paymentService.preAuthAll(after);
+        paymentService.authorizeAll(before);
+
+        indexer.rebuild();
+
+        for (Payment payment : paymentRepository.findAll()) {
+            if (paymentTransitionRepository.findByPaymentIdOrderByIdAsc(payment.getId()).isEmpty()) {
+                assertNull(indexer.getState(payment.getId()));
+            } else {
+                assertEquals(payment.getState(), indexer.getState(payment.getId()), "payment " + payment.getId());
+            }
+        }
+    }
+
+    @Test
+    void snapshotOfAnotherDatabaseIsIgnored() {
+        paymentService.preAuthAll(List.of(newPayment().getId()));
+        indexer.catchUp();
+
+        // a watermark row this journal has too, but written for another database
+        PaymentStateIndex foreign = new PaymentStateIndex();
+        foreign.put(-42L, PaymentState.AUTH);
+        JournalSnapshot.write(indexer.snapshotFile(), UUID.randomUUID(), foreign, indexer.getWatermarkTime(),
+                indexer.getWatermark());
+
+        indexer.rebuild();
+
+        assertNull(indexer.getState(-42L));
+    }
+
+    @Test
+    void snapshotAheadOfTheJournalIsIgnored() {
+        paymentService.preAuthAll(List.of(newPayment().getId()));
+        indexer.catchUp();
+
+        // this database, but a watermark row the journal does not have (restored from an older backup)
+        PaymentStateIndex ahead = new PaymentStateIndex();
+        ahead.put(-42L, PaymentState.AUTH);
+        JournalSnapshot.write(indexer.snapshotFile(), indexer.getDatabaseId(), ahead, indexer.getWatermarkTime(),
+                Long.MAX_VALUE);
+
+        indexer.rebuild();
+
+        assertNull(indexer.getState(-42L));
+        assertTrue(indexer.getWatermark() < Long.MAX_VALUE);
+    }
+
+    @Test
+    void verificationCorrectsAStaleSnapshot() {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            ids.add(newPayment().getId());
+        }
+        paymentService.preAuthAll(ids.subList(0, 10));
+        indexer.catchUp();
+
+        // a snapshot that has missed the transitions, at the end of the journal so nothing is replayed on top
+        PaymentStateIndex stale = new PaymentStateIndex();
+        for (Long id : ids) {
+            stale.put(id, PaymentState.NEW);
+        }
+        JournalSnapshot.write(indexer.snapshotFile(), indexer.getDatabaseId(), stale, indexer.getWatermarkTime(),
+                indexer.getWatermark());
+        indexer.rebuild();
+        assertEquals(PaymentState.NEW, indexer.getState(ids.get(0)));
+
+        assertTrue(indexer.verify() >= 1);
+
+        for (Long id : ids) {
+            assertEquals(paymentRepository.findById(id).orElseThrow().getState(), indexer.getState(id), "payment " + id);
+        }
+
+        // the corrections make it into the next snapshot, a restart does not need the verification to find them again
+        indexer.snapshot();
+        indexer.rebuild();
+        for (Long id : ids) {
+            assertEquals(paymentRepository.findById(id).orElseThrow().getState(), indexer.getState(id), "payment " + id);
+        }
+    }
+
+    @Test
+    void verificationTrustsTheTableOverASnapshotThatIsAhead() {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ids.add(newPayment().getId());
+        }
+        paymentService.preAuthAll(List.of(ids.get(0)));
+        indexer.catchUp();
+
+        // a snapshot with states the payments never got to
+        PaymentStateIndex ahead = new PaymentStateIndex();
+        for (Long id : ids) {
+            ahead.put(id, PaymentState.AUTH);
+        }
+        JournalSnapshot.write(indexer.snapshotFile(), indexer.getDatabaseId(), ahead, indexer.getWatermarkTime(),
+                indexer.getWatermark());
+        indexer.rebuild();
+        assertEquals(PaymentState.AUTH, indexer.getState(ids.get(1)));
+
+        assertEquals(ids.size(), indexer.verify());
+        for (Long id : ids) {
+            assertEquals(paymentRepository.findById(id).orElseThrow().getState(), indexer.getState(id), "payment " + id);
+        }
+
+        indexer.snapshot();
+        indexer.rebuild();
+        for (Long id : ids) {
+            assertEquals(paymentRepository.findById(id).orElseThrow().getState(), indexer.getState(id), "payment " + id);
+        }
+    }
+
+    @Test
+    void verificationKeepsATransitionCommittedAfterThePageWasRead() {
+        Payment payment = newPayment();
+        PaymentState state = paymentService.preAuth(payment.getId());
+        assertNotEquals(PaymentState.NEW, state);
+
+        // the page the verification reads still has the row from before the transition
+        jdbcTemplate.update("update payment set state = ? where id = ?", PaymentState.NEW.name(), payment.getId());
+
+        indexer.verify();
+
+        assertEquals(state, indexer.getState(payment.getId()));
+    }
+
+    @Test
+    void lowIdCommittedAfterTheWatermarkPassedItIsFoldedIn() throws Exception {
+        Payment payment = newPayment();
+        paymentService.preAuthAll(List.of(newPayment().getId()));
+        indexer.catchUp();
+        long watermark = indexer.getWatermark();
+
+        // another node inserting from its own, lower block of pooled journal ids
+        Thread.sleep(5);
+        jdbcTemplate.update("update payment set state = ? where id = ?", PaymentState.PRE_AUTH.name(), payment.getId());
+        jdbcTemplate.update("insert into payment_transition (id, payment_id, source, target, event, occurred_at) " +
+                        "values (?, ?, ?, ?, ?, ?)", -1L, payment.getId(), PaymentState.NEW.name(), PaymentState.PRE_AUTH.name(),
+                PaymentEvent.PRE_AUTH_APPROVED.name(), new Timestamp(System.currentTimeMillis()));
+        assertTrue(-1L < watermark);
+
+        indexer.catchUp();
+
+        assertEquals(PaymentState.PRE_AUTH, indexer.getState(payment.getId()));
+        assertEquals(-1L, indexer.getWatermark());
+    }
+
+    @Test
+    void committedTransitionsAreVisibleBeforeTheyAreReplayed() {
+        Payment payment = newPayment();
+
+        PaymentState state = paymentService.preAuth(payment.getId());
+
+        // nothing has caught up with the journal yet
+        assertEquals(state, indexer.getState(payment.getId()));
+    }
+
+    private Payment newPayment() {
+        return paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+    }
+}
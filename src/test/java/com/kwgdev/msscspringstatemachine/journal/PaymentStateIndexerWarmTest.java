@@ -0,0 +1,89 @@
+package com.kwgdev.msscspringstatemachine.journal;
+
+import com.kwgdev.msscspringstatemachine.cluster.PartitionsAcquiredEvent;
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// warm lookups, with another node writing payments this node then takes over
+@SpringBootTest(properties = {
+        "payment.authorization.async=false",
+        "payment.authorization.stub.approval-rate=1.0",
+        "payment.journal.settle-time=PT1S",
+        "payment.journal.snapshot-dir=target/journal-warm-test",
+        "payment.journal.warm-start=true"
+})
+class PaymentStateIndexerWarmTest {
+
+    private static final long SETTLE_TIMEOUT_MILLIS = 5_000;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentStateIndexer indexer;
+
+    @Autowired
+    ApplicationEventPublisher eventPublisher;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Test
+    void acquiredPartitionsAreNotWarmStartedUntilTheJournalCaughtUp() throws InterruptedException {
+        Long moved = newPayment();
+        assertEquals(PaymentState.PRE_AUTH, paymentService.preAuth(moved));
+        assertEquals(PaymentState.PRE_AUTH, indexer.getWarmState(moved));
+        Long untouched = newPayment();
+        assertEquals(PaymentState.PRE_AUTH, paymentService.preAuth(untouched));
+        Long recommitted = newPayment();
+
+        // the partition went to another node, which authorized the payment before we took the partition back
+        jdbcTemplate.update("update payment set state = ? where id = ?", PaymentState.AUTH.name(), moved);
+        jdbcTemplate.update("insert into payment_transition (id, payment_id, source, target, event, occurred_at) " +
+                        "values (?, ?, ?, ?, ?, ?)", -101L, moved, PaymentState.PRE_AUTH.name(), PaymentState.AUTH.name(),
+                PaymentEvent.AUTH_APPROVED.name(), new Timestamp(System.currentTimeMillis()));
+        BitSet every = new BitSet();
+        every.set(0);
+        eventPublisher.publishEvent(new PartitionsAcquiredEvent(1, every));
+
+        // the other node's row has not settled, nothing in the partition is taken from memory
+        assertNull(indexer.getWarmState(moved));
+        assertNull(indexer.getWarmState(untouched));
+
+        // except what this node has committed since
+        PaymentState state = paymentService.preAuth(recommitted);
+        assertEquals(state, indexer.getWarmState(recommitted));
+
+        // settled and folded in, the stale state this node had is gone
+        assertEquals(PaymentState.AUTH, awaitWarmState(moved));
+        assertEquals(PaymentState.PRE_AUTH, indexer.getWarmState(untouched));
+    }
+
+    private Long newPayment() {
+        return paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+    }
+
+    // polls until the payment is warm-started again, returns null when it is not within the timeout
+    private PaymentState awaitWarmState(Long paymentId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_MILLIS;
+        PaymentState state = indexer.getWarmState(paymentId);
+        while (state == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            state = indexer.getWarmState(paymentId);
+        }
+        return state;
+    }
+}
@@ -0,0 +1,64 @@
+package com.kwgdev.msscspringstatemachine.metrics;
+
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.services.PaymentEventProcessor;
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = "payment.authorization.async=false")
+class PaymentMetricsTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentEventProcessor paymentEventProcessor;
+
+    @Autowired
+    MeterRegistry registry;
+
+    @Test
+    void recordsTransitionsActionsAndPersistence() {
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+
+        long preAuthorize = transitionCount(PaymentState.NEW, PaymentState.NEW, PaymentEvent.PRE_AUTHORIZE);
+        long actions = registry.get("payment.action").tag("action", "preAuthAction").timer().count();
+        long persisted = registry.get("payment.state.persist").tag("outcome", "updated").timer().count();
+
+        PaymentState state = paymentService.preAuth(payment.getId());
+
+        // NEW -> NEW on PRE_AUTHORIZE, then the follow-up event sent by preAuthAction
+        assertEquals(preAuthorize + 1, transitionCount(PaymentState.NEW, PaymentState.NEW, PaymentEvent.PRE_AUTHORIZE));
+        PaymentEvent followUp = state == PaymentState.PRE_AUTH ? PaymentEvent.PRE_AUTH_APPROVED : PaymentEvent.PRE_AUTH_DECLINED;
+        assertTrue(transitionCount(PaymentState.NEW, state, followUp) >= 1);
+
+        assertEquals(actions + 1, registry.get("payment.action").tag("action", "preAuthAction").timer().count());
+        assertEquals(persisted + 2, registry.get("payment.state.persist").tag("outcome", "updated").timer().count());
+    }
+
+    @Test
+    void countsGuardRejections() {
+        double rejections = registry.get("payment.guard.rejections").tag("guard", "paymentIdGuard").counter().count();
+
+        paymentEventProcessor.sendEvent(null, PaymentState.NEW, PaymentEvent.PRE_AUTHORIZE);
+
+        assertEquals(rejections + 1, registry.get("payment.guard.rejections").tag("guard", "paymentIdGuard").counter().count());
+    }
+
+    private long transitionCount(PaymentState source, PaymentState target, PaymentEvent event) {
+        Timer timer = registry.find("payment.transition")
+                .tag("source", source.name()).tag("target", target.name()).tag("event", event.name())
+                .timer();
+        return timer == null ? 0 : timer.count();
+    }
+}
@@ -0,0 +1,26 @@
+package com.kwgdev.msscspringstatemachine.outbox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps published notifications in memory for the tests to look at, never cleared unless they do
+ */
+public class InMemoryOutboxSink implements OutboxSink {
+
+    private final ConcurrentLinkedQueue<PaymentNotification> published = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public void publish(List<PaymentNotification> notifications) {
+        published.addAll(notifications);
+    }
+
+    public List<PaymentNotification> getPublished() {
+        return new ArrayList<>(published);
+    }
+
+    public void clear() {
+        published.clear();
+    }
+}
@@ -0,0 +1,145 @@
+package com.kwgdev.msscspringstatemachine.outbox;
+
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentOutboxMessage;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.repository.PaymentOutboxMessageRepository;
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import com.kwgdev.msscspringstatemachine.services.PaymentStatePersister;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "payment.authorization.async=false",
+        "payment.authorization.stub.approval-rate=1.0",
+        "payment.outbox.poll-interval=PT1H",
+        "payment.outbox.batch-size=50"
+})
+class OutboxRelayTest {
+
+    // the application's logging sink is registered as well, relays get this one
+    @TestConfiguration
+    static class Sink {
+
+        @Bean
+        @Primary
+        InMemoryOutboxSink inMemoryOutboxSink() {
+            return new InMemoryOutboxSink();
+        }
+    }
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentStatePersister persister;
+
+    @Autowired
+    PaymentOutboxMessageRepository outboxRepository;
+
+    @Autowired
+    OutboxRelay relay;
+
+    @Autowired
+    InMemoryOutboxSink sink;
+
+    @Autowired
+    TransactionTemplate transactionTemplate;
+
+    @BeforeEach
+    void setUp() {
+        relay.relay();
+        sink.clear();
+    }
+
+    @Test
+    void authorizedPaymentIsRelayedOnce() {
+        Long paymentId = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+        paymentService.preAuth(paymentId);
+        paymentService.authorizePayment(paymentId);
+
+        relay.relay();
+
+        List<PaymentNotification> published = sink.getPublished().stream()
+                .filter(notification -> notification.getPaymentId() == paymentId)
+                .collect(Collectors.toList());
+        assertEquals(1, published.size());
+        assertEquals(PaymentState.AUTH, published.get(0).getState());
+        assertEquals(PaymentEvent.AUTH_APPROVED, published.get(0).getEvent());
+        assertEquals(0, outboxRepository.count());
+
+        // nothing left to send the second time round
+        assertEquals(0, relay.relay());
+    }
+
+    @Test
+    void rolledBackChangeIsNeverRelayed() {
+        Long paymentId = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+
+        transactionTemplate.executeWithoutResult(status -> {
+            persister.stateChanged(paymentId, PaymentState.NEW, PaymentState.PRE_AUTH_ERROR, PaymentEvent.PRE_AUTH_DECLINED);
+            status.setRollbackOnly();
+        });
+
+        assertEquals(0, outboxRepository.count());
+    }
+
+    @Test
+    void concurrentRelaysPublishEveryRowExactlyOnce() throws Exception {
+        List<PaymentOutboxMessage> messages = new ArrayList<>();
+        for (long i = 0; i < 1_000; i++) {
+            messages.add(PaymentOutboxMessage.builder().paymentId(i).state(PaymentState.AUTH).event(PaymentEvent.AUTH_APPROVED)
+                    .createdAt(new Timestamp(System.currentTimeMillis())).build());
+        }
+        outboxRepository.saveAll(messages);
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> relayed = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                relayed.add(pool.submit(() -> {
+                    // a relay that lost a race for its batch stops early, keep going until nothing is left
+                    int count = 0;
+                    for (int batch = relay.relay(); batch > 0; batch = relay.relay()) {
+                        count += batch;
+                    }
+                    return count;
+                }));
+            }
+            int total = 0;
+            for (Future<Integer> future : relayed) {
+                total += future.get();
+            }
+            assertEquals(1_000, total);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Set<Long> ids = new HashSet<>();
+        for (PaymentNotification notification : sink.getPublished()) {
+            assertTrue(ids.add(notification.getId()), "published twice: " + notification.getId());
+        }
+        assertEquals(1_000, ids.size());
+        assertEquals(0, outboxRepository.count());
+    }
+}
@@ -0,0 +1,84 @@
+package com.kwgdev.msscspringstatemachine.services;
+
+import com.kwgdev.msscspringstatemachine.authorization.AuthorizationGateway;
+import com.kwgdev.msscspringstatemachine.authorization.AuthorizationType;
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@SpringBootTest(properties = "payment.authorization.async=false")
+class PaymentBatchProcessorTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @SpyBean
+    AuthorizationGateway authorizationGateway;
+
+    @Test
+    void conflictInAChunkDoesNotAskTheProcessorAgain() {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ids.add(paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId());
+        }
+        Long contended = ids.get(2);
+
+        // while the chunk is being worked out someone else writes the contended payment, which fails the chunk's
+        // batched UPDATE at commit
+        TransactionTemplate elsewhere = new TransactionTemplate(transactionManager);
+        elsewhere.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        doAnswer(invocation -> {
+            if (contended.equals(invocation.getArgument(1))) {
+                elsewhere.executeWithoutResult(status ->
+                        jdbcTemplate.update("update payment set version = version + 1 where id = ?", contended));
+            }
+            return invocation.callRealMethod();
+        }).when(authorizationGateway).authorize(any(), any());
+
+        List<PaymentTransitionResult> results = paymentService.preAuthAll(ids);
+
+        for (int i = 0; i < ids.size(); i++) {
+            Long paymentId = ids.get(i);
+            verify(authorizationGateway, times(1)).authorize(eq(AuthorizationType.PRE_AUTHORIZATION), eq(paymentId));
+
+            PaymentTransitionResult result = results.get(i);
+            assertEquals(paymentId, result.getPaymentId());
+            if (paymentId.equals(contended)) {
+                assertEquals(PaymentTransitionResult.Status.CONFLICT, result.getStatus());
+                assertEquals(PaymentState.NEW, paymentRepository.findById(paymentId).orElseThrow().getState());
+            } else {
+                // the answer of the first pass is what got written
+                assertEquals(PaymentTransitionResult.Status.APPLIED, result.getStatus());
+                assertEquals(result.getState(), paymentRepository.findById(paymentId).orElseThrow().getState());
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.kwgdev.msscspringstatemachine.services;
+
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Behaviour every PaymentEventProcessor has to show, whichever engine is behind it.
+ * Each engine gets a subclass that boots the context with its payment.engine setting
+ * and synchronous authorization, so the processor's answer is in by the time sendEvent returns.
+ */
+abstract class PaymentEventProcessorConformanceTest {
+
+    @Autowired
+    PaymentEventProcessor processor;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @ParameterizedTest
+    @CsvSource({
+            "NEW, PRE_AUTH_APPROVED, PRE_AUTH",
+            "NEW, PRE_AUTH_DECLINED, PRE_AUTH_ERROR",
+            "PRE_AUTH, AUTH_APPROVED, AUTH",
+            "PRE_AUTH, AUTH_DECLINED, AUTH_ERROR"
+    })
+    void appliesTransition(PaymentState source, PaymentEvent event, PaymentState target) {
+        Payment payment = paymentIn(source);
+
+        assertEquals(target, processor.sendEvent(payment.getId(), source, event));
+        assertEquals(target, stateOf(payment));
+    }
+
+    @Test
+    void preAuthorizeEndsApprovedOrDeclined() {
+        Payment payment = paymentIn(PaymentState.NEW);
+
+        PaymentState state = processor.sendEvent(payment.getId(), PaymentState.NEW, PaymentEvent.PRE_AUTHORIZE);
+
+        assertTrue(state == PaymentState.PRE_AUTH || state == PaymentState.PRE_AUTH_ERROR, state::toString);
+        assertEquals(state, stateOf(payment));
+    }
+
+    @Test
+    void authorizeEndsApprovedOrDeclined() {
+        Payment payment = paymentIn(PaymentState.PRE_AUTH);
+
+        PaymentState state = processor.sendEvent(payment.getId(), PaymentState.PRE_AUTH, PaymentEvent.AUTHORIZE);
+
+        assertTrue(state == PaymentState.AUTH || state == PaymentState.AUTH_ERROR, state::toString);
+        assertEquals(state, stateOf(payment));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "NEW, AUTHORIZE",
+            "NEW, AUTH_APPROVED",
+            "NEW, AUTH_DECLINED",
+            "PRE_AUTH, PRE_AUTHORIZE",
+            "PRE_AUTH, PRE_AUTH_APPROVED",
+            "PRE_AUTH, PRE_AUTH_DECLINED"
+    })
+    void ignoresEventNotAcceptedInState(PaymentState source, PaymentEvent event) {
+        Payment payment = paymentIn(source);
+
+        assertEquals(source, processor.sendEvent(payment.getId(), source, event));
+        assertEquals(source, stateOf(payment));
+    }
+
+    @ParameterizedTest
+    @EnumSource(PaymentEvent.class)
+    void terminalStatesAcceptNothing(PaymentEvent event) {
+        for (PaymentState terminal : new PaymentState[]{PaymentState.AUTH, PaymentState.AUTH_ERROR, PaymentState.PRE_AUTH_ERROR}) {
+            Payment payment = paymentIn(terminal);
+
+            assertEquals(terminal, processor.sendEvent(payment.getId(), terminal, event));
+            assertEquals(terminal, stateOf(payment));
+        }
+    }
+
+    @Test
+    void rejectsTransitionFromStaleState() {
+        // the database already moved on, e.g. a concurrent event for the same payment won
+        Payment payment = paymentIn(PaymentState.PRE_AUTH_ERROR);
+
+        assertThrows(OptimisticLockingFailureException.class,
+                () -> processor.sendEvent(payment.getId(), PaymentState.NEW, PaymentEvent.PRE_AUTH_APPROVED));
+        assertEquals(PaymentState.PRE_AUTH_ERROR, stateOf(payment));
+    }
+
+    @Test
+    void preAuthorizeWithoutPaymentIdIsGuarded() {
+        assertEquals(PaymentState.NEW, processor.sendEvent(null, PaymentState.NEW, PaymentEvent.PRE_AUTHORIZE));
+    }
+
+    private Payment paymentIn(PaymentState state) {
+        return paymentRepository.save(Payment.builder().state(state).amount(new BigDecimal("12.99")).build());
+    }
+
+    private PaymentState stateOf(Payment payment) {
+        return paymentRepository.findById(payment.getId()).orElseThrow().getState();
+    }
+}
@@ -0,0 +1,156 @@
+package com.kwgdev.msscspringstatemachine.services;
+
+import com.kwgdev.msscspringstatemachine.authorization.AuthorizationGateway;
+import com.kwgdev.msscspringstatemachine.authorization.AuthorizationType;
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+// the production default: the actions only send the request, the answer is applied after commit on a result thread
+@SpringBootTest(properties = {
+        "payment.authorization.async=true",
+        "payment.authorization.stub.latency=PT0.02S"
+})
+class PaymentServiceAsyncTest {
+
+    private static final Set<PaymentState> PRE_AUTHORIZED = EnumSet.of(PaymentState.PRE_AUTH, PaymentState.PRE_AUTH_ERROR);
+    private static final long ANSWER_TIMEOUT_MILLIS = 5_000;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @SpyBean
+    AuthorizationGateway authorizationGateway;
+
+    @Test
+    void preAuthReturnsBeforeTheAnswerAndTheAnswerFollows() throws InterruptedException {
+        Long paymentId = newPayment();
+
+        assertEquals(PaymentState.NEW, paymentService.preAuth(paymentId));
+
+        PaymentState answered = awaitState(paymentId, PRE_AUTHORIZED);
+        assertTrue(PRE_AUTHORIZED.contains(answered), "state after the answer: " + answered);
+        verify(authorizationGateway, times(1)).authorize(AuthorizationType.PRE_AUTHORIZATION, paymentId);
+    }
+
+    @Test
+    void authorizeReturnsBeforeTheAnswerAndTheAnswerFollows() throws InterruptedException {
+        Long paymentId = paymentRepository.save(Payment.builder().state(PaymentState.PRE_AUTH).amount(BigDecimal.TEN).build()).getId();
+
+        assertEquals(PaymentState.PRE_AUTH, paymentService.sendEvent(paymentId, PaymentEvent.AUTHORIZE));
+
+        Set<PaymentState> authorized = EnumSet.of(PaymentState.AUTH, PaymentState.AUTH_ERROR);
+        PaymentState answered = awaitState(paymentId, authorized);
+        assertTrue(authorized.contains(answered), "state after the answer: " + answered);
+    }
+
+    @Test
+    void retryWithTheSameKeyDoesNotSendASecondRequest() throws InterruptedException {
+        Long paymentId = newPayment();
+
+        assertEquals(PaymentState.NEW, paymentService.preAuth(paymentId, "async-retry-" + paymentId));
+        awaitState(paymentId, PRE_AUTHORIZED);
+        // the retry gets what the first call returned, the request was sent once
+        assertEquals(PaymentState.NEW, paymentService.preAuth(paymentId, "async-retry-" + paymentId));
+        verify(authorizationGateway, times(1)).authorize(AuthorizationType.PRE_AUTHORIZATION, paymentId);
+    }
+
+    @Test
+    void preAuthAllIsAppliedWhenTheRequestsWentOut() throws InterruptedException {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            ids.add(newPayment());
+        }
+
+        List<PaymentTransitionResult> results = paymentService.preAuthAll(ids);
+
+        // APPLIED with the payment still in NEW, the answers come one by one after the chunk committed
+        for (PaymentTransitionResult result : results) {
+            assertEquals(PaymentTransitionResult.Status.APPLIED, result.getStatus());
+            assertEquals(PaymentState.NEW, result.getState());
+        }
+        for (Long paymentId : ids) {
+            PaymentState answered = awaitState(paymentId, PRE_AUTHORIZED);
+            assertTrue(PRE_AUTHORIZED.contains(answered), "payment " + paymentId + " after the answer: " + answered);
+        }
+    }
+
+    @Test
+    void concurrentWriteDoesNotCostTheChunkItsRequests() throws InterruptedException {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ids.add(newPayment());
+        }
+        Long contended = ids.get(2);
+
+        // someone else writes the contended payment as its request goes out - the requests are sent after the chunk
+        // committed, and async PRE_AUTHORIZE leaves the rows as they are (NEW -> NEW) anyway, so every request goes
+        // out exactly once
+        TransactionTemplate elsewhere = new TransactionTemplate(transactionManager);
+        elsewhere.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        doAnswer(invocation -> {
+            if (contended.equals(invocation.getArgument(1))) {
+                elsewhere.executeWithoutResult(status ->
+                        jdbcTemplate.update("update payment set version = version + 1 where id = ?", contended));
+            }
+            return invocation.callRealMethod();
+        }).when(authorizationGateway).authorize(any(), any());
+
+        List<PaymentTransitionResult> results = paymentService.preAuthAll(ids);
+
+        for (int i = 0; i < ids.size(); i++) {
+            Long paymentId = ids.get(i);
+            verify(authorizationGateway, times(1)).authorize(eq(AuthorizationType.PRE_AUTHORIZATION), eq(paymentId));
+            assertEquals(PaymentTransitionResult.Status.APPLIED, results.get(i).getStatus());
+            // the answer goes through the compare-and-set on the state, the bumped version does not stop it
+            PaymentState answered = awaitState(paymentId, PRE_AUTHORIZED);
+            assertTrue(PRE_AUTHORIZED.contains(answered), "payment " + paymentId + " after the answer: " + answered);
+        }
+    }
+
+    private Long newPayment() {
+        return paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+    }
+
+    // polls the row until the answer moved the payment into one of the states, returns the last state read
+    private PaymentState awaitState(Long paymentId, Set<PaymentState> states) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + ANSWER_TIMEOUT_MILLIS;
+        PaymentState state = paymentRepository.findById(paymentId).orElseThrow().getState();
+        while (!states.contains(state) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            state = paymentRepository.findById(paymentId).orElseThrow().getState();
+        }
+        return state;
+    }
+}
@@ -1,7 +1,6 @@
 package com.kwgdev.msscspringstatemachine.services;
 
 import com.kwgdev.msscspringstatemachine.domain.Payment;
-import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
 import com.kwgdev.msscspringstatemachine.domain.PaymentState;
 import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
 import org.junit.jupiter.api.BeforeEach;
@@ -9,17 +8,23 @@ import org.junit.jupiter.api.RepeatedTest;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.statemachine.StateMachine;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.persistence.EntityManager;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
  * created by kw on 1/4/2021 @ 7:39 AM
  */
-@SpringBootTest
+@SpringBootTest(properties = "payment.authorization.async=false")
 class PaymentServiceImplTest {
 
     @Autowired
@@ -28,6 +33,12 @@ class PaymentServiceImplTest {
     @Autowired
     PaymentRepository paymentRepository;
 
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Autowired
+    EntityManager entityManager;
+
     Payment payment;
 
     @BeforeEach
@@ -44,16 +55,171 @@ class PaymentServiceImplTest {
         System.out.println(savedPayment.getState());
 
         // save PRE_AUTH state to database
-        StateMachine<PaymentState, PaymentEvent> sm = paymentService.preAuth(savedPayment.getId());
+        PaymentState state = paymentService.preAuth(savedPayment.getId());
 
         // get payment by paymentId back from database and verify state change to PRE_AUTH
         Payment preAuthedPayment = paymentRepository.getOne(savedPayment.getId());
 
         // in Test results we are expected a state of PRE_AUTH
         System.out.println("State should be PRE_AUTH if approved or PRE_AUTH_ERROR if declined");
-        System.out.println(sm.getState().toString());
+        System.out.println(state);
 
         // if we were doing a real test we would do some assertions first
         System.out.println(preAuthedPayment);
+
+        assertEquals(state, preAuthedPayment.getState());
+    }
+
+    @Transactional
+    @Test
+    void authorizePayment() {
+        Payment savedPayment = paymentService.newPayment(payment);
+        savedPayment.setState(PaymentState.PRE_AUTH);
+
+        assertEquals(PaymentState.AUTH, paymentService.authorizePayment(savedPayment.getId()));
+        assertEquals(PaymentState.AUTH, paymentRepository.getOne(savedPayment.getId()).getState());
+    }
+
+    @Test
+    void preAuthAll() {
+        Payment first = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+        Payment second = paymentService.newPayment(Payment.builder().amount(new BigDecimal("5.00")).build());
+        Payment authorized = paymentRepository.save(Payment.builder().state(PaymentState.AUTH).amount(BigDecimal.TEN).build());
+        Long missing = -1L;
+
+        List<PaymentTransitionResult> results = paymentService.preAuthAll(
+                List.of(first.getId(), authorized.getId(), missing, second.getId()));
+
+        assertEquals(4, results.size());
+
+        // every payment gets its own result, in the order it was asked for
+        for (int i : new int[]{0, 3}) {
+            PaymentTransitionResult result = results.get(i);
+            assertEquals(PaymentTransitionResult.Status.APPLIED, result.getStatus());
+            assertTrue(result.getState() == PaymentState.PRE_AUTH || result.getState() == PaymentState.PRE_AUTH_ERROR);
+            assertEquals(result.getState(), paymentRepository.findById(result.getPaymentId()).orElseThrow().getState());
+        }
+
+        assertEquals(new PaymentTransitionResult(authorized.getId(), PaymentState.AUTH, PaymentTransitionResult.Status.NOT_ACCEPTED),
+                results.get(1));
+        assertEquals(new PaymentTransitionResult(missing, null, PaymentTransitionResult.Status.NOT_FOUND), results.get(2));
+    }
+
+    @Test
+    void newPayments() {
+        List<Payment> payments = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            payments.add(Payment.builder().amount(new BigDecimal(i + ".99")).build());
+        }
+
+        List<Payment> saved = paymentService.newPayments(payments);
+
+        assertEquals(payments.size(), saved.size());
+        for (int i = 0; i < saved.size(); i++) {
+            assertNotNull(saved.get(i).getId());
+            assertEquals(payments.get(i).getAmount(), saved.get(i).getAmount());
+        }
+        assertEquals(saved.size(), saved.stream().map(Payment::getId).distinct().count());
+        assertTrue(paymentRepository.findAllById(saved.stream().map(Payment::getId).collect(Collectors.toList()))
+                .stream().allMatch(p -> p.getState() == PaymentState.NEW));
+    }
+
+    @Test
+    void authorizeAll() {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            ids.add(paymentRepository.save(Payment.builder().state(PaymentState.PRE_AUTH).amount(BigDecimal.ONE).build()).getId());
+        }
+
+        List<PaymentTransitionResult> results = paymentService.authorizeAll(ids);
+
+        assertEquals(ids.size(), results.size());
+        assertTrue(results.stream().allMatch(r -> r.getStatus() == PaymentTransitionResult.Status.APPLIED
+                && r.getState() == PaymentState.AUTH));
+        assertTrue(paymentRepository.findAllById(ids).stream().allMatch(p -> p.getState() == PaymentState.AUTH));
+    }
+
+    @Test
+    void findByStatePagesThroughTheStateByKeyset() {
+        List<Long> ids = statesInRange();
+        Long first = ids.get(0) - 1;
+        Long last = ids.get(ids.size() - 1);
+
+        List<Long> found = new ArrayList<>();
+        Long after = first;
+        List<Payment> page;
+        do {
+            page = paymentService.findByState(PaymentState.AUTH, after, last, 4);
+            assertTrue(page.size() <= 4);
+            for (Payment payment : page) {
+                assertEquals(PaymentState.AUTH, payment.getState());
+                found.add(payment.getId());
+            }
+            if (!page.isEmpty()) {
+                after = page.get(page.size() - 1).getId();
+            }
+        } while (page.size() == 4);
+
+        List<Long> expected = ids.stream().filter(id -> ids.indexOf(id) % 3 == 0).collect(Collectors.toList());
+        assertEquals(expected, found);
+    }
+
+    @Test
+    void streamByStateMatchesThePages() {
+        List<Long> ids = statesInRange();
+        Long first = ids.get(0) - 1;
+        Long last = ids.get(ids.size() - 1);
+
+        List<Long> streamed = paymentService.streamByState(PaymentState.NEW, first, last,
+                payments -> payments.map(Payment::getId).collect(Collectors.toList()));
+
+        List<Long> paged = paymentService.findByState(PaymentState.NEW, first, last, ids.size()).stream()
+                .map(Payment::getId)
+                .collect(Collectors.toList());
+        assertEquals(paged, streamed);
+        assertEquals(ids.size() - (ids.size() + 2) / 3, streamed.size());
+    }
+
+    @Test
+    void streamByStateLeavesTheCallersEntitiesAlone() {
+        List<Long> ids = statesInRange();
+        Long first = ids.get(0) - 1;
+        Long last = ids.get(ids.size() - 1);
+        Long changedId = ids.get(1);
+
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            Payment changed = paymentRepository.findById(changedId).orElseThrow();
+            changed.setAmount(new BigDecimal("99.99"));
+
+            // the scan reads the same row, in its own persistence context
+            long streamed = paymentService.streamByState(PaymentState.NEW, first, last, Stream::count);
+            assertTrue(streamed > 0);
+            assertTrue(entityManager.contains(changed));
+        });
+
+        // still managed when the caller committed, so its change was written
+        assertEquals(0, new BigDecimal("99.99").compareTo(paymentRepository.findById(changedId).orElseThrow().getAmount()));
+    }
+
+    // 25 new payments, every third of them moved to AUTH, ids in insert order
+    private List<Long> statesInRange() {
+        List<Payment> payments = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            payments.add(Payment.builder().amount(new BigDecimal("12.99")).build());
+        }
+        List<Long> ids = paymentService.newPayments(payments).stream()
+                .map(Payment::getId)
+                .sorted()
+                .collect(Collectors.toList());
+
+        List<Payment> moved = new ArrayList<>();
+        for (Payment saved : paymentRepository.findAllById(ids)) {
+            if (ids.indexOf(saved.getId()) % 3 == 0) {
+                saved.setState(PaymentState.AUTH);
+                moved.add(saved);
+            }
+        }
+        paymentRepository.saveAll(moved);
+        return ids;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,274 @@
+package com.kwgdev.msscspringstatemachine.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Load harness: THREADS callers fire a random mix of preAuth / authorizePayment / declineAuth at PAYMENTS payments
+ * for DURATION, then the run is checked against the journal and reported to target/load/payment-load.json.
+ *
+ * Defaults keep it a few seconds long so it runs with the rest of the tests, turn it into a soak run with e.g.
+ *
+ *     mvn test -Dtest=PaymentServiceLoadTest -Dload.threads=32 -Dload.payments=20000 -Dload.duration=PT5M
+ *             -Dload.mix=preAuth=60,authorize=30,decline=10 -Dload.async=true
+ */
+@Slf4j
+@SpringBootTest(properties = "spring.jpa.show-sql=false")
+class PaymentServiceLoadTest {
+
+    static final int THREADS = Integer.getInteger("load.threads", 8);
+    static final int PAYMENTS = Integer.getInteger("load.payments", 1_000);
+    static final Duration DURATION = Duration.parse(System.getProperty("load.duration", "PT3S"));
+    static final String MIX = System.getProperty("load.mix", "preAuth=50,authorize=40,decline=10");
+    static final Path REPORT = Paths.get(System.getProperty("load.report", "target/load/payment-load.json"));
+
+    static final List<String> TERMINAL = List.of(PaymentState.AUTH.name(), PaymentState.AUTH_ERROR.name(),
+            PaymentState.PRE_AUTH_ERROR.name());
+
+    @DynamicPropertySource
+    static void properties(DynamicPropertyRegistry registry) {
+        registry.add("payment.authorization.async", () -> System.getProperty("load.async", "false"));
+    }
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    StateMachinePool stateMachinePool;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Test
+    void mixedLoad() throws Exception {
+        long[] paymentIds = new long[PAYMENTS];
+        for (int i = 0; i < PAYMENTS; i++) {
+            paymentIds[i] = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+        }
+
+        List<Operation> mix = parseMix(MIX);
+        int totalWeight = mix.stream().mapToInt(op -> op.weight).sum();
+        Recorder all = new Recorder(3);
+        Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + DURATION.toNanos();
+
+        List<Future<?>> callers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            callers.add(pool.submit(() -> {
+                start.await();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    Operation op = pick(mix, random.nextInt(totalWeight));
+                    long paymentId = paymentIds[random.nextInt(PAYMENTS)];
+
+                    long begin = System.nanoTime();
+                    try {
+                        op.call.apply(paymentId);
+                    } catch (RuntimeException e) {
+                        errors.computeIfAbsent(e.getClass().getSimpleName(), k -> new LongAdder()).increment();
+                    }
+                    long took = System.nanoTime() - begin;
+                    op.latency.recordValue(took);
+                    all.recordValue(took);
+                }
+                return null;
+            }));
+        }
+
+        long began = System.nanoTime();
+        start.countDown();
+        for (Future<?> caller : callers) {
+            caller.get();
+        }
+        double seconds = (System.nanoTime() - began) / 1e9;
+        pool.shutdown();
+
+        awaitQuiescence();
+
+        Histogram total = all.getIntervalHistogram();
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("threads", THREADS);
+        report.put("payments", PAYMENTS);
+        report.put("duration", DURATION.toString());
+        report.put("mix", MIX);
+        report.put("operations", total.getTotalCount());
+        report.put("throughputPerSecond", Math.round(total.getTotalCount() / seconds));
+        report.put("latencyMicros", percentiles(total));
+
+        Map<String, Object> perOperation = new LinkedHashMap<>();
+        for (Operation op : mix) {
+            perOperation.put(op.name, percentiles(op.latency.getIntervalHistogram()));
+        }
+        report.put("latencyMicrosByOperation", perOperation);
+
+        Map<String, Long> errorCounts = new LinkedHashMap<>();
+        errors.forEach((type, count) -> errorCounts.put(type, count.sum()));
+        report.put("errors", errorCounts);
+        report.put("finalStates", finalStates());
+        report.put("stateMachinePool", Map.of(
+                "hits", stateMachinePool.getHits(),
+                "misses", stateMachinePool.getMisses(),
+                "leaks", stateMachinePool.getLeaks()));
+
+        Timer laneWait = meterRegistry.find("payment.executor.wait").timer();
+        if (laneWait != null) {
+            report.put("laneWaitMaxMicros", Math.round(laneWait.max(TimeUnit.MICROSECONDS)));
+        }
+
+        Map<String, Long> violations = invariants();
+        report.put("invariantViolations", violations);
+
+        Files.createDirectories(REPORT.toAbsolutePath().getParent());
+        objectMapper.writer(SerializationFeature.INDENT_OUTPUT).writeValue(REPORT.toFile(), report);
+        log.info("load report written to {}: {}", REPORT.toAbsolutePath(), report);
+
+        assertTrue(total.getTotalCount() > 0);
+        assertTrue(errorCounts.isEmpty(), "calls failed: " + errorCounts);
+        violations.forEach((invariant, count) -> assertEquals(0L, count, invariant));
+    }
+
+    // every check counts offending payments (or rows), all of them have to come out 0
+    private Map<String, Long> invariants() {
+        Map<String, Long> violations = new LinkedHashMap<>();
+
+        // AUTH, AUTH_ERROR and PRE_AUTH_ERROR are final, nothing may ever leave them
+        violations.put("transitionsOutOfTerminalState", jdbcTemplate.queryForObject(
+                "select count(*) from payment_transition where source in (?, ?, ?)", Long.class, TERMINAL.toArray()));
+
+        // the payment row agrees with the last journaled transition
+        violations.put("stateDiffersFromJournal", jdbcTemplate.queryForObject(
+                "select count(*) from payment p join payment_transition t on t.payment_id = p.id " +
+                        "where t.id = (select max(id) from payment_transition where payment_id = p.id) " +
+                        "and t.target <> p.state", Long.class));
+
+        // one version bump per journaled transition, so no update got lost or applied twice
+        violations.put("versionDiffersFromTransitionCount", jdbcTemplate.queryForObject(
+                "select count(*) from payment p where coalesce(p.version, 0) <> " +
+                        "(select count(*) from payment_transition t where t.payment_id = p.id)", Long.class));
+
+        // every transition starts where the previous one of the same payment ended
+        violations.put("brokenTransitionChain", jdbcTemplate.queryForObject(
+                "select count(*) from payment_transition t join payment_transition prev on prev.payment_id = t.payment_id " +
+                        "and prev.id = (select max(id) from payment_transition where payment_id = t.payment_id and id < t.id) " +
+                        "where prev.target <> t.source", Long.class));
+
+        return violations;
+    }
+
+    private Map<PaymentState, Long> finalStates() {
+        Map<PaymentState, Long> states = new EnumMap<>(PaymentState.class);
+        jdbcTemplate.query("select state, count(*) from payment group by state",
+                rs -> {
+                    states.put(PaymentState.valueOf(rs.getString(1)), rs.getLong(2));
+                });
+        return states;
+    }
+
+    // with async authorization the processor's answers keep coming in after the callers stop
+    private void awaitQuiescence() throws InterruptedException {
+        long last = -1;
+        for (int i = 0; i < 100; i++) {
+            long rows = jdbcTemplate.queryForObject("select count(*) from payment_transition", Long.class);
+            if (rows == last) {
+                return;
+            }
+            last = rows;
+            Thread.sleep(200);
+        }
+    }
+
+    private static Map<String, Object> percentiles(Histogram histogram) {
+        Map<String, Object> micros = new LinkedHashMap<>();
+        micros.put("count", histogram.getTotalCount());
+        micros.put("p50", histogram.getValueAtPercentile(50) / 1_000);
+        micros.put("p99", histogram.getValueAtPercentile(99) / 1_000);
+        micros.put("p999", histogram.getValueAtPercentile(99.9) / 1_000);
+        micros.put("max", histogram.getMaxValue() / 1_000);
+        return micros;
+    }
+
+    private List<Operation> parseMix(String mix) {
+        Map<String, Function<Long, PaymentState>> calls = Map.of(
+                "preAuth", paymentService::preAuth,
+                "authorize", paymentService::authorizePayment,
+                "decline", paymentService::declineAuth);
+
+        List<Operation> operations = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            String[] nameAndWeight = part.trim().split("=");
+            Function<Long, PaymentState> call = calls.get(nameAndWeight[0]);
+            if (call == null) {
+                throw new IllegalArgumentException("Unknown operation " + nameAndWeight[0] + " in load.mix, use " + calls.keySet());
+            }
+            operations.add(new Operation(nameAndWeight[0], Integer.parseInt(nameAndWeight[1]), call));
+        }
+        return operations;
+    }
+
+    private static Operation pick(List<Operation> mix, int roll) {
+        for (Operation op : mix) {
+            roll -= op.weight;
+            if (roll < 0) {
+                return op;
+            }
+        }
+        return mix.get(mix.size() - 1);
+    }
+
+    private static final class Operation {
+        private final String name;
+        private final int weight;
+        private final Function<Long, PaymentState> call;
+        private final Recorder latency = new Recorder(3);
+
+        private Operation(String name, int weight, Function<Long, PaymentState> call) {
+            this.name = name;
+            this.weight = weight;
+            this.call = call;
+        }
+    }
+}
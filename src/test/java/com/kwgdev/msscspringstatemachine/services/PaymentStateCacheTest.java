@@ -0,0 +1,146 @@
+package com.kwgdev.msscspringstatemachine.services;
+
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManagerFactory;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "payment.authorization.async=false",
+        "spring.jpa.properties.hibernate.generate_statistics=true"
+})
+class PaymentStateCacheTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentStateCache cache;
+
+    @Autowired
+    PaymentStatePersister persister;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    TransactionTemplate transactionTemplate;
+
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+
+    @Test
+    void inFlightPaymentIsNotReadBack() {
+        Payment payment = newPayment();
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+
+        PaymentState state = paymentService.preAuth(payment.getId());
+
+        // the state came from the cache, neither the entity nor the state projection was read
+        assertEquals(0, statistics.getEntityLoadCount());
+        assertEquals(0, Arrays.stream(statistics.getQueries())
+                .filter(query -> query.startsWith("select"))
+                .mapToLong(query -> statistics.getQueryStatistics(query).getExecutionCount())
+                .sum());
+        assertEquals(state, cache.getState(payment.getId()));
+        assertEquals(paymentRepository.findById(payment.getId()).orElseThrow().getVersion(), cache.get(payment.getId()).getVersion());
+    }
+
+    @Test
+    void rollbackDropsTheEntry() {
+        Payment payment = newPayment();
+
+        transactionTemplate.executeWithoutResult(status -> {
+            persister.stateChanged(payment.getId(), PaymentState.NEW, PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED);
+            status.setRollbackOnly();
+        });
+
+        assertEquals(PaymentState.NEW, cache.getState(payment.getId()));
+    }
+
+    @Test
+    void conflictDropsTheEntryAndRetriesAgainstTheRow() {
+        Payment payment = newPayment();
+        assertEquals(PaymentState.NEW, cache.getState(payment.getId()));
+
+        // someone else moves the row on without going through the cache
+        transactionTemplate.executeWithoutResult(status ->
+                paymentRepository.updateState(payment.getId(), PaymentState.NEW, PaymentState.PRE_AUTH_ERROR));
+
+        // the retry finds the row in PRE_AUTH_ERROR, which does not accept the event
+        assertEquals(PaymentState.PRE_AUTH_ERROR, paymentService.sendEvent(payment.getId(), PaymentEvent.PRE_AUTH_DECLINED));
+        assertEquals(PaymentState.PRE_AUTH_ERROR, cache.getState(payment.getId()));
+    }
+
+    @Test
+    void conflictInsideTheCallersTransactionIsNotRetried() {
+        Payment payment = newPayment();
+        assertEquals(PaymentState.NEW, cache.getState(payment.getId()));
+        transactionTemplate.executeWithoutResult(status ->
+                paymentRepository.updateState(payment.getId(), PaymentState.NEW, PaymentState.PRE_AUTH_ERROR));
+
+        assertThrows(OptimisticLockingFailureException.class, () -> transactionTemplate.executeWithoutResult(status ->
+                paymentService.sendEvent(payment.getId(), PaymentEvent.PRE_AUTH_DECLINED)));
+    }
+
+    @Test
+    void rowReadInsideARolledBackTransactionIsNotCached() {
+        // saved behind the service's back, neither the cache nor the state index know it
+        Payment payment = paymentRepository.save(Payment.builder().state(PaymentState.NEW).amount(new BigDecimal("12.99")).build());
+
+        transactionTemplate.executeWithoutResult(status -> {
+            paymentRepository.updateState(payment.getId(), PaymentState.NEW, PaymentState.PRE_AUTH_ERROR);
+            assertEquals(PaymentState.PRE_AUTH_ERROR, cache.getState(payment.getId()));
+            status.setRollbackOnly();
+        });
+
+        assertEquals(PaymentState.NEW, cache.getState(payment.getId()));
+    }
+
+    @Test
+    void missIsAnsweredFromTheStateIndex() {
+        Payment payment = newPayment();
+        PaymentState state = paymentService.preAuth(payment.getId());
+        cache.invalidate(payment.getId());
+
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+
+        assertEquals(state, cache.getState(payment.getId()));
+        assertEquals(0, statistics.getQueryExecutionCount());
+        assertEquals(PaymentStateCache.UNKNOWN, cache.get(payment.getId()).getAmountCents());
+
+        // the amount is read once it is needed
+        assertEquals(1299, cache.getAmountCents(payment.getId()));
+        assertEquals(1299, cache.get(payment.getId()).getAmountCents());
+    }
+
+    @Test
+    void bulkUpdatesDropTheEntries() {
+        Payment payment = newPayment();
+        assertEquals(PaymentState.NEW, cache.getState(payment.getId()));
+
+        paymentService.preAuthAll(List.of(payment.getId()));
+
+        assertEquals(paymentRepository.findById(payment.getId()).orElseThrow().getState(), cache.getState(payment.getId()));
+    }
+
+    private Payment newPayment() {
+        return paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+    }
+}
@@ -0,0 +1,126 @@
+package com.kwgdev.msscspringstatemachine.services;
+
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+class PaymentStatePersisterTest {
+
+    @Autowired
+    PaymentStatePersister persister;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    TransactionTemplate transactionTemplate;
+
+    @Autowired
+    EntityManager entityManager;
+
+    @Autowired
+    PaymentStateCache paymentStateCache;
+
+    Statistics statistics;
+
+    @BeforeEach
+    void setUp() {
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    @Test
+    void transitionIsOneUpdateAndOneJournalInsert() {
+        Payment payment = paymentRepository.save(Payment.builder().state(PaymentState.NEW).amount(new BigDecimal("12.99")).build());
+
+        // first journal insert initialises the pooled id optimizer, keep that out of the count
+        Payment warmUp = paymentRepository.save(Payment.builder().state(PaymentState.NEW).amount(new BigDecimal("1.00")).build());
+        transactionTemplate.executeWithoutResult(status ->
+                persister.stateChanged(warmUp.getId(), PaymentState.NEW, PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED));
+        statistics.clear();
+
+        transactionTemplate.executeWithoutResult(status ->
+                persister.stateChanged(payment.getId(), PaymentState.NEW, PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED));
+
+        // no load of the payment and no full-entity update, just the conditional UPDATE and the journal INSERT
+        // (plus a sequence call when the pooled journal ids run out)
+        assertTrue(statistics.getPrepareStatementCount() <= 3, "statements per transition: " + statistics.getPrepareStatementCount());
+        assertEquals(0, statistics.getEntityLoadCount());
+        assertEquals(0, statistics.getEntityUpdateCount());
+        assertEquals(1, statistics.getEntityInsertCount());
+
+        Payment updated = paymentRepository.findById(payment.getId()).orElseThrow();
+        assertEquals(PaymentState.PRE_AUTH, updated.getState());
+        assertEquals(payment.getVersion() + 1, updated.getVersion());
+    }
+
+    @Test
+    void transitionEvictsOnlyTheTransitionedPayment() {
+        Payment payment = paymentRepository.save(Payment.builder().state(PaymentState.NEW).amount(new BigDecimal("12.99")).build());
+        Payment other = paymentRepository.save(Payment.builder().state(PaymentState.NEW).amount(new BigDecimal("1.00")).build());
+
+        transactionTemplate.executeWithoutResult(status -> {
+            Payment managedOther = entityManager.find(Payment.class, other.getId());
+            Payment stale = entityManager.find(Payment.class, payment.getId());
+
+            persister.stateChanged(payment.getId(), PaymentState.NEW, PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED);
+
+            // the caller's other entities stay managed, the transitioned one is read again
+            assertTrue(entityManager.contains(managedOther));
+            assertFalse(entityManager.contains(stale));
+            assertEquals(PaymentState.PRE_AUTH, entityManager.find(Payment.class, payment.getId()).getState());
+        });
+    }
+
+    @Test
+    void journalInsertsOfATransactionAreBatched() {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ids.add(paymentRepository.save(Payment.builder().state(PaymentState.NEW).amount(new BigDecimal("12.99")).build()).getId());
+        }
+        // the counters take the amount from the cache, a cold entry would be a read per payment
+        ids.forEach(paymentStateCache::getState);
+        statistics.clear();
+
+        transactionTemplate.executeWithoutResult(status -> ids.forEach(paymentId ->
+                persister.stateChanged(paymentId, PaymentState.NEW, PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED)));
+
+        // ten UPDATEs, the ten journal rows in one batched INSERT (and at most a sequence call) - flushing before
+        // every UPDATE would prepare the INSERT ten times
+        assertTrue(statistics.getPrepareStatementCount() <= 12, "statements for 10 transitions: " + statistics.getPrepareStatementCount());
+        assertEquals(10, statistics.getEntityInsertCount());
+    }
+
+    @Test
+    void pendingChangeToThePaymentIsWrittenBeforeTheUpdate() {
+        Payment payment = paymentRepository.save(Payment.builder().state(PaymentState.NEW).amount(new BigDecimal("12.99")).build());
+
+        transactionTemplate.executeWithoutResult(status -> {
+            entityManager.find(Payment.class, payment.getId()).setAmount(new BigDecimal("20.00"));
+            persister.stateChanged(payment.getId(), PaymentState.NEW, PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED);
+        });
+
+        Payment updated = paymentRepository.findById(payment.getId()).orElseThrow();
+        assertEquals(PaymentState.PRE_AUTH, updated.getState());
+        assertEquals(0, new BigDecimal("20.00").compareTo(updated.getAmount()));
+    }
+}
@@ -0,0 +1,7 @@
+package com.kwgdev.msscspringstatemachine.services;
+
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest(properties = {"payment.engine=statemachine", "payment.authorization.async=false"})
+class StateMachineEventProcessorTest extends PaymentEventProcessorConformanceTest {
+}
@@ -0,0 +1,68 @@
+package com.kwgdev.msscspringstatemachine.services;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.config.StateMachinePoolProperties;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.statemachine.StateMachine;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// every machine still checked out counts as a leak as soon as maintain() runs
+@SpringBootTest(properties = "payment.state-machine.pool.leak-detection-threshold=PT0S")
+class StateMachinePoolTest {
+
+    @Autowired
+    StateMachinePool pool;
+
+    @Autowired
+    StateMachinePoolProperties properties;
+
+    @Test
+    void minIdleMachinesAreBuiltOnStartup() {
+        // machines go back idle after every test, so there are never fewer than were built up front
+        assertTrue(pool.getIdleCount() >= properties.getMinIdle());
+    }
+
+    @Test
+    void checkoutResetsAndReusesMachines() {
+        StateMachine<PaymentState, PaymentEvent> first = pool.checkout(PaymentState.PRE_AUTH);
+        assertEquals(PaymentState.PRE_AUTH, first.getState().getId());
+        pool.release(first);
+
+        long hits = pool.getHits();
+
+        // the same machine comes back out, reset to whatever the database says
+        StateMachine<PaymentState, PaymentEvent> second = pool.checkout(PaymentState.NEW);
+        assertSame(first, second);
+        assertEquals(PaymentState.NEW, second.getState().getId());
+        assertEquals(hits + 1, pool.getHits());
+        pool.release(second);
+    }
+
+    @Test
+    void releaseOfUnknownMachineIsIgnored() {
+        StateMachine<PaymentState, PaymentEvent> sm = pool.checkout(PaymentState.NEW);
+        int active = pool.getActiveCount();
+
+        pool.release(sm);
+        pool.release(sm);
+
+        assertEquals(active - 1, pool.getActiveCount());
+    }
+
+    @Test
+    void leakedMachineIsCountedOnce() throws InterruptedException {
+        StateMachine<PaymentState, PaymentEvent> sm = pool.checkout(PaymentState.NEW);
+        Thread.sleep(1);
+        long leaks = pool.getLeaks();
+
+        pool.maintain();
+        pool.maintain();
+
+        assertEquals(leaks + 1, pool.getLeaks());
+        pool.release(sm);
+    }
+}
@@ -0,0 +1,127 @@
+package com.kwgdev.msscspringstatemachine.services;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.engine.PaymentTransitionTable;
+import com.kwgdev.msscspringstatemachine.engine.TransitionListener;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Bytes allocated per transition on the event path, measured with JFR, against a budget.
+ *
+ * The TLAB events JFR records add up to what a thread allocated (each new TLAB plus everything allocated outside one),
+ * which is accurate enough over a few hundred thousand transitions. Only the engines are measured, the persister is
+ * left out - what Hibernate and the JDBC driver allocate for the UPDATE is not ours to budget.
+ *
+ * Override the budgets with -Dalloc.table.budget / -Dalloc.statemachine.budget (bytes per transition).
+ */
+@Slf4j
+@SpringBootTest(properties = "payment.authorization.async=false")
+class TransitionAllocationTest {
+
+    private static final long TABLE_BUDGET = Long.getLong("alloc.table.budget", 64);
+    private static final long STATEMACHINE_BUDGET = Long.getLong("alloc.statemachine.budget", 10_240);
+
+    @Autowired
+    PaymentTransitionTable paymentTransitionTable;
+
+    @Autowired
+    StateMachineFactory<PaymentState, PaymentEvent> stateMachineFactory;
+
+    @Test
+    void tableEngineStaysWithinBudget() throws IOException {
+        Long paymentId = 42L;
+        CountingListener listener = new CountingListener();
+        Runnable payment = () -> {
+            PaymentState state = paymentTransitionTable.fire(paymentId, PaymentState.NEW, PaymentEvent.PRE_AUTHORIZE, listener);
+            if (state == PaymentState.PRE_AUTH) {
+                paymentTransitionTable.fire(paymentId, state, PaymentEvent.AUTHORIZE, listener);
+            }
+        };
+
+        long bytes = allocatedBy(payment, 200_000);
+        long perTransition = bytes / listener.transitions;
+        log.info("table engine: {} bytes per transition ({} transitions)", perTransition, listener.transitions);
+        assertTrue(perTransition <= TABLE_BUDGET, perTransition + " bytes per transition, budget is " + TABLE_BUDGET);
+    }
+
+    @Test
+    void stateMachineEngineStaysWithinBudget() throws IOException {
+        StateMachine<PaymentState, PaymentEvent> sm = stateMachineFactory.getStateMachine();
+        long[] transitions = {0};
+        Runnable payment = () -> {
+            sm.stop();
+            sm.getStateMachineAccessor().doWithAllRegions(sma ->
+                    sma.resetStateMachine(new DefaultStateMachineContext<>(PaymentState.NEW, null, null, null)));
+            sm.start();
+
+            sm.sendEvent(PaymentMessages.event(42L, PaymentEvent.PRE_AUTHORIZE));
+            // the action's follow-up moved it to PRE_AUTH or PRE_AUTH_ERROR
+            transitions[0] += 2;
+        };
+
+        long bytes = allocatedBy(payment, 20_000);
+        long perTransition = bytes / transitions[0];
+        log.info("state machine engine: {} bytes per transition ({} transitions)", perTransition, transitions[0]);
+        assertTrue(perTransition <= STATEMACHINE_BUDGET, perTransition + " bytes per transition, budget is " + STATEMACHINE_BUDGET);
+    }
+
+    // runs the payment the given number of times after a warm up (so the JIT is done) and returns what this thread
+    // allocated during the measured runs only
+    private long allocatedBy(Runnable payment, int times) throws IOException {
+        for (int i = 0; i < times; i++) {
+            payment.run();
+        }
+
+        long threadId = Thread.currentThread().getId();
+        Path dump = Files.createTempFile("transition-allocation", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("jdk.ObjectAllocationInNewTLAB");
+            recording.enable("jdk.ObjectAllocationOutsideTLAB");
+            recording.start();
+            for (int i = 0; i < times; i++) {
+                payment.run();
+            }
+            recording.stop();
+            recording.dump(dump);
+        }
+
+        long bytes = 0;
+        try {
+            for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+                if (event.getThread() == null || event.getThread().getJavaThreadId() != threadId) {
+                    continue;
+                }
+                bytes += event.getEventType().getName().equals("jdk.ObjectAllocationInNewTLAB")
+                        ? event.getLong("tlabSize") : event.getLong("allocationSize");
+            }
+        } finally {
+            Files.deleteIfExists(dump);
+        }
+        return bytes;
+    }
+
+    private static final class CountingListener implements TransitionListener {
+        private long transitions;
+
+        @Override
+        public void stateChanged(Long paymentId, PaymentState source, PaymentState target, PaymentEvent event) {
+            transitions++;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.kwgdev.msscspringstatemachine.summary;
+
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.domain.PaymentStateSummary;
+import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
+import com.kwgdev.msscspringstatemachine.repository.PaymentStateSummaryRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// one node of a cluster, the payments other nodes write are saved behind the counters' back
+@SpringBootTest(properties = {
+        "payment.authorization.async=false",
+        "payment.cluster.enabled=true",
+        "payment.cluster.node-id=counters-node",
+        "payment.cluster.partitions=16",
+        "payment.cluster.lease-time=PT2H",
+        "payment.cluster.heartbeat-interval=PT1H",
+        "payment.state-counters.checkpoint-interval=PT1H"
+})
+class PaymentStateCountersClusterTest {
+
+    @Autowired
+    PaymentStateCounters counters;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    PaymentStateSummaryRepository summaryRepository;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Test
+    void checkpointCountsTheTableInsteadOfWritingIt() {
+        counters.checkpoint();
+        List<PaymentStateSummary> summary = summaryRepository.findAll();
+        long count = counters.count(PaymentState.AUTH);
+        long amount = counters.amountCents(PaymentState.AUTH);
+
+        // another node's payment, this node only learns about it from the table
+        paymentRepository.save(Payment.builder().state(PaymentState.AUTH).amount(new BigDecimal("3.50")).build());
+        assertEquals(count, counters.count(PaymentState.AUTH));
+
+        counters.checkpoint();
+        assertEquals(count + 1, counters.count(PaymentState.AUTH));
+        assertEquals(amount + 350, counters.amountCents(PaymentState.AUTH));
+        Long table = jdbcTemplate.queryForObject("select count(*) from payment where state = ?", Long.class,
+                PaymentState.AUTH.name());
+        assertEquals(table, counters.count(PaymentState.AUTH));
+
+        // the shared summary rows are left to whoever else writes them
+        assertEquals(summary, summaryRepository.findAll());
+    }
+}
@@ -0,0 +1,146 @@
+package com.kwgdev.msscspringstatemachine.summary;
+
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.domain.PaymentStateSummary;
+import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
+import com.kwgdev.msscspringstatemachine.repository.PaymentStateSummaryRepository;
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "payment.authorization.async=false",
+        "payment.state-counters.checkpoint-interval=PT1H"
+})
+class PaymentStateCountersTest {
+
+    @Autowired
+    PaymentStateCounters counters;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    PaymentStateSummaryRepository summaryRepository;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    TransactionTemplate transactionTemplate;
+
+    @Test
+    void countersStayExactUnderConcurrentTransitions() throws Exception {
+        List<Payment> batch = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            batch.add(Payment.builder().amount(new BigDecimal(i + ".37")).build());
+        }
+        List<Long> ids = new CopyOnWriteArrayList<>();
+        paymentService.newPayments(batch).forEach(payment -> ids.add(payment.getId()));
+        List<Long> bulk = List.copyOf(ids.subList(0, 50));
+
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            futures.add(threads.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 100; i++) {
+                    Long paymentId = ids.get(random.nextInt(ids.size()));
+                    try {
+                        switch (random.nextInt(5)) {
+                            case 0:
+                                ids.add(paymentService.newPayment(Payment.builder().amount(new BigDecimal("9.99")).build()).getId());
+                                break;
+                            case 1:
+                                paymentService.preAuth(paymentId);
+                                break;
+                            case 2:
+                                paymentService.authorizePayment(paymentId);
+                                break;
+                            case 3:
+                                paymentService.declineAuth(paymentId);
+                                break;
+                            default:
+                                paymentService.preAuthAll(bulk);
+                        }
+                    } catch (RuntimeException e) {
+                        // lost races are fine here, they must just not show up in the counters
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(2, TimeUnit.MINUTES);
+        }
+        threads.shutdown();
+
+        assertMatchesTable();
+    }
+
+    @Test
+    void rolledBackPaymentIsNotCounted() {
+        long count = counters.count(PaymentState.NEW);
+        long amount = counters.amountCents(PaymentState.NEW);
+
+        transactionTemplate.executeWithoutResult(status -> {
+            paymentService.newPayment(Payment.builder().amount(new BigDecimal("5.00")).build());
+            status.setRollbackOnly();
+        });
+        assertEquals(count, counters.count(PaymentState.NEW));
+        assertEquals(amount, counters.amountCents(PaymentState.NEW));
+
+        paymentService.newPayment(Payment.builder().amount(new BigDecimal("5.00")).build());
+        assertEquals(count + 1, counters.count(PaymentState.NEW));
+        assertEquals(amount + 500, counters.amountCents(PaymentState.NEW));
+    }
+
+    @Test
+    void checkpointIsWrittenAndReconcileFixesDrift() {
+        paymentService.newPayment(Payment.builder().amount(new BigDecimal("1.25")).build());
+
+        counters.checkpoint();
+        for (PaymentStateSummary row : summaryRepository.findAll()) {
+            assertEquals(counters.count(row.getState()), row.getPaymentCount());
+            assertEquals(counters.amountCents(row.getState()), row.getAmountCents());
+        }
+
+        // written behind the counters' back
+        paymentRepository.save(Payment.builder().state(PaymentState.AUTH).amount(new BigDecimal("3.50")).build());
+        assertNotEquals(tableCount(PaymentState.AUTH), counters.count(PaymentState.AUTH));
+
+        counters.reconcile();
+        assertMatchesTable();
+    }
+
+    private void assertMatchesTable() {
+        for (PaymentState state : PaymentState.values()) {
+            assertEquals(tableCount(state), counters.count(state), state.name());
+            BigDecimal sum = jdbcTemplate.queryForObject("select coalesce(sum(amount), 0) from payment where state = ?",
+                    BigDecimal.class, state.name());
+            assertEquals(PaymentStateCounters.toCents(sum), counters.amountCents(state), state.name());
+        }
+    }
+
+    private long tableCount(PaymentState state) {
+        return jdbcTemplate.queryForObject("select count(*) from payment where state = ?", Long.class, state.name());
+    }
+}
@@ -0,0 +1,72 @@
+package com.kwgdev.msscspringstatemachine.timeout;
+
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentEvent;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// the processor takes far longer than the timeouts, so nothing but the timeout moves these payments on
+@SpringBootTest(properties = {
+        "payment.authorization.async=true",
+        "payment.authorization.stub.latency=30s",
+        "payment.timeout.new-timeout=300ms",
+        "payment.timeout.pre-auth-timeout=300ms",
+        "payment.timeout.tick=PT0.05S"
+})
+class PaymentTimeoutsTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    PaymentTimeouts paymentTimeouts;
+
+    @Test
+    void unansweredPreAuthIsDeclined() throws Exception {
+        Long paymentId = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+        assertEquals(PaymentState.NEW, paymentService.preAuth(paymentId));
+
+        assertEquals(PaymentState.PRE_AUTH_ERROR, awaitStateOtherThan(paymentId, PaymentState.NEW));
+    }
+
+    @Test
+    void pendingPaymentsAreRescheduledOnRebuild() throws Exception {
+        // written behind the service's back, like a payment left over from before a restart
+        Long paymentId = paymentRepository.save(Payment.builder().state(PaymentState.PRE_AUTH).amount(BigDecimal.TEN).build()).getId();
+
+        paymentTimeouts.rebuild();
+
+        assertEquals(PaymentState.AUTH_ERROR, awaitStateOtherThan(paymentId, PaymentState.PRE_AUTH));
+    }
+
+    @Test
+    void paymentThatMovedOnIsLeftAlone() throws Exception {
+        Long paymentId = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+        paymentService.sendEvent(paymentId, PaymentEvent.PRE_AUTH_APPROVED);
+
+        // the NEW timer finds it in PRE_AUTH and is dropped (no PRE_AUTH_ERROR), the PRE_AUTH timer declines it
+        assertEquals(PaymentState.AUTH_ERROR, awaitStateOtherThan(paymentId, PaymentState.PRE_AUTH));
+    }
+
+    private PaymentState awaitStateOtherThan(Long paymentId, PaymentState state) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            PaymentState current = paymentRepository.findById(paymentId).orElseThrow().getState();
+            if (current != state) {
+                return current;
+            }
+            Thread.sleep(50);
+        }
+        return state;
+    }
+}
@@ -0,0 +1,68 @@
+package com.kwgdev.msscspringstatemachine.timeout;
+
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimingWheelTest {
+
+    @Test
+    void firesEachTimerOnItsTick() {
+        TimingWheel wheel = new TimingWheel(8, 0);
+        wheel.schedule(1, PaymentState.NEW, 3);
+        // same bucket as 3, but two rounds later
+        wheel.schedule(2, PaymentState.PRE_AUTH, 19);
+
+        List<Long> fired = new ArrayList<>();
+        assertEquals(0, wheel.advance(2, (id, state) -> fired.add(id)));
+        assertEquals(1, wheel.advance(3, (id, state) -> fired.add(id)));
+        assertEquals(List.of(1L), fired);
+
+        assertEquals(0, wheel.advance(18, (id, state) -> fired.add(id)));
+        assertEquals(1, wheel.advance(19, (id, state) -> {
+            assertEquals(PaymentState.PRE_AUTH, state);
+            fired.add(id);
+        }));
+        assertEquals(List.of(1L, 2L), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void overdueTimerFiresOnNextTick() {
+        TimingWheel wheel = new TimingWheel(8, 100);
+        wheel.schedule(1, PaymentState.NEW, 10);
+
+        List<Long> fired = new ArrayList<>();
+        wheel.advance(101, (id, state) -> fired.add(id));
+
+        assertEquals(List.of(1L), fired);
+    }
+
+    @Test
+    void catchesUpAfterFallingRoundsBehind() {
+        TimingWheel wheel = new TimingWheel(16, 0);
+        Map<Long, Long> deadlines = new HashMap<>();
+        for (long id = 1; id <= 10_000; id++) {
+            long deadline = 1 + (id * 7919) % 500;
+            deadlines.put(id, deadline);
+            wheel.schedule(id, PaymentState.NEW, deadline);
+        }
+
+        // jump 250 ticks at once, only the timers due by then fire
+        List<Long> fired = new ArrayList<>();
+        wheel.advance(250, (id, state) -> fired.add(id));
+
+        assertEquals(deadlines.values().stream().filter(d -> d <= 250).count(), fired.size());
+        fired.forEach(id -> assertTrue(deadlines.get(id) <= 250));
+
+        wheel.advance(500, (id, state) -> fired.add(id));
+        assertEquals(10_000, fired.size());
+        assertEquals(0, wheel.size());
+    }
+}
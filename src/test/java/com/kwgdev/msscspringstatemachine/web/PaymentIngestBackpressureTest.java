@@ -0,0 +1,30 @@
+package com.kwgdev.msscspringstatemachine.web;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.web.servlet.MockMvc;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+// no permits at all, so every request finds the endpoint saturated
+@SpringBootTest(properties = "payment.ingest.max-concurrent-requests=0")
+@AutoConfigureMockMvc
+class PaymentIngestBackpressureTest {
+
+    @Autowired
+    MockMvc mockMvc;
+
+    @Test
+    void saturatedEndpointAnswers429() throws Exception {
+        mockMvc.perform(post("/api/v1/payments/ingest")
+                        .contentType(PaymentIngestController.NDJSON)
+                        .content("{\"op\":\"NEW\",\"amount\":12.99}\n"))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, "1"));
+    }
+}
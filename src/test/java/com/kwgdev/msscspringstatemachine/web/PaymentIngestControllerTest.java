@@ -0,0 +1,130 @@
+package com.kwgdev.msscspringstatemachine.web;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kwgdev.msscspringstatemachine.domain.Payment;
+import com.kwgdev.msscspringstatemachine.domain.PaymentState;
+import com.kwgdev.msscspringstatemachine.repository.PaymentRepository;
+import com.kwgdev.msscspringstatemachine.services.PaymentService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest(properties = {
+        "payment.authorization.async=false",
+        "payment.authorization.stub.approval-rate=1.0",
+        "payment.ingest.chunk-size=3",
+        "payment.ingest.max-line-length=64"
+})
+@AutoConfigureMockMvc
+class PaymentIngestControllerTest {
+
+    @Autowired
+    MockMvc mockMvc;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Test
+    void newPaymentsAndEventsComeBackLineByLine() throws Exception {
+        Long first = newPayment();
+        Long second = newPayment();
+
+        String body = "{\"op\":\"NEW\",\"amount\":12.99}\n" +
+                "{\"op\":\"PRE_AUTH\",\"paymentId\":" + first + "}\n" +
+                "{\"op\":\"PRE_AUTH\",\"paymentId\":" + second + "}\n" +
+                "\n" +
+                "{\"op\":\"AUTHORIZE\",\"paymentId\":" + first + "}\n" +
+                "{\"op\":\"PRE_AUTH\",\"paymentId\":987654321}\n";
+
+        List<JsonNode> results = ingest(body);
+
+        assertEquals(5, results.size());
+        assertEquals("CREATED", results.get(0).get("status").asText());
+        assertEquals(PaymentState.NEW, paymentRepository.findById(results.get(0).get("paymentId").asLong()).orElseThrow().getState());
+
+        assertEquals(2, results.get(1).get("line").asLong());
+        assertEquals("APPLIED", results.get(1).get("status").asText());
+        assertEquals("PRE_AUTH", results.get(2).get("state").asText());
+
+        // the blank line is skipped but still counted
+        assertEquals(5, results.get(3).get("line").asLong());
+        assertEquals("AUTH", results.get(3).get("state").asText());
+        assertEquals(PaymentState.AUTH, paymentRepository.findById(first).orElseThrow().getState());
+
+        assertEquals("NOT_FOUND", results.get(4).get("status").asText());
+    }
+
+    @Test
+    void badLinesOnlyFailThemselves() throws Exception {
+        Long payment = newPayment();
+
+        String body = "{\"op\":\"NEW\"}\n" +
+                "not json\n" +
+                "{\"op\":\"PRE_AUTH\"}\n" +
+                "{\"op\":\"PRE_AUTH\",\"paymentId\":" + payment + "}\n";
+
+        List<JsonNode> results = ingest(body);
+
+        assertEquals(4, results.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("INVALID", results.get(i).get("status").asText());
+            assertTrue(results.get(i).has("error"));
+        }
+        assertEquals("APPLIED", results.get(3).get("status").asText());
+    }
+
+    @Test
+    void overLongLinesAreSkippedWithoutBeingRead() throws Exception {
+        Long payment = newPayment();
+
+        String body = "{\"op\":\"NEW\",\"amount\":12.99,\"padding\":\"" + "x".repeat(100_000) + "\"}\n" +
+                "{\"op\":\"PRE_AUTH\",\"paymentId\":" + payment + "}\r\n" +
+                "{\"op\":\"NEW\",\"amount\":" + "1".repeat(64) + "}";
+
+        List<JsonNode> results = ingest(body);
+
+        assertEquals(3, results.size());
+        assertEquals("INVALID", results.get(0).get("status").asText());
+        assertTrue(results.get(0).get("error").asText().contains("64"));
+        assertEquals("APPLIED", results.get(1).get("status").asText());
+        // the last line has no newline, it is cut off all the same
+        assertEquals(3, results.get(2).get("line").asLong());
+        assertEquals("INVALID", results.get(2).get("status").asText());
+    }
+
+    private List<JsonNode> ingest(String body) throws Exception {
+        String response = mockMvc.perform(post("/api/v1/payments/ingest")
+                        .contentType(PaymentIngestController.NDJSON)
+                        .accept(PaymentIngestController.NDJSON)
+                        .content(body))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+
+        List<JsonNode> results = new ArrayList<>();
+        for (String line : response.split("\n")) {
+            results.add(objectMapper.readTree(line));
+        }
+        return results;
+    }
+
+    private Long newPayment() {
+        return paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+    }
+}